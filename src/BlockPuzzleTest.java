@@ -1,7 +1,25 @@
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -43,7 +61,7 @@ public class BlockPuzzleTest {
         // Modify x and y pixel coordinates to be inside the grid
         piece1.x = 180;
         piece1.y = 250;
-        Shape snappedShape1 = piece1.snapToGrid();
+        Shape snappedShape1 = piece1.snapToGrid(grid.getNumRows(), grid.getNumCols());
 
         // Check if the snapped shape coordinates align with the grid
         assertNotNull(snappedShape1);
@@ -52,7 +70,7 @@ public class BlockPuzzleTest {
         // Modify x and y pixel coordinates to be outside the grid
         piece2.x = 4;
         piece2.y = 22;
-        Shape snappedShape2 = piece2.snapToGrid();
+        Shape snappedShape2 = piece2.snapToGrid(grid.getNumRows(), grid.getNumCols());
 
         // Check if the snapped shape coordinates do not align with the grid
         assertNull(snappedShape2);
@@ -62,25 +80,104 @@ public class BlockPuzzleTest {
     public void testFullRegions() {
         // Fill a row completely
         for (int col = 0; col < grid.getNumCols(); col++) {
-            grid.grid[0][col] = 1;
+            grid.fillCell(0, col);
         }
         assertTrue(grid.isRowFull(0, grid.copyGrid()));
 
         // Fill a column completely
         for (int row = 0; row < grid.getNumRows(); row++) {
-            grid.grid[row][0] = 1;
+            grid.fillCell(row, 0);
         }
         assertTrue(grid.isColumnFull(0, grid.copyGrid()));
 
         // Fill a 3x3 square completely
         for (int row = 0; row < 3; row++) {
             for (int col = 0; col < 3; col++) {
-                grid.grid[row][col] = 1;
+                grid.fillCell(row, col);
             }
         }
         assertTrue(grid.isSquareFull(0, 0, grid.copyGrid()));
     }
 
+    @Test
+    public void testBoardSizesAndBoxSizes() {
+        // Bit positions map back to their cells whatever the row width
+        for (int[] size : new int[][] {{9, 9}, {16, 16}, {10, 7}, {70, 100}, {128, 128}}) {
+            Grid board = new Grid(size[0], size[1]);
+            for (int x = 0; x < size[0]; x++) {
+                for (int y = 0; y < size[1]; y++) {
+                    int index = board.bitIndex(x, y);
+                    assertEquals(x, board.cellX(index));
+                    assertEquals(y, board.cellY(index));
+                }
+            }
+        }
+
+        // A 16x16 board with 4x4 squares clears a square, and only whole squares are regions
+        Grid boxes = new Grid(16, 16, 4);
+        for (int x = 4; x < 8; x++) {
+            for (int y = 12; y < 16; y++) {
+                boxes.fillCell(x, y);
+            }
+        }
+        assertTrue(boxes.isSquareFull(4, 12, boxes.copyGrid()));
+        assertEquals(1, boxes.clearFullRegions());
+        assertEquals(1, boxes.getClearCount(RegionType.SQUARE));
+        assertEquals(16 + 18 + 4 * 4, new Grid(16, 18, 4).regionShapes.length);
+
+        // A row wider than a word is found full and cleared
+        Grid wide = new Grid(70, 100);
+        List<Cell> rowCells = new ArrayList<>();
+        for (int y = 0; y < 100; y++) {
+            rowCells.add(new Cell(0, y));
+        }
+        wide.placeShapeAt(new Shape(rowCells, 1, 100), 69, 0);
+        assertEquals(1, wide.getPoppableRegions(new Shape(List.of(new Cell(0, 0)), 1, 1)).size());
+        assertEquals(1, wide.clearFullRegions());
+        assertFalse(wide.isCellFilled(69, 99));
+
+        // Only the regions that were filled into are checked, yet no full region is ever missed
+        Random random = new Random(17);
+        Grid board = new Grid(20, 12, 4);
+        for (int step = 0; step < 2000; step++) {
+            board.fillCell(random.nextInt(20), random.nextInt(12));
+            board.clearFullRegions();
+            for (int x = 0; x < 20; x++) {
+                assertFalse(board.isRowFull(x, board.copyGrid()));
+            }
+            for (int y = 0; y < 12; y++) {
+                assertFalse(board.isColumnFull(y, board.copyGrid()));
+            }
+            for (int x = 0; x + 4 <= 20; x += 4) {
+                for (int y = 0; y + 4 <= 12; y += 4) {
+                    assertFalse(board.isSquareFull(x, y, board.copyGrid()));
+                }
+            }
+        }
+
+        // Snapping checks the board's own size rather than the classic 9x9
+        Piece piece = new Piece(palette.getPieces().get(0).getShape(), 7 + 12 * 40, 55 + 40, 40);
+        assertNull(piece.snapToGrid(9, 9));
+        assertNotNull(piece.snapToGrid(16, 16));
+
+        // Box outlines run along the rows like the cells, and stop at the last whole box
+        BoardSnapshot oblong = BoardSnapshot.capture(new Grid(10, 7, 3), new Shape[0], null, null, null,
+                false, 0, 0, 0);
+        BufferedImage image = new BufferedImage(BoardRenderer.boardWidth(oblong), BoardRenderer.boardHeight(oblong),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        new BoardRenderer().paintMiniGrid(g, oblong);
+        g.dispose();
+        int cell = BoardRenderer.GRID_CELL_SIZE;
+        int black = Color.BLACK.getRGB();
+        assertEquals(black, image.getRGB(9 * cell, BoardRenderer.Y_OFFSET + cell));
+        assertEquals(black, image.getRGB(cell, BoardRenderer.Y_OFFSET + 6 * cell));
+        assertNotEquals(black, image.getRGB(9 * cell + cell / 2, BoardRenderer.Y_OFFSET + cell));
+        assertNotEquals(black, image.getRGB(3 * cell, BoardRenderer.Y_OFFSET + 6 * cell + cell / 2));
+    }
+
     @Test
     public void testScoreCalculation() {
         // Create a 1x9 piece to form a full row - starting from (0,0)
@@ -126,6 +223,1086 @@ public class BlockPuzzleTest {
         assertEquals(expectedScore, actualScore);
     }
 
+    @Test
+    public void testOverlappingRegionsClear() {
+        // Fill row 0, column 0 and the top-left 3x3 square, leaving (0,0) empty
+        for (int i = 1; i < 9; i++) {
+            grid.fillCell(0, i);
+            grid.fillCell(i, 0);
+        }
+        for (int row = 1; row < 3; row++) {
+            for (int col = 1; col < 3; col++) {
+                grid.fillCell(row, col);
+            }
+        }
+
+        // Filling (0,0) completes all three regions, which share cells
+        Shape corner = new Shape(List.of(new Cell(0, 0)), 1, 1);
+        assertEquals(3, grid.getPoppableRegions(corner).size());
+        grid.placeShape(corner);
+        grid.clearFullRegions();
+
+        // Every region counts towards the score and all of their cells are emptied
+        assertEquals(3, grid.getScore());
+        for (int row = 0; row < grid.getNumRows(); row++) {
+            for (int col = 0; col < grid.getNumCols(); col++) {
+                assertFalse(grid.isCellFilled(row, col));
+            }
+        }
+    }
+
+    @Test
+    public void testPlacementIndexMatchesBruteForce() {
+        // Start tracking the palette shapes on the empty grid, so later updates are incremental
+        for (Piece piece : palette.getPieces()) {
+            assertEquals(grid.countLegalMovesBruteForce(piece), grid.getLegalMoveCount(piece));
+        }
+
+        // Fill random cells, clearing any full regions, and compare after every change
+        Random random = new Random(42);
+        for (int step = 0; step < 2000; step++) {
+            Shape cell = new Shape(List.of(new Cell(random.nextInt(9), random.nextInt(9))), 1, 1);
+            if (grid.canPlace(cell)) {
+                grid.placeShape(cell);
+                grid.clearFullRegions();
+            }
+            for (Piece piece : palette.getPieces()) {
+                assertEquals(grid.countLegalMovesBruteForce(piece), grid.getLegalMoveCount(piece));
+            }
+            assertEquals(grid.isGameOverBruteForce(palette), grid.isGameOver(palette));
+        }
+    }
+
+    @Test
+    public void testHeadlessEngineGame() {
+        // Play a random game to the end, checking every listed move is legal
+        GameEngine engine = new GameEngine(9, 9);
+        int[] moves = new int[engine.maxMoves()];
+        Random random = new Random(7);
+        int count;
+        while ((count = engine.legalMoves(moves)) > 0) {
+            assertFalse(engine.isGameOver());
+            for (int i = 0; i < count; i++) {
+                assertTrue(engine.isLegal(moves[i]));
+            }
+            engine.applyMove(moves[random.nextInt(count)]);
+        }
+
+        // With no legal moves left the game is over and further moves are rejected
+        assertTrue(engine.isGameOver());
+        assertTrue(engine.getMovesPlayed() > 0);
+        assertThrows(IllegalArgumentException.class, () -> engine.applyMove(GameEngine.move(0, 0, 0)));
+    }
+
+    @Test
+    public void testSelfPlayIsReproducible() {
+        SelfPlayRunner runner = new SelfPlayRunner(9, 9, MovePolicy.random(), 123);
+
+        // The same master seed gives the same results whatever the thread count
+        SelfPlayStats single = runner.run(3000, 1);
+        SelfPlayStats parallel = runner.run(3000, 4);
+        assertEquals(3000, parallel.getGames());
+        assertEquals(single.getMoves(), parallel.getMoves());
+        for (RegionType type : RegionType.values()) {
+            assertEquals(single.getClears(type), parallel.getClears(type));
+        }
+
+        // A single game can be replayed from its index
+        GameEngine first = runner.newEngine();
+        GameEngine second = runner.newEngine();
+        int[] moves = new int[first.maxMoves()];
+        runner.playGame(first, 2500, moves);
+        runner.playGame(second, 2500, moves);
+        assertEquals(first.getScore(), second.getScore());
+        assertEquals(first.getMovesPlayed(), second.getMovesPlayed());
+    }
+
+    @Test
+    public void testSolverFindsClearingLine() {
+        // Column 0 is full apart from its first four cells, which the I-shape fills exactly
+        for (int row = 4; row < 9; row++) {
+            grid.fillCell(row, 0);
+        }
+        long[] before = grid.copyGrid();
+        Shape iShape = palette.getPieces().get(0).getShape();
+        Shape oShape = palette.getPieces().get(2).getShape();
+
+        // Rate lines by score only, so the single clearing placement is the unique best
+        Solver solver = new Solver(new Evaluation(1, 0, 0, 0, -1000), List.of());
+        SearchResult result = solver.search(grid, new Shape[] {iShape, oShape}, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        assertTrue(result.complete());
+        assertEquals(1.0, result.value());
+        assertEquals(2, result.line().length);
+        int iMove = Arrays.stream(result.line()).filter(move -> GameEngine.moveSlot(move) == 0)
+                .findFirst().orElse(-1);
+        assertEquals(GameEngine.move(0, 0, 0), iMove);
+
+        // Searching works on a copy and leaves the grid as it was
+        assertArrayEquals(before, grid.copyGrid());
+    }
+
+    @Test
+    public void testHintEngineDropsStaleSearches() throws Exception {
+        List<Shape> shapes = new ShapeSet().getShapes();
+        Shape oShape = shapes.get(2);
+        List<Shape> delivered = new ArrayList<>();
+        // No budget for the first answer, so the hints come from the refining searches
+        HintEngine hints = new HintEngine(0, 1, delivered::add);
+        try {
+            // Three O-shapes on a 40x40 board take far longer to search than the test waits
+            Grid large = new Grid(40, 40);
+            hints.restart(BoardSnapshot.capture(large, new Shape[] {oShape, oShape, oShape},
+                    null, null, null, false, 0, 0, 0));
+            Thread.sleep(100);
+            Grid small = new Grid(9, 9);
+            BoardSnapshot smallBoard = BoardSnapshot.capture(small, new Shape[] {shapes.get(0), shapes.get(1), null},
+                    null, null, null, false, 0, 0, 0);
+            SwingUtilities.invokeAndWait(() -> {
+                hints.restart(smallBoard);
+                delivered.clear();
+            });
+
+            // The large search stops, the small one is refined until complete, and only its hints arrive
+            hints.executor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+            SwingUtilities.invokeAndWait(() -> { });
+            assertFalse(delivered.isEmpty());
+            for (Shape hint : delivered) {
+                assertNotEquals(oShape.translate(hint.x(0), hint.y(0)), hint);
+                for (int i = 0; i < hint.size(); i++) {
+                    assertTrue(small.inBounds(hint.x(i), hint.y(i)));
+                }
+            }
+
+            // A cancelled search delivers nothing, not even its first answer
+            SwingUtilities.invokeAndWait(() -> {
+                hints.restart(smallBoard);
+                hints.cancel();
+                delivered.clear();
+            });
+            hints.executor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+            SwingUtilities.invokeAndWait(() -> { });
+            assertTrue(delivered.isEmpty());
+        } finally {
+            hints.shutdown();
+        }
+        // Shutting down stops the search's workers too
+        assertTrue(hints.pool.isShutdown());
+    }
+
+    @Test
+    public void testShapeCatalog() {
+        // 21 free polyominoes of up to 5 cells, 91 once rotations and reflections count apart
+        ShapeCatalog catalog = ShapeCatalog.standard();
+        assertEquals(21, catalog.getFreeCount());
+        assertEquals(91, catalog.size());
+
+        // The palette shapes are the catalog's shared instances
+        Shape tShape = new Shape(List.of(new Cell(1, 1), new Cell(0, 0),
+                new Cell(1, 0), new Cell(2, 0)), 3, 2);
+        assertSame(palette.getPieces().get(1).getShape(), catalog.intern(tShape));
+
+        // Mask lookups agree with checking a plain copy of each shape cell by cell
+        Random random = new Random(5);
+        for (int i = 0; i < 40; i++) {
+            grid.fillCell(random.nextInt(9), random.nextInt(9));
+        }
+        for (Shape shape : catalog.getShapes()) {
+            Shape plain = new Shape(shape, shape.getShapeWidth(), shape.getShapeHeight());
+            for (int x = -1; x <= 9; x++) {
+                for (int y = -1; y <= 9; y++) {
+                    assertEquals(grid.canPlaceAt(plain, x, y), grid.canPlaceAt(shape, x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSeededPieceGenerator() {
+        // The same seed deals the same shapes
+        Palette first = new Palette(grid, PieceGenerator.random(99));
+        Palette second = new Palette(grid, PieceGenerator.random(99));
+        for (int deal = 0; deal < 50; deal++) {
+            for (int slot = 0; slot < Palette.PALETTE_SIZE; slot++) {
+                assertSame(first.getPieces().get(slot).getShape(), second.getPieces().get(slot).getShape());
+            }
+            first.getPieces().get(deal % 3).state = PieceState.PLACED;
+            second.getPieces().get(deal % 3).state = PieceState.PLACED;
+            first.refresh();
+            second.refresh();
+        }
+
+        // Only the placed piece's slot is dealt again, and the pieces are reused
+        List<Piece> before = List.copyOf(first.getPieces());
+        Shape kept = before.get(2).getShape();
+        before.get(0).state = PieceState.PLACED;
+        before.get(1).x += 100;
+        first.refresh();
+        assertEquals(before, first.getPieces());
+        assertSame(kept, first.getPieces().get(2).getShape());
+        assertEquals(Palette.PALETTE_X + Palette.SLOT_SPACING, first.getPieces().get(1).getX());
+
+        // With only a single cell left, a guaranteed-legal deal still has a shape that fits it
+        Shape single = new Shape(List.of(new Cell(0, 0)), 1, 1);
+        List<Shape> shapes = List.of(palette.getPieces().get(0).getShape(), single);
+        PieceGenerator generator = new PieceGenerator(PieceDistribution.guaranteedLegal(
+                PieceDistribution.weighted(shapes, new double[] {1, 0}), shapes), 5);
+        Grid full = new Grid(8, 8);
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                if (row != 4 || col != 4) {
+                    full.fillCell(row, col);
+                }
+            }
+        }
+        Shape[] dealt = new Shape[3];
+        generator.deal(dealt, full);
+        assertSame(single, dealt[2]);
+    }
+
+    @Test
+    public void testJournalReplay(@TempDir Path dir) throws IOException {
+        // Record some self-play games
+        SelfPlayRunner runner = new SelfPlayRunner(9, 9, MovePolicy.random(), 77);
+        GameEngine recorder = runner.newEngine();
+        int[] moves = new int[recorder.maxMoves()];
+        SelfPlayStats recorded = new SelfPlayStats();
+        Path path = dir.resolve("games.journal");
+        try (JournalWriter journal = new JournalWriter(path, 9, 9)) {
+            recorder.setJournal(journal);
+            for (int game = 0; game < 200; game++) {
+                runner.playGame(recorder, game, moves);
+                recorded.addGame(recorder);
+            }
+        }
+
+        // Replaying reproduces every game exactly
+        SelfPlayStats replayed = new SelfPlayStats();
+        ReplayResult result = new JournalReplayer(runner.newEngine(), true).replay(path, replayed::addGame);
+        assertFalse(result.diverged(), result.toString());
+        assertEquals(200, result.games());
+        assertEquals(recorded.getMoves(), result.moves());
+        assertEquals(recorded.getMeanScore(), replayed.getMeanScore());
+
+        // Moving the first move of the first game is caught in that game
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int firstMove = JournalReplayer.HEADER_BYTES + 10;
+        buffer.putShort(firstMove, (short) (buffer.getShort(firstMove) ^ 1));
+        Files.write(path, bytes);
+        result = new JournalReplayer(runner.newEngine(), true).replay(path, null);
+        assertTrue(result.diverged());
+        assertEquals(0, result.divergentGame());
+
+        /* Sessions (the window's and the server's games) replay on an engine dealing after
+        each move, including the moves they undo, redo, or undo and play differently */
+        Path sessionPath = dir.resolve("sessions.journal");
+        GameSession session = new GameSession(9, 9, 0);
+        session.setHistory(new MoveHistory(session.getGrid()));
+        Random random = new Random(5);
+        long sessionScores = 0;
+        int undos = 0;
+        try (JournalWriter journal = new JournalWriter(sessionPath, 9, 9)) {
+            session.setJournal(journal);
+            for (long seed = 1; seed <= 20; seed++) {
+                session.newGame(seed);
+                int count;
+                while ((count = session.legalMoves(moves)) > 0) {
+                    session.place(moves[random.nextInt(count)]);
+                    if (random.nextInt(4) == 0 && session.undo()) {
+                        undos++;
+                        if (random.nextBoolean()) {
+                            session.redo();
+                        }
+                    }
+                }
+                // Take back the last move of the game and play it again
+                assertTrue(session.undo());
+                assertTrue(session.redo());
+                undos++;
+                assertTrue(session.isGameOver());
+                sessionScores += session.getScore();
+            }
+        }
+        assertTrue(undos > 20);
+        long[] replayedScores = new long[1];
+        result = new JournalReplayer(new GameEngine(9, 9, PieceGenerator.random(0), true), true)
+                .replay(sessionPath, engine -> replayedScores[0] += engine.getScore());
+        assertFalse(result.diverged(), result.toString());
+        assertEquals(20, result.games());
+        assertEquals(sessionScores, replayedScores[0]);
+
+        // A journal that was never closed ends at its zeroed tail, with or without verification
+        Path crashedPath = dir.resolve("crashed.journal");
+        JournalWriter crashed = new JournalWriter(crashedPath, 9, 9);
+        recorder.setJournal(crashed);
+        recorder.newGame(3);
+        for (int move = 0; move < 10; move++) {
+            recorder.applyMove(moves[random.nextInt(recorder.legalMoves(moves))]);
+        }
+        int crashedScore = recorder.getScore();
+        assertEquals(JournalWriter.MAP_SIZE, Files.size(crashedPath));
+        for (boolean verify : new boolean[] {true, false}) {
+            int[] crashedGame = new int[2];
+            result = new JournalReplayer(runner.newEngine(), verify).replay(crashedPath, engine -> {
+                crashedGame[0] = engine.getMovesPlayed();
+                crashedGame[1] = engine.getScore();
+            });
+            assertFalse(result.diverged(), result.toString());
+            assertEquals(1, result.games());
+            assertEquals(10, result.moves());
+            assertArrayEquals(new int[] {10, crashedScore}, crashedGame);
+        }
+        crashed.close();
+    }
+
+    @Test
+    public void testSnapshotSaveAndRestore(@TempDir Path dir) throws IOException {
+        // Play part of a game through the palette, leaving one slot placed
+        Palette dealt = new Palette(grid, PieceGenerator.random(31));
+        for (int move = 0; move < 10; move++) {
+            Piece piece = dealt.getPieces().get(move % dealt.getPieces().size());
+            long[] anchors = grid.getLegalAnchors(piece.getShape());
+            int index = 0;
+            while (anchors[index >>> 6] == 0) {
+                index += 64;
+            }
+            index += Long.numberOfTrailingZeros(anchors[index >>> 6]);
+            grid.placeShapeAt(piece.getShape(), grid.cellX(index), grid.cellY(index));
+            grid.clearFullRegions();
+            piece.state = PieceState.PLACED;
+            dealt.refresh();
+        }
+        dealt.getPieces().get(1).state = PieceState.PLACED;
+        dealt.removePiece(dealt.getPieces().get(1));
+
+        Path path = dir.resolve("save.bin");
+        GameSnapshot.capture(grid, dealt, 11, 42).save(path);
+        assertEquals(List.of(path), Files.list(dir).toList());
+
+        // Restoring into a fresh game gives the same board, palette and future deals
+        Grid restoredGrid = new Grid(9, 9);
+        Palette restored = new Palette(restoredGrid, PieceGenerator.random(0));
+        GameSnapshot snapshot = GameSnapshot.load(path);
+        snapshot.restore(restoredGrid, restored);
+        assertEquals(11, snapshot.getMovesPlayed());
+        assertEquals(42, snapshot.getSeed());
+        assertArrayEquals(grid.copyGrid(), restoredGrid.copyGrid());
+        assertEquals(grid.getScore(), restoredGrid.getScore());
+        assertEquals(2, restored.getPieces().size());
+        for (int i = 0; i < 2; i++) {
+            assertSame(dealt.getPieces().get(i).getShape(), restored.getPieces().get(i).getShape());
+        }
+        dealt.refresh();
+        restored.refresh();
+        assertArrayEquals(dealt.shapes, restored.shapes);
+        for (Shape shape : new ShapeSet().getShapes()) {
+            assertEquals(grid.getLegalMoveCount(shape), restoredGrid.getLegalMoveCount(shape));
+        }
+
+        // A version 1 save, from before seeds were saved, comes back with no seed
+        byte[] current = snapshot.encode();
+        ByteBuffer old = ByteBuffer.allocate(current.length - 8);
+        old.put(current, 0, current.length - 12).putShort(4, (short) 1);
+        CRC32 crc = new CRC32();
+        crc.update(old.array(), 0, old.position());
+        old.putInt((int) crc.getValue());
+        assertEquals(Leaderboard.NO_SEED, GameSnapshot.decode(old.array()).getSeed());
+
+        // A save with more palette slots than the game has is rejected, even with a valid checksum
+        GameSnapshot oversized = GameSnapshot.decode(current);
+        oversized.paletteIds = new int[] {-1, -1, -1, -1};
+        assertThrows(IOException.class, () -> GameSnapshot.decode(oversized.encode()));
+
+        // A damaged save is rejected rather than restored
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[12] ^= 1;
+        Files.write(path, bytes);
+        assertThrows(IOException.class, () -> GameSnapshot.load(path));
+    }
+
+    @Test
+    public void testPacedDragCoalescesEvents() throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            GameController controller = new GameController(grid, palette, 20, new GridBenchmark.StubView());
+            controller.setPacedDrag(true);
+            Piece piece = controller.pieces[0];
+            JPanel source = new JPanel();
+            int startX = piece.x + 8;
+            int startY = piece.y + 31;
+            controller.mousePressed(new MouseEvent(source, MouseEvent.MOUSE_PRESSED, 0, 0, startX, startY, 1, false));
+
+            // Motion events within one frame only record the pointer, the frame tick applies the last one
+            Metrics metrics = new Metrics();
+            metrics.reset();
+            Metrics.enabled = true;
+            try {
+                for (int i = 1; i <= 10; i++) {
+                    controller.mouseDragged(new MouseEvent(source, MouseEvent.MOUSE_DRAGGED, 0, 0,
+                            startX + i, startY - 10 * i, 0, false));
+                }
+                assertEquals(Palette.PALETTE_X, piece.x);
+                controller.frameTick();
+            } finally {
+                Metrics.enabled = false;
+            }
+            assertEquals(Palette.PALETTE_X + 10, piece.x);
+            assertEquals(10, controller.getDragEvents());
+            assertEquals(1, controller.getDragUpdates());
+            assertEquals(9, controller.getCoalescedDragEvents());
+            // The counts reach Metrics too, rather than being printed when the mode is toggled
+            assertEquals(10, metrics.getDragEvents());
+            assertEquals(9, metrics.getCoalescedDragEvents());
+
+            // In immediate mode every event is processed
+            controller.setPacedDrag(false);
+            controller.mouseDragged(new MouseEvent(source, MouseEvent.MOUSE_DRAGGED, 0, 0,
+                    startX + 20, startY - 100, 0, false));
+            assertEquals(Palette.PALETTE_X + 20, piece.x);
+            assertEquals(2, controller.getDragUpdates());
+        });
+    }
+
+    @Test
+    public void testDragPreviewsOnlyNewCells() throws Exception {
+        // Count the previews the controller asks the model for and the repaints it asks the view for
+        AtomicInteger previews = new AtomicInteger();
+        AtomicInteger repaints = new AtomicInteger();
+        AtomicInteger changeRepaints = new AtomicInteger();
+        GameModel model = new GameModel(grid, palette) {
+            @Override
+            public void preview(int slot, int x, int y) {
+                previews.incrementAndGet();
+                super.preview(slot, x, y);
+            }
+        };
+        BoardView view = new GridBenchmark.StubView() {
+            @Override
+            public void repaint() {
+                repaints.incrementAndGet();
+            }
+
+            @Override
+            public void repaintChanges() {
+                changeRepaints.incrementAndGet();
+            }
+        };
+        GameController[] controller = new GameController[1];
+        int[] pointer = new int[2];
+        SwingUtilities.invokeAndWait(() -> {
+            controller[0] = new GameController(model, 20, view);
+            Piece piece = controller[0].pieces[0];
+            pointer[0] = piece.x + 8;
+            pointer[1] = piece.y + 31;
+            controller[0].mousePressed(new MouseEvent(new JPanel(), MouseEvent.MOUSE_PRESSED, 0, 0,
+                    pointer[0], pointer[1], 1, false));
+            // Onto the board, then right until the piece has just snapped to the next column of cells
+            pointer[1] = 55 + 30 + 40;
+            drag(controller[0], pointer);
+            int cellX = piece.getSnappedCellX();
+            while (piece.getSnappedCellX() == cellX) {
+                pointer[0]++;
+                drag(controller[0], pointer);
+            }
+        });
+        settle(model);
+        BoardSnapshot entered = model.getSnapshot();
+        assertNotNull(entered.ghost());
+        int previewsBefore = previews.get();
+        int repaintsBefore = repaints.get();
+        int changesBefore = changeRepaints.get();
+
+        // Moving within the cell repaints only the moved piece, and asks for no preview
+        SwingUtilities.invokeAndWait(() -> {
+            Piece piece = controller[0].selectedPiece;
+            int cellX = piece.getSnappedCellX();
+            for (int i = 0; i < 5; i++) {
+                pointer[0]++;
+                drag(controller[0], pointer);
+            }
+            assertEquals(cellX, piece.getSnappedCellX());
+            // An event that does not move the piece requests nothing at all
+            drag(controller[0], pointer);
+        });
+        settle(model);
+        assertEquals(previewsBefore, previews.get());
+        assertEquals(repaintsBefore, repaints.get());
+        assertEquals(changesBefore + 5, changeRepaints.get());
+        assertSame(entered, model.getSnapshot());
+
+        // Crossing into the next cell asks for its preview, whose snapshot is repainted when it arrives
+        SwingUtilities.invokeAndWait(() -> {
+            pointer[0] += 40;
+            drag(controller[0], pointer);
+        });
+        settle(model);
+        assertEquals(previewsBefore + 1, previews.get());
+        assertEquals(repaintsBefore, repaints.get());
+        assertEquals(changesBefore + 5 + 2, changeRepaints.get());
+        assertNotEquals(entered.ghost(), model.getSnapshot().ghost());
+        model.shutdown();
+    }
+
+    private static void drag(GameController controller, int[] pointer) {
+        controller.mouseDragged(new MouseEvent(new JPanel(), MouseEvent.MOUSE_DRAGGED, 0, 0,
+                pointer[0], pointer[1], 0, false));
+    }
+
+    // Waits for the model to answer every request so far and for the EDT to apply its snapshots
+    private static void settle(GameModel model) throws Exception {
+        model.executor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+        SwingUtilities.invokeAndWait(() -> { });
+    }
+
+    @Test
+    public void testModelPublishesSnapshots() {
+        GameModel model = new GameModel(grid, palette);
+        BoardSnapshot first = model.getSnapshot();
+        assertEquals(9, first.numRows());
+        assertArrayEquals(palette.shapes, first.palette());
+        assertNull(first.ghost());
+
+        // A preview that fits shows the ghost, one that sticks out of the board shows none
+        model.preview(0, 0, 0);
+        model.awaitIdle();
+        Shape ghost = model.getSnapshot().ghost();
+        assertNotNull(ghost);
+        assertEquals(first.palette()[0].size(), ghost.size());
+        model.preview(0, 20, 20);
+        model.awaitIdle();
+        assertNull(model.getSnapshot().ghost());
+
+        // A drop publishes the new board, earlier snapshots keep showing the old one
+        model.drop(0, 0, 0);
+        model.awaitIdle();
+        BoardSnapshot dropped = model.getSnapshot();
+        assertTrue(dropped.isCellFilled(0, 0));
+        assertFalse(first.isCellFilled(0, 0));
+        assertNotEquals(first.boardVersion(), dropped.boardVersion());
+        assertEquals(1, dropped.movesPlayed());
+        assertEquals(1, dropped.drops());
+
+        // A drop that does not fit changes nothing but is still answered
+        model.drop(1, 0, 0);
+        model.awaitIdle();
+        assertEquals(dropped.boardVersion(), model.getSnapshot().boardVersion());
+        assertEquals(1, model.getSnapshot().movesPlayed());
+        assertEquals(2, model.getSnapshot().drops());
+        model.shutdown();
+    }
+
+    @Test
+    public void testMetricsMergePerThreadRecorders() throws Exception {
+        // Percentiles are within a bucket's width, 1/8 of the value
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_000, histogram.getPercentileNanos(0.5), 500_000 / 8.0);
+        assertEquals(990_000, histogram.getPercentileNanos(0.99), 990_000 / 8.0);
+        assertEquals(1_000_000, histogram.getMaxNanos());
+
+        try {
+            // Nothing is recorded while disabled
+            Metrics metrics = new Metrics();
+            metrics.setEnabled(false);
+            metrics.reset();
+            grid.clearFullRegions();
+            assertEquals(0, Metrics.merged().timers[Metrics.Timer.CLEAR_FULL_REGIONS.ordinal()].getCount());
+
+            // Two threads record into their own recorders, merged when read
+            metrics.setEnabled(true);
+            Thread[] threads = new Thread[2];
+            for (int t = 0; t < threads.length; t++) {
+                Grid own = new Grid(9, 9);
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        own.clearFullRegions();
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(2000, Metrics.merged().timers[Metrics.Timer.CLEAR_FULL_REGIONS.ordinal()].getCount());
+            // Once the threads end their recorders are folded into the retired totals, counted once
+            assertTrue(Metrics.recorders.stream().noneMatch(Metrics.Recorder::isRetired));
+            assertEquals(2000, Metrics.merged().timers[Metrics.Timer.CLEAR_FULL_REGIONS.ordinal()].getCount());
+
+            // A move clearing a row and a square is counted by region type
+            for (int col = 0; col < 9; col++) {
+                grid.fillCell(0, col);
+            }
+            for (int row = 1; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    grid.fillCell(row, col);
+                }
+            }
+            grid.clearFullRegions();
+            Metrics.countMove(grid);
+            assertEquals(1, metrics.getMoves());
+            assertEquals(1, metrics.getRowClears());
+            assertEquals(0, metrics.getColumnClears());
+            assertEquals(1, metrics.getSquareClears());
+
+            // The same totals are read over JMX
+            Metrics.register();
+            assertEquals(1L, java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(new javax.management.ObjectName(Metrics.OBJECT_NAME), "Moves"));
+
+            metrics.reset();
+            assertEquals(0, metrics.getMoves());
+            assertEquals(0, Metrics.merged().timers[Metrics.Timer.CLEAR_FULL_REGIONS.ordinal()].getCount());
+        } finally {
+            Metrics.enabled = false;
+        }
+    }
+
+    @Test
+    public void testPerformanceHudSamples() throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            PerformanceHud hud = new PerformanceHud();
+            hud.setVisible(true);
+            hud.sampler.stop();
+            int[] samples = new int[1];
+            hud.onSample = () -> samples[0]++;
+
+            // Three frames, the slowest paint taking 4 ms, and two input events
+            hud.framePainted(1_000_000);
+            hud.framePainted(4_000_000);
+            hud.framePainted(2_000_000);
+            hud.eventHandled();
+            hud.eventHandled();
+            hud.sample();
+            assertEquals(1, samples[0]);
+            assertEquals(4.0, hud.latest(PerformanceHud.PAINT), 1e-6);
+            assertTrue(hud.latest(PerformanceHud.FRAME) > 0);
+            assertTrue(hud.latest(PerformanceHud.EVENTS) > 0);
+
+            // Nothing happened in the next window, and the layer is only re-rendered after a sample
+            hud.sample();
+            assertEquals(0, hud.latest(PerformanceHud.PAINT));
+            assertEquals(0, hud.latest(PerformanceHud.FRAME));
+            assertEquals(0, hud.latest(PerformanceHud.EVENTS));
+            java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(400, 600,
+                    java.awt.image.BufferedImage.TYPE_INT_RGB);
+            java.awt.Graphics2D g = image.createGraphics();
+            hud.paint(g, 400, 600);
+            java.awt.image.BufferedImage layer = hud.layer;
+            hud.paint(g, 400, 600);
+            assertSame(layer, hud.layer);
+            assertFalse(hud.layerStale);
+            java.awt.Rectangle bounds = hud.bounds(400, 600);
+            assertEquals(PerformanceHud.BACKGROUND.getRGB(), image.getRGB(bounds.x + bounds.width - 1, bounds.y));
+            g.dispose();
+            hud.setVisible(false);
+        });
+    }
+
+    @Test
+    public void testGameServerSessions() throws IOException {
+        try (GameServer server = new GameServer(0, 2, 9, 9);
+             java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open(
+                     new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), server.getPort()))) {
+            server.start();
+            ByteBuffer out = ByteBuffer.allocate(1024);
+            ByteBuffer in = ByteBuffer.allocate(GameProtocol.MAX_FRAME_BYTES);
+
+            // Pipeline a new game with a request for its legal moves, the first session is id 1
+            GameProtocol.newGame(out, 7);
+            GameProtocol.request(out, GameProtocol.LEGAL_MOVES, 1);
+            ByteBuffer created = roundTrip(channel, out, in);
+            assertEquals(GameProtocol.OK, created.get());
+            assertEquals(1, created.getInt());
+            ByteBuffer legal = roundTrip(channel, out, in);
+            assertEquals(GameProtocol.OK, legal.get());
+            legal.getInt();
+
+            // The server plays the same engine as a local session with the seed
+            GameSession local = new GameSession(9, 9, 7);
+            int[] moves = new int[local.maxMoves()];
+            int count = local.legalMoves(moves);
+            assertEquals(count, legal.getInt());
+            for (int i = 0; i < count; i++) {
+                assertEquals(moves[i], legal.getInt());
+            }
+
+            GameProtocol.place(out, 1, moves[count - 1]);
+            ByteBuffer placed = roundTrip(channel, out, in);
+            assertEquals(GameProtocol.OK, placed.get());
+            placed.getInt();
+            assertEquals(local.place(moves[count - 1]), placed.getInt());
+            assertEquals(local.getScore(), placed.getInt());
+            assertEquals(0, placed.get());
+
+            GameProtocol.request(out, GameProtocol.STATE, 1);
+            ByteBuffer state = roundTrip(channel, out, in);
+            assertEquals(GameProtocol.OK, state.get());
+            state.getInt();
+            assertEquals(9, state.get());
+            assertEquals(9, state.get());
+            assertEquals(local.getScore(), state.getInt());
+            assertEquals(1, state.getInt());
+            assertEquals(0, state.get());
+            for (Shape shape : local.getPalette().shapes) {
+                assertEquals(shape.id, state.getInt());
+            }
+            GameSnapshot snapshot = GameSnapshot.capture(local.getGrid(), local.getPalette(), 1, 0);
+            for (long word : snapshot.cells) {
+                assertEquals(word, state.getLong());
+            }
+            assertEquals(1, server.getSessionCount());
+
+            // Illegal moves change nothing, and closed sessions are gone
+            GameProtocol.place(out, 1, GameEngine.move(0, 200, 200));
+            ByteBuffer illegal = roundTrip(channel, out, in);
+            illegal.get();
+            illegal.getInt();
+            assertEquals(-1, illegal.getInt());
+            GameProtocol.request(out, GameProtocol.CLOSE, 1);
+            assertEquals(GameProtocol.OK, roundTrip(channel, out, in).get());
+            GameProtocol.request(out, GameProtocol.STATE, 1);
+            assertEquals(GameProtocol.NO_SESSION, roundTrip(channel, out, in).get());
+            assertEquals(0, server.getSessionCount());
+        }
+
+        // Boards whose legal moves or sides the frames cannot carry are refused before binding
+        assertThrows(IllegalArgumentException.class, () -> new GameServer(0, 1, 74, 74));
+        assertThrows(IllegalArgumentException.class, () -> new GameServer(0, 1, 128, 8));
+        new GameServer(0, 1, 73, 73).close();
+    }
+
+    // Send whatever requests are queued, then read one response body
+    private static ByteBuffer roundTrip(java.nio.channels.SocketChannel channel, ByteBuffer out, ByteBuffer in)
+            throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+        in.flip();
+        while (GameProtocol.frameLength(in) < 0) {
+            in.compact();
+            if (channel.read(in) < 0) {
+                throw new IOException("Server closed the connection");
+            }
+            in.flip();
+        }
+        int length = in.getInt();
+        ByteBuffer body = ByteBuffer.wrap(Arrays.copyOfRange(in.array(), in.position(), in.position() + length));
+        in.position(in.position() + length);
+        in.compact();
+        return body;
+    }
+
+    @Test
+    public void testArenaMatchesEngine() {
+        // A policy that reads the position is shown each game as an engine would see it
+        MovePolicy checked = (engine, moves, count, random) -> {
+            assertEquals(count, engine.legalMoves(new int[engine.maxMoves()]));
+            return moves[random.nextInt(count)];
+        };
+        // Games in the arena play exactly as engines dealing uniformly from the same stream, on any box size
+        for (int[] size : new int[][] {{9, 9, 3}, {16, 16, 4}, {10, 7, 3}}) {
+            GameArena arena = new GameArena(5, size[0], size[1], size[2]);
+            arena.newGames(11);
+            long moved;
+            int step = 0;
+            do {
+                moved = arena.stepAll(step++ % 2 == 0 ? MovePolicy.random() : checked, 2);
+            } while (moved > 0);
+            arena.close();
+
+            for (int game = 0; game < arena.getGameCount(); game++) {
+                PieceGenerator generator = new PieceGenerator(PieceDistribution.uniform(new ShapeSet().getShapes()),
+                        SelfPlayRunner.seedFor(11, game));
+                Grid board = new Grid(size[0], size[1], size[2]);
+                Shape[] dealt = new Shape[GameEngine.PALETTE_SIZE];
+                generator.deal(dealt, board);
+                GameEngine engine = new GameEngine(board, dealt, generator, false);
+                int[] moves = new int[engine.maxMoves()];
+                int count;
+                while ((count = engine.legalMoves(moves)) > 0) {
+                    engine.applyMove(moves[generator.random.nextInt(count)]);
+                }
+                assertTrue(arena.isGameOver(game));
+                assertEquals(engine.getScore(), arena.getScore(game));
+                assertEquals(engine.getMovesPlayed(), arena.getMovesPlayed(game));
+                for (int x = 0; x < size[0]; x++) {
+                    for (int y = 0; y < size[1]; y++) {
+                        assertEquals(board.isCellFilled(x, y), arena.isCellFilled(game, x, y));
+                    }
+                }
+                for (int slot = 0; slot < GameEngine.PALETTE_SIZE; slot++) {
+                    assertSame(engine.getPaletteShape(slot), arena.getPaletteShape(game, slot));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLeaderboardRanksAndRecovers(@TempDir Path dir) throws Exception {
+        // Games recorded from several threads are all ranked, whichever stripe they went through
+        Path path = dir.resolve("scores.log");
+        int ruleset = Leaderboard.ruleset(9, 9, 3);
+        Leaderboard leaderboard = new Leaderboard(path);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int thread = t;
+            writers[t] = new Thread(() -> {
+                for (int game = 0; game < 1000; game++) {
+                    leaderboard.record((game * 7 + thread) % 500, game, thread * 1000L + game,
+                            thread == 3 ? Leaderboard.ruleset(18, 18, 3) : ruleset);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        leaderboard.flush();
+        assertEquals(4000, leaderboard.getCount());
+        assertEquals(1, leaderboard.rank(499));
+        assertEquals(1 + 8 * 3, leaderboard.rank(496));
+        assertEquals(4000 - 8 + 1, leaderboard.rank(0));
+        List<Leaderboard.Score> top = leaderboard.topK(10);
+        assertEquals(10, top.size());
+        assertEquals(499, top.get(0).score());
+        assertEquals(498, top.get(9).score());
+        assertEquals((7 * 7 + 2) % 500, leaderboard.bestForSeed(2007));
+        assertEquals(-1, leaderboard.bestForSeed(5000));
+        assertEquals(499, leaderboard.bestForRuleset(Leaderboard.ruleset(18, 18, 3)).score());
+        assertNull(leaderboard.bestForRuleset(Leaderboard.ruleset(10, 10, 5)));
+        leaderboard.close();
+
+        // A torn record at the end of the log is cut off, the games before it are kept
+        Files.write(path, new byte[Leaderboard.RECORD_BYTES / 2], StandardOpenOption.APPEND);
+        Leaderboard reopened = new Leaderboard(path);
+        assertEquals(4000, reopened.getCount());
+        assertEquals(Leaderboard.LOG_HEADER_BYTES + 4000L * Leaderboard.RECORD_BYTES, Files.size(path));
+        reopened.record(1000, 1, 42, ruleset);
+        reopened.flush();
+        // Left open as if the process died: the next open rebuilds the index from the log
+        Leaderboard recovered = new Leaderboard(path);
+        assertEquals(4001, recovered.getCount());
+        assertEquals(1, recovered.rank(1000));
+        assertEquals(2, recovered.rank(499));
+        assertEquals(1000, recovered.bestForSeed(42));
+        assertEquals(top.subList(0, 9), recovered.topK(10).subList(1, 10));
+        recovered.close();
+
+        // A session's game is recorded once, however often its ending is undone and played again
+        Leaderboard sessions = new Leaderboard(dir.resolve("sessions.log"));
+        GameSession session = new GameSession(9, 9, 3);
+        session.setHistory(new MoveHistory(session.getGrid()));
+        session.setLeaderboard(sessions, 3);
+        int[] moves = new int[session.maxMoves()];
+        Random random = new Random(3);
+        int count;
+        while ((count = session.legalMoves(moves)) > 0) {
+            session.place(moves[random.nextInt(count)]);
+        }
+        assertTrue(session.isGameOver());
+        int score = session.getScore();
+        for (int attempt = 0; attempt < 3; attempt++) {
+            assertTrue(session.undo());
+            assertFalse(session.isGameOver());
+            assertTrue(session.redo());
+            assertTrue(session.isGameOver());
+        }
+        sessions.flush();
+        assertEquals(1, sessions.getCount());
+        assertEquals(score, sessions.bestForSeed(3));
+        session.newGame(4);
+        while ((count = session.legalMoves(moves)) > 0) {
+            session.place(moves[random.nextInt(count)]);
+        }
+        sessions.flush();
+        assertEquals(2, sessions.getCount());
+
+        // A game with no known seed is ranked but kept out of the seed table
+        sessions.record(score, 1, Leaderboard.NO_SEED, ruleset);
+        sessions.flush();
+        assertEquals(3, sessions.getCount());
+        assertEquals(-1, sessions.bestForSeed(Leaderboard.NO_SEED));
+        sessions.close();
+    }
+
+    @Test
+    public void testTrajectoriesRoundTrip(@TempDir Path dir) throws IOException {
+        // Play a few thousand moves, remembering each transition as the engine saw it
+        GameEngine engine = new GameEngine(9, 9, PieceGenerator.random(5));
+        List<long[]> expected = new ArrayList<>();
+        Random random = new Random(5);
+        int[] moves = new int[engine.maxMoves()];
+        long game = 0;
+        while (expected.size() < 2 * TrajectoryExporter.BLOCK_RECORDS + 100) {
+            game = random.nextLong();
+            engine.newGame(game);
+            int count;
+            while ((count = engine.legalMoves(moves)) > 0) {
+                int move = moves[random.nextInt(count)];
+                long filled = engine.getGrid().isCellFilled(4, 4) ? 1 : 0;
+                int shapeId = engine.getPaletteShape(GameEngine.moveSlot(move)).id;
+                int score = engine.getScore();
+                int cleared = engine.applyMove(move);
+                expected.add(new long[] {game, move, shapeId, filled, cleared, engine.getScore() - score,
+                        engine.isGameOver() ? 1 : 0});
+            }
+        }
+
+        for (int level : new int[] {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED}) {
+            // One buffered block, so the engine waits on the writer between blocks
+            Path path = dir.resolve("trajectories-" + level + ".bpt");
+            try (TrajectoryExporter exporter = new TrajectoryExporter(path, 9, 9, 1, level)) {
+                GameEngine replay = new GameEngine(9, 9, PieceGenerator.random(5));
+                replay.setTrajectory(exporter.recorder());
+                int index = 0;
+                while (index < expected.size()) {
+                    replay.newGame(expected.get(index)[0]);
+                    do {
+                        replay.applyMove((int) expected.get(index++)[1]);
+                    } while (index < expected.size() && expected.get(index)[0] == expected.get(index - 1)[0]);
+                }
+                replay.getTrajectory().flush();
+            }
+
+            try (TrajectoryReader reader = new TrajectoryReader(path)) {
+                for (long[] transition : expected) {
+                    assertTrue(reader.next());
+                    int slot = GameEngine.moveSlot(reader.move());
+                    assertArrayEquals(transition, new long[] {reader.game(), reader.move(), reader.paletteId(slot),
+                            reader.isCellFilled(4, 4) ? 1 : 0, reader.cleared(), reader.scoreDelta(),
+                            reader.isGameOver() ? 1 : 0});
+                }
+                assertFalse(reader.next());
+            }
+        }
+
+        /* One-transition blocks, as a run's last partial block can be, from each position of
+        the first game: some do not shrink and are stored raw */
+        int rawBlocks = 0;
+        for (int played = 0; expected.get(played)[0] == expected.get(0)[0]; played++) {
+            Path tiny = dir.resolve("tiny-" + played + ".bpt");
+            int before = played;
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                try (TrajectoryExporter exporter = new TrajectoryExporter(tiny, 9, 9, 1, Deflater.BEST_SPEED)) {
+                    engine.newGame(expected.get(0)[0]);
+                    for (int move = 0; move < before; move++) {
+                        engine.applyMove((int) expected.get(move)[1]);
+                    }
+                    TrajectoryExporter.Recorder recorder = exporter.recorder();
+                    engine.setTrajectory(recorder);
+                    recorder.startGame(expected.get(0)[0]);
+                    engine.applyMove((int) expected.get(before)[1]);
+                    recorder.flush();
+                    engine.setTrajectory(null);
+                }
+            });
+            if (Files.size(tiny) == TrajectoryExporter.HEADER_BYTES + TrajectoryExporter.BLOCK_HEADER_BYTES + 40) {
+                rawBlocks++;
+            }
+            try (TrajectoryReader reader = new TrajectoryReader(tiny)) {
+                assertTrue(reader.next());
+                assertEquals(expected.get(0)[0], reader.game());
+                assertEquals(expected.get(played)[1], reader.move());
+                assertEquals(expected.get(played)[5], reader.scoreDelta());
+                assertFalse(reader.next());
+            }
+        }
+        assertTrue(rawBlocks > 0);
+    }
+
+    @Test
+    public void testShapeViewsAndCellFlyweights() {
+        // A translated shape is a view equal to (and hashing like) a copy of the moved cells
+        Shape shape = new Shape(List.of(new Cell(0, 0), new Cell(1, 0), new Cell(1, 1)), 2, 2);
+        Shape moved = shape.translate(3, 4).translate(1, 1);
+        List<Cell> copy = List.of(new Cell(4, 5), new Cell(5, 5), new Cell(5, 6));
+        assertSame(shape, moved.base);
+        assertEquals(copy, moved);
+        assertEquals(moved, copy);
+        assertEquals(copy.hashCode(), moved.hashCode());
+        assertEquals(new Shape(copy, 2, 2), moved);
+        assertEquals(2, moved.getShapeWidth());
+
+        // Board cells are shared instances
+        assertSame(Cell.of(5, 6), moved.get(2));
+        assertEquals(new Cell(20, -1), Cell.of(20, -1));
+        assertThrows(IllegalArgumentException.class, () -> new Shape(List.of(new Cell(1 << 16, 0)), 1, 1));
+    }
+
+    @Test
+    public void testUndoRedoRestoresGames() {
+        // Undoing a whole game walks back through every position, clears and deals included
+        GameEngine engine = new GameEngine(9, 9, PieceGenerator.random(3));
+        engine.setHistory(new MoveHistory(engine.getGrid()));
+        Random random = new Random(3);
+        int[] moves = new int[engine.maxMoves()];
+        List<String> positions = new ArrayList<>();
+        int count;
+        int cleared = 0;
+        while ((count = engine.legalMoves(moves)) > 0) {
+            positions.add(position(engine, moves, count));
+            cleared += engine.applyMove(moves[random.nextInt(count)]);
+        }
+        positions.add(position(engine, moves, 0));
+        assertTrue(cleared > 0);
+
+        for (int i = positions.size() - 2; i >= 0; i--) {
+            assertTrue(engine.undoMove());
+            assertEquals(positions.get(i), position(engine, moves, engine.legalMoves(moves)));
+        }
+        assertFalse(engine.undoMove());
+        for (int i = 1; i < positions.size(); i++) {
+            assertTrue(engine.redoMove());
+            assertEquals(positions.get(i), position(engine, moves, engine.legalMoves(moves)));
+        }
+        assertFalse(engine.redoMove());
+
+        // A session undoes its deal too, and the ring keeps only its last moves
+        GameSession session = new GameSession(9, 9, 8);
+        session.setHistory(new MoveHistory(session.getGrid(), 4));
+        String start = Arrays.toString(session.getPalette().shapes) + Arrays.toString(session.getGrid().grid);
+        List<String> played = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            session.legalMoves(moves);
+            session.place(moves[0]);
+            played.add(Arrays.toString(session.getPalette().shapes) + Arrays.toString(session.getGrid().grid));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(session.undo());
+        }
+        assertFalse(session.undo());
+        assertEquals(2, session.getMovesPlayed());
+        assertEquals(played.get(1), Arrays.toString(session.getPalette().shapes)
+                + Arrays.toString(session.getGrid().grid));
+        assertTrue(session.redo());
+        assertEquals(played.get(2), Arrays.toString(session.getPalette().shapes)
+                + Arrays.toString(session.getGrid().grid));
+        // A new move drops what could have been redone
+        session.legalMoves(moves);
+        session.place(moves[1]);
+        assertFalse(session.redo());
+        assertNotEquals(start, played.get(0));
+    }
+
+    // Board, score, clear counts, palette and legal moves of the engine's position
+    private static String position(GameEngine engine, int[] moves, int count) {
+        Grid board = engine.getGrid();
+        StringBuilder position = new StringBuilder(Arrays.toString(board.grid));
+        position.append(board.getScore()).append(Arrays.toString(board.clearCounts));
+        for (int slot = 0; slot < GameEngine.PALETTE_SIZE; slot++) {
+            position.append(engine.getPaletteShape(slot) == null ? -1 : engine.getPaletteShape(slot).id).append(',');
+        }
+        position.append(engine.getMovesPlayed()).append(engine.getGenerator().getState());
+        int[] sorted = Arrays.copyOf(moves, count);
+        Arrays.sort(sorted);
+        return position.append(Arrays.toString(sorted)).toString();
+    }
+
     @Test
     public void testGameOver() {
         // Create a grid with all cells filled to simulate a game-over scenario
@@ -133,7 +1310,7 @@ public class BlockPuzzleTest {
         for (int row = 0; row < grid.getNumRows(); row++) {
             for (int col = 0; col < grid.getNumCols(); col++) {
                 // Mark the cell as filled
-                grid.grid[row][col] = 1;
+                grid.fillCell(row, col);
             }
         }
 
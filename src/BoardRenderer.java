@@ -0,0 +1,272 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/* BoardRenderer class painting a BoardSnapshot, the palette and the dragged piece
+for GameView. The background, cell outlines and placed cells are rendered into an opaque
+off-screen layer at the screen's pixel scale and only re-rendered when the board
+changes, so the board is a single image copy per frame. It also tracks where the overlays (dragged piece,
+ghost, poppable regions and hint) were last drawn, so a drag only needs to repaint
+the union of their old and new bounds, and times every paint */
+public class BoardRenderer {
+    static final int GRID_CELL_SIZE = 40;
+    static final int PALETTE_CELL_SIZE = GRID_CELL_SIZE / 2;
+    static final int Y_OFFSET = 55;
+    static final int PALETTE_TOP = 420;
+    static final Color GRID_COLOR = Color.GRAY;
+    static final Color MINI_GRID_COLOR = Color.BLACK;
+    static final Color GRID_CELL_FILLED_COLOR = Color.GREEN;
+    static final Color PALETTE_BACKGROUND = Color.GRAY;
+    static final Color GHOST_SHAPE_COLOR = new Color(0, 255, 255, 128);
+    static final Color POPPABLE_REGION_COLOR = new Color(0, 0, 0, 128);
+    static final Color HINT_COLOR = new Color(255, 215, 0, 160);
+
+    // The EDT's pieces: the one being dragged and those waiting in the palette
+    Piece selectedPiece;
+    List<Piece> palettePieces = List.of();
+
+    // Behind the board, the layer is opaque so copying it needs no blending
+    Color background = Color.WHITE;
+    // Off for painting every cell on every frame, as a reference for the cached layer
+    boolean cacheLayers = true;
+    // Background, cell outlines and placed cells, valid for one board version and scale
+    BufferedImage cellLayer;
+    int cellLayerVersion;
+    double cellLayerScale;
+
+    // Bounds of the overlays as of the last dirty area handed out
+    Rectangle paintedOverlay;
+
+    long paintCount;
+    long paintNanos;
+    long lastPaintNanos;
+
+    /* Paints the snapshot and pieces inside the graphics' clip, width and height are
+    the component's size */
+    public void paint(Graphics2D g, BoardSnapshot snapshot, int width, int height) {
+        long start = System.nanoTime();
+        if (cacheLayers) {
+            // Copy the layer pixel for pixel, without going through the scaling transform
+            AffineTransform transform = g.getTransform();
+            BufferedImage layer = cellLayer(snapshot, g.getDeviceConfiguration(), transform.getScaleX());
+            g.setTransform(AffineTransform.getTranslateInstance(transform.getTranslateX(), transform.getTranslateY()));
+            g.drawImage(layer, 0, 0, null);
+            g.setTransform(transform);
+        } else {
+            paintGrid(g, snapshot);
+        }
+        paintHint(g, snapshot.hint());
+        paintMiniGrid(g, snapshot);
+        paintGhostShape(g, snapshot.ghost());
+        paintPoppableRegions(g, snapshot);
+        paintPalette(g, width, height);
+        paintDraggedPiece(g);
+
+        lastPaintNanos = System.nanoTime() - start;
+        paintNanos += lastPaintNanos;
+        paintCount++;
+    }
+
+    /* Area to repaint for the overlay changes since the last call: the union of where
+    the overlays were and where they are now, or null if nothing is drawn in either */
+    public Rectangle takeDirtyArea(BoardSnapshot snapshot) {
+        Rectangle current = overlayBounds(snapshot);
+        Rectangle dirty = union(paintedOverlay, current);
+        paintedOverlay = current;
+        return dirty;
+    }
+
+    // Bounds of the dragged piece, ghost shape, poppable regions and hint, or null if none is drawn
+    Rectangle overlayBounds(BoardSnapshot snapshot) {
+        Rectangle bounds = null;
+        if (selectedPiece != null && selectedPiece.state == PieceState.IN_PLAY) {
+            for (Cell cell : selectedPiece.getShape()) {
+                // The border is drawn one pixel beyond the cell
+                bounds = union(bounds, new Rectangle(selectedPiece.getX() + cell.x() * GRID_CELL_SIZE,
+                        selectedPiece.getY() + cell.y() * GRID_CELL_SIZE, PALETTE_CELL_SIZE + 1, PALETTE_CELL_SIZE + 1));
+            }
+        }
+        bounds = union(bounds, cellBounds(snapshot.ghost()));
+        if (snapshot.poppableRegions() != null && snapshot.ghost() != null) {
+            for (Shape region : snapshot.poppableRegions()) {
+                bounds = union(bounds, cellBounds(region));
+            }
+        }
+        return union(bounds, cellBounds(snapshot.hint()));
+    }
+
+    // Bounds of the board cells of a shape in grid coordinates, or null for no shape
+    private Rectangle cellBounds(Shape shape) {
+        if (shape == null || shape.isEmpty()) {
+            return null;
+        }
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (Cell cell : shape) {
+            minX = Math.min(minX, cell.x());
+            minY = Math.min(minY, cell.y());
+            maxX = Math.max(maxX, cell.x());
+            maxY = Math.max(maxY, cell.y());
+        }
+        return new Rectangle(minX * GRID_CELL_SIZE, Y_OFFSET + minY * GRID_CELL_SIZE,
+                (maxX - minX + 1) * GRID_CELL_SIZE + 1, (maxY - minY + 1) * GRID_CELL_SIZE + 1);
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        return a == null ? b : b == null ? a : a.union(b);
+    }
+
+    // Width and height of the board area, including the outer box lines
+    static int boardWidth(BoardSnapshot snapshot) {
+        return snapshot.numRows() * GRID_CELL_SIZE + 2;
+    }
+
+    static int boardHeight(BoardSnapshot snapshot) {
+        return Y_OFFSET + snapshot.numCols() * GRID_CELL_SIZE + 2;
+    }
+
+    // The cell layer for the snapshot's board, re-rendered only if the board or scale changed
+    private BufferedImage cellLayer(BoardSnapshot snapshot, GraphicsConfiguration configuration, double scale) {
+        if (cellLayer == null || cellLayerVersion != snapshot.boardVersion() || cellLayerScale != scale) {
+            int width = (int) Math.ceil(boardWidth(snapshot) * scale);
+            int height = (int) Math.ceil(boardHeight(snapshot) * scale);
+            if (cellLayer == null || cellLayer.getWidth() != width || cellLayer.getHeight() != height) {
+                // In the screen's own format, so copying it needs no conversion and can be accelerated
+                cellLayer = configuration.createCompatibleImage(width, height);
+            }
+            Graphics2D g = cellLayer.createGraphics();
+            g.setColor(background);
+            g.fillRect(0, 0, width, height);
+            g.scale(scale, scale);
+            paintGrid(g, snapshot);
+            g.dispose();
+            cellLayerVersion = snapshot.boardVersion();
+            cellLayerScale = scale;
+        }
+        return cellLayer;
+    }
+
+    public void paintGrid(Graphics g, BoardSnapshot snapshot) {
+        g.setColor(GRID_COLOR);
+        for (int i = 0; i < snapshot.numRows(); i++) {
+            for (int j = 0; j < snapshot.numCols(); j++) {
+                if (snapshot.isCellFilled(i, j)) {
+                    g.setColor(GRID_CELL_FILLED_COLOR);
+                    g.fillRect(i * GRID_CELL_SIZE, Y_OFFSET + j * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
+                    g.setColor(GRID_COLOR);
+                }
+                g.drawRect(i * GRID_CELL_SIZE, Y_OFFSET + j * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
+            }
+        }
+    }
+
+    /* Draws the box outlines 2px thick, as filled bars centred on the box edges (the
+    pixels a 2px stroke covers) so no stroked shapes are rasterised each frame. Rows run
+    across the screen as in paintGrid, and only whole boxes are outlined, as only they clear */
+    public void paintMiniGrid(Graphics2D g, BoardSnapshot snapshot) {
+        g.setColor(MINI_GRID_COLOR);
+        int box = snapshot.boxSize();
+        int side = box * GRID_CELL_SIZE;
+        for (int i = 0; i + box <= snapshot.numRows(); i += box) {
+            for (int j = 0; j + box <= snapshot.numCols(); j += box) {
+                int x = i * GRID_CELL_SIZE;
+                int y = Y_OFFSET + j * GRID_CELL_SIZE;
+                g.fillRect(x - 1, y - 1, side + 2, 2);
+                g.fillRect(x - 1, y + side - 1, side + 2, 2);
+                g.fillRect(x - 1, y - 1, 2, side + 2);
+                g.fillRect(x + side - 1, y - 1, 2, side + 2);
+            }
+        }
+    }
+
+    public void paintHint(Graphics g, Shape hintShape) {
+        if (hintShape != null) {
+            g.setColor(HINT_COLOR);
+            for (Cell cell : hintShape) {
+                g.fillRect(cell.x() * GRID_CELL_SIZE, Y_OFFSET + cell.y() * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
+            }
+        }
+    }
+
+    public void paintDraggedPiece(Graphics g) {
+        if (selectedPiece != null) {
+            if (selectedPiece.state == PieceState.IN_PLAY) {
+                for (Cell cell : selectedPiece.getShape()) {
+                    int cellX = selectedPiece.getX() + cell.x() * GRID_CELL_SIZE;
+                    int cellY = selectedPiece.getY() + cell.y() * GRID_CELL_SIZE;
+
+                    // Draw the cell
+                    g.setColor(Color.BLUE);
+                    g.fillRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
+
+                    // Draw the border
+                    g.setColor(Color.BLACK);
+                    g.drawRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
+                }
+            }
+        }
+    }
+
+    public void paintGhostShape(Graphics g, Shape ghostShape) {
+        g.setColor(GHOST_SHAPE_COLOR);
+        if (ghostShape != null) {
+            for (Cell cell : ghostShape) {
+                g.fillRect(cell.x() * GRID_CELL_SIZE, Y_OFFSET + cell.y() * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
+            }
+        }
+    }
+
+    public void paintPoppableRegions(Graphics g, BoardSnapshot snapshot) {
+        g.setColor(POPPABLE_REGION_COLOR);
+        if (snapshot.poppableRegions() != null && snapshot.ghost() != null) {
+            for (Shape region : snapshot.poppableRegions()) {
+                for (Cell cell : region) {
+                    g.fillRect(cell.x() * GRID_CELL_SIZE, Y_OFFSET + cell.y() * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
+                }
+            }
+        }
+    }
+
+    public void paintPalette(Graphics g, int width, int height) {
+        // Nothing to do when the clip (e.g. a dirty area on the board) misses the palette
+        Rectangle clip = g.getClipBounds();
+        if (clip != null && clip.y + clip.height <= PALETTE_TOP) {
+            return;
+        }
+        g.setColor(PALETTE_BACKGROUND);
+        g.fillRect(0, PALETTE_TOP, width, height);
+
+        for (Piece piece : palettePieces) {
+            g.setColor(Color.BLUE);
+            for (Cell cell : piece.getShape()) {
+                int cellX = piece.x + cell.x() * PALETTE_CELL_SIZE;
+                int cellY = piece.y + cell.y() * PALETTE_CELL_SIZE;
+                g.fillRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
+            }
+
+            // Draw borders for each cell
+            g.setColor(Color.BLACK);
+            for (Cell cell : piece.getShape()) {
+                int cellX = piece.x + cell.x() * PALETTE_CELL_SIZE;
+                int cellY = piece.y + cell.y() * PALETTE_CELL_SIZE;
+                g.drawRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
+            }
+        }
+    }
+
+    public long getPaintCount() {
+        return paintCount;
+    }
+
+    // Mean and most recent paint time, in microseconds
+    public double getAveragePaintMicros() {
+        return paintCount == 0 ? 0 : paintNanos / 1e3 / paintCount;
+    }
+
+    public double getLastPaintMicros() {
+        return lastPaintNanos / 1e3;
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.Arrays;
+import java.util.List;
+
+/* BoardSnapshot record holding everything the view paints, as published by the
+GameModel after each change. It is never modified once built, so the EDT can paint
+from it while the model thread moves on: the board is a copy of the grid's bitset,
+and the palette, ghost, poppable regions and hint are shapes the model no longer
+changes. boardVersion is the grid's version, so the view only re-renders the board
+when it differs, drops counts the drops the model has answered, and rank is the
+finished game's all-time leaderboard rank (0 if it is not over or not ranked) */
+public record BoardSnapshot(int numRows, int numCols, int boxSize, long[] cells, int boardVersion, int score,
+                            Shape[] palette, Shape ghost, List<Shape> poppableRegions, Shape hint,
+                            boolean gameOver, long rank, int movesPlayed, long drops) {
+
+    // Copies the grid and palette, the other shapes must not change after this call
+    static BoardSnapshot capture(Grid grid, Shape[] palette, Shape ghost, List<Shape> poppableRegions, Shape hint,
+                                 boolean gameOver, long rank, int movesPlayed, long drops) {
+        return new BoardSnapshot(grid.numRows, grid.numCols, grid.BOX_SIZE, grid.copyGrid(), grid.getVersion(),
+                grid.getScore(), palette.clone(), ghost, poppableRegions, hint, gameOver, rank, movesPlayed, drops);
+    }
+
+    // Same layout as the grid's bitset
+    public boolean isCellFilled(int row, int col) {
+        int index = row << Grid.rowShift(numCols) | col;
+        return (cells[index >>> 6] & (1L << index)) != 0;
+    }
+
+    // A new grid with the snapshot's cells and score, e.g. for a search off the model thread
+    public Grid toGrid() {
+        Grid grid = new Grid(numRows, numCols, boxSize);
+        grid.restore(Arrays.copyOf(cells, cells.length), score);
+        return grid;
+    }
+}
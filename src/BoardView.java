@@ -0,0 +1,26 @@
+import java.util.List;
+
+/* BoardView interface for what the game controller updates on the view,
+so the controller can drive either the Swing GameView or a stand-in
+(e.g. a stub with no display in the benchmarks). The board itself is
+painted from the model's latest snapshot, the controller only hands over
+the pieces it moves on the EDT */
+public interface BoardView {
+    void setSelectedPiece(Piece piece);
+
+    // Pieces waiting in the palette, which are not necessarily every slot's
+    void setPalettePieces(List<Piece> pieces);
+
+    void updateScoreLabel(int score);
+
+    // Rank is the game's all-time leaderboard rank, 0 if it is not ranked
+    void showGameOverMessage(long rank);
+
+    // The game is running again, e.g. after its last move was undone
+    void hideGameOverMessage();
+
+    void repaint();
+
+    // Repaints only what changed since the last repaint
+    void repaintChanges();
+}
@@ -1,4 +1,33 @@
 /* Cell record representing a single cell in the grid
 9x9 grid - top left: (0,0), bottom right: (8,8) */
 public record Cell(int x, int y) {
+    // Every cell of boards up to 16x16 is interned, so no hot path allocates one
+    static final int CACHED_SIDE = 16;
+    private static final Cell[] CACHE = new Cell[CACHED_SIDE * CACHED_SIDE];
+
+    static {
+        for (int x = 0; x < CACHED_SIDE; x++) {
+            for (int y = 0; y < CACHED_SIDE; y++) {
+                CACHE[x * CACHED_SIDE + y] = new Cell(x, y);
+            }
+        }
+    }
+
+    // The shared cell at (x,y), or a new one outside the cached boards
+    public static Cell of(int x, int y) {
+        if (x >= 0 && x < CACHED_SIDE && y >= 0 && y < CACHED_SIDE) {
+            return CACHE[x * CACHED_SIDE + y];
+        }
+        return new Cell(x, y);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode(x, y);
+    }
+
+    // Hash of the cell at (x,y), so shapes can hash their cells without making them
+    static int hashCode(int x, int y) {
+        return 31 * x + y;
+    }
 }
@@ -0,0 +1,74 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/* EngineBenchmark plays random games on the headless GameEngine for a few
+seconds and reports moves per second on a single thread, then measures how
+fast the piece generator deals a palette.
+Run with: java EngineBenchmark [seconds] [rows] [cols] */
+public class EngineBenchmark {
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+        int numCols = args.length > 2 ? Integer.parseInt(args[2]) : 9;
+
+        // Warm up the JIT before measuring
+        run(numRows, numCols, 2_000_000_000L, new SplittableRandom(1));
+
+        long start = System.nanoTime();
+        long[] result = run(numRows, numCols, seconds * 1_000_000_000L, new SplittableRandom(2));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%dx%d board: %d moves in %d games, %.2f s%n",
+                numRows, numCols, result[0], result[1], elapsed);
+        System.out.printf("%,.0f moves/s, %,.0f games/s%n", result[0] / elapsed, result[1] / elapsed);
+
+        Grid grid = new Grid(numRows, numCols);
+        PieceDistribution uniform = PieceDistribution.uniform(new ShapeSet().getShapes());
+        System.out.printf("uniform deals: %,.0f shapes/s%n",
+                dealRate(new PieceGenerator(uniform, 3), grid, seconds));
+        System.out.printf("guaranteed-legal deals: %,.0f shapes/s%n",
+                dealRate(PieceGenerator.random(3), grid, seconds));
+    }
+
+    // Shapes dealt per second, refilling a whole palette each time
+    static double dealRate(PieceGenerator generator, Grid grid, int seconds) {
+        Shape[] palette = new Shape[GameEngine.PALETTE_SIZE];
+        long deals = 0;
+        int checksum = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1024; i++) {
+                Arrays.fill(palette, null);
+                generator.deal(palette, grid);
+                checksum += palette[0].size();
+            }
+            deals += 1024;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        // Use the checksum so the deals cannot be optimised away
+        return checksum == 0 ? 0 : deals * palette.length / elapsed;
+    }
+
+    // Plays random games until the time budget runs out, returns {moves, games}
+    static long[] run(int numRows, int numCols, long budgetNanos, SplittableRandom random) {
+        GameEngine engine = new GameEngine(numRows, numCols);
+        int[] moves = new int[engine.maxMoves()];
+        long totalMoves = 0;
+        long games = 0;
+        long deadline = System.nanoTime() + budgetNanos;
+
+        while (System.nanoTime() < deadline) {
+            // Check the clock once per game, not once per move
+            engine.newGame();
+            int count;
+            while ((count = engine.legalMoves(moves)) > 0) {
+                engine.applyMove(moves[random.nextInt(count)]);
+                totalMoves++;
+            }
+            games++;
+        }
+        return new long[] {totalMoves, games};
+    }
+}
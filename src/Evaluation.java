@@ -0,0 +1,58 @@
+import java.util.List;
+
+/* Evaluation record holding the weights the solver uses to rate a line of
+placements: the points it scores, then the position it leaves - empty cells,
+fragmentation of the empty space and mobility (legal placements for the shape
+set). A line where a palette shape no longer fits gets the dead-end penalty */
+public record Evaluation(double scoreWeight, double emptyCellWeight, double fragmentationWeight,
+                         double mobilityWeight, double deadEndPenalty) {
+
+    // Weights favouring clears first and open, unfragmented boards after that
+    public static Evaluation standard() {
+        return new Evaluation(10, 0.5, -0.75, 0.05, -1000);
+    }
+
+    // Rates the position on the grid, ignoring how it was reached
+    public double evaluatePosition(Grid grid, List<Shape> mobilityShapes) {
+        double value = 0;
+        if (emptyCellWeight != 0) {
+            value += emptyCellWeight * emptyCells(grid);
+        }
+        if (fragmentationWeight != 0) {
+            value += fragmentationWeight * fragmentation(grid);
+        }
+        if (mobilityWeight != 0) {
+            int mobility = 0;
+            for (Shape shape : mobilityShapes) {
+                mobility += grid.getLegalMoveCount(shape);
+            }
+            value += mobilityWeight * mobility;
+        }
+        return value;
+    }
+
+    static int emptyCells(Grid grid) {
+        int filled = 0;
+        for (long word : grid.grid) {
+            filled += Long.bitCount(word);
+        }
+        return grid.getNumRows() * grid.getNumCols() - filled;
+    }
+
+    // Number of neighbouring cell pairs where one is filled and the other empty
+    static int fragmentation(Grid grid) {
+        int edges = 0;
+        for (int x = 0; x < grid.getNumRows(); x++) {
+            for (int y = 0; y < grid.getNumCols(); y++) {
+                boolean filled = grid.isCellFilled(x, y);
+                if (x + 1 < grid.getNumRows() && filled != grid.isCellFilled(x + 1, y)) {
+                    edges++;
+                }
+                if (y + 1 < grid.getNumCols() && filled != grid.isCellFilled(x, y + 1)) {
+                    edges++;
+                }
+            }
+        }
+        return edges;
+    }
+}
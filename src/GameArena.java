@@ -0,0 +1,383 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/* GameArena class holding a whole population of headless games off the heap, as
+fixed-width columns in direct buffers: each game's board bits, score, moves played,
+palette shape ids, random state and game over flag. No object exists per game, so
+millions of games take tens of bytes each and give the garbage collector nothing to
+do. Boards are laid out as on a Grid of the same size and box size, whose row, column
+and square tables every game shares. stepAll plays one move in every running game,
+walking the columns in order, and splits the games into ranges across the arena's
+fork-join pool. Moves are chosen by the same MovePolicy as self-play, which is handed
+an engine loaded with the game's position if it reads one. Games follow GameEngine's rules (the palette is refilled once all
+three shapes are used), dealing uniformly from the shape set with each game's own
+random stream */
+public class GameArena {
+    // Games stepped by one task without splitting further
+    static final int GAMES_PER_TASK = 16_384;
+
+    int numRows;
+    int numCols;
+    int games;
+    // Grid of the games' size whose bit layout and region tables the boards use
+    Grid layout;
+    // Longs of board bits per game, cell (x,y) is bit layout.bitIndex(x, y)
+    int words;
+    // Steps the games, kept for as long as the same number of threads is asked for
+    ForkJoinPool pool;
+
+    // The columns, game i's value at index i (times words for the board)
+    ByteBuffer cells;
+    ByteBuffer scores;
+    ByteBuffer movesPlayed;
+    // Catalog id + 1 of each palette slot's shape, 0 for an empty slot
+    ByteBuffer palettes;
+    ByteBuffer randomStates;
+    ByteBuffer gameOver;
+
+    /* For each catalog shape, its anchors (packed x << 8 | y), their masks (words
+    longs each) and each board cell's anchor number, -1 where the shape sticks out */
+    int[][] anchors;
+    long[][] anchorMasks;
+    int[][] anchorAt;
+    // Catalog ids of the shapes dealt
+    int[] dealIds;
+
+    // Games on boards with 3x3 squares, as on a Grid(numRows, numCols)
+    public GameArena(int games, int numRows, int numCols) {
+        this(games, numRows, numCols, 3);
+    }
+
+    public GameArena(int games, int numRows, int numCols, int boxSize) {
+        this.games = games;
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.layout = new Grid(numRows, numCols, boxSize);
+        this.words = layout.numWords;
+        if (games < 1 || (long) games * words * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot hold " + games + " " + numRows + "x" + numCols + " games");
+        }
+        cells = column((long) games * words * Long.BYTES);
+        scores = column((long) games * Integer.BYTES);
+        movesPlayed = column((long) games * Integer.BYTES);
+        palettes = column((long) games * GameEngine.PALETTE_SIZE);
+        randomStates = column((long) games * Long.BYTES);
+        gameOver = column(games);
+        buildMasks();
+    }
+
+    private static ByteBuffer column(long bytes) {
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    // Bytes the columns take per game
+    public int bytesPerGame() {
+        return words * Long.BYTES + 2 * Integer.BYTES + GameEngine.PALETTE_SIZE + Long.BYTES + 1;
+    }
+
+    private void buildMasks() {
+        List<Shape> shapes = ShapeCatalog.standard().getShapes();
+        anchors = new int[shapes.size()][];
+        anchorMasks = new long[shapes.size()][];
+        anchorAt = new int[shapes.size()][];
+        for (Shape shape : shapes) {
+            int across = Math.max(numRows - shape.getShapeWidth() + 1, 0);
+            int down = Math.max(numCols - shape.getShapeHeight() + 1, 0);
+            int[] shapeAnchors = new int[across * down];
+            long[] masks = new long[across * down * words];
+            int[] at = new int[numRows * numCols];
+            Arrays.fill(at, -1);
+            int count = 0;
+            for (int x = 0; x < across; x++) {
+                for (int y = 0; y < down; y++) {
+                    for (Cell cell : shape) {
+                        int bit = layout.bitIndex(x + cell.x(), y + cell.y());
+                        masks[count * words + (bit >>> 6)] |= 1L << bit;
+                    }
+                    at[x * numCols + y] = count;
+                    shapeAnchors[count++] = x << 8 | y;
+                }
+            }
+            anchors[shape.id] = shapeAnchors;
+            anchorMasks[shape.id] = masks;
+            anchorAt[shape.id] = at;
+        }
+
+        List<Shape> dealt = new ShapeSet().getShapes();
+        dealIds = new int[dealt.size()];
+        for (int i = 0; i < dealIds.length; i++) {
+            dealIds[i] = dealt.get(i).id;
+        }
+    }
+
+    // Start every game afresh, game i's stream seeded from the master seed as in self-play
+    public void newGames(long masterSeed) {
+        SplitMix random = new SplitMix(0);
+        for (int game = 0; game < games; game++) {
+            random.setState(SelfPlayRunner.seedFor(masterSeed, game));
+            newGame(game, random);
+        }
+    }
+
+    // Empty the game's board and deal it a palette from the stream, which it keeps
+    void newGame(int game, SplitMix random) {
+        for (int w = 0; w < words; w++) {
+            cells.putLong((game * words + w) * Long.BYTES, 0);
+        }
+        scores.putInt(game * Integer.BYTES, 0);
+        movesPlayed.putInt(game * Integer.BYTES, 0);
+        gameOver.put(game, (byte) 0);
+        deal(game, random);
+        randomStates.putLong(game * Long.BYTES, random.getState());
+    }
+
+    private void deal(int game, SplitMix random) {
+        for (int slot = 0; slot < GameEngine.PALETTE_SIZE; slot++) {
+            palettes.put(game * GameEngine.PALETTE_SIZE + slot, (byte) (dealIds[random.nextInt(dealIds.length)] + 1));
+        }
+    }
+
+    /* Play one move in every running game on the given number of threads, ending any
+    game with no legal move. Returns the number of games that moved */
+    public long stepAll(MovePolicy policy, int threads) {
+        if (pool == null || pool.getParallelism() != threads) {
+            close();
+            pool = new ForkJoinPool(threads);
+        }
+        return pool.invoke(new StepTask(policy, 0, games));
+    }
+
+    // Stop the pool's threads, a later stepAll starts a new pool
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    // Steps a range of games, splitting it in half until it is small enough
+    class StepTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        MovePolicy policy;
+        int from;
+        int to;
+
+        StepTask(MovePolicy policy, int from, int to) {
+            this.policy = policy;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= GAMES_PER_TASK) {
+                return stepRange(policy, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            StepTask left = new StepTask(policy, from, middle);
+            left.fork();
+            long right = new StepTask(policy, middle, to).compute();
+            return right + left.join();
+        }
+    }
+
+    /* Steps games from to to - 1 in order, with scratch buffers of its own and an engine
+    to show the policy each position, if it reads them */
+    long stepRange(MovePolicy policy, int from, int to) {
+        int[] moves = new int[GameEngine.PALETTE_SIZE * numRows * numCols];
+        long[] board = new long[words];
+        long[] cleared = new long[words];
+        SplitMix random = new SplitMix(0);
+        GameEngine position = !policy.readsPosition() ? null : new GameEngine(
+                new Grid(numRows, numCols, layout.BOX_SIZE), new Shape[GameEngine.PALETTE_SIZE],
+                PieceGenerator.random(0), false);
+        long moved = 0;
+        for (int game = from; game < to; game++) {
+            if (step(game, policy, position, moves, board, cleared, random)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    // Play one move in the game, or mark it over if it has none
+    boolean step(int game, MovePolicy policy, GameEngine position, int[] moves, long[] board, long[] cleared,
+                 SplitMix random) {
+        if (gameOver.get(game) != 0) {
+            return false;
+        }
+        int cellsAt = game * words * Long.BYTES;
+        for (int w = 0; w < words; w++) {
+            board[w] = cells.getLong(cellsAt + w * Long.BYTES);
+        }
+        int count = legalMoves(game, board, moves);
+        if (count == 0) {
+            gameOver.put(game, (byte) 1);
+            return false;
+        }
+        random.setState(randomStates.getLong(game * Long.BYTES));
+        if (position != null) {
+            position.getGrid().restore(board, getScore(game));
+            for (int slot = 0; slot < GameEngine.PALETTE_SIZE; slot++) {
+                position.palette[slot] = getPaletteShape(game, slot);
+            }
+            position.setMovesPlayed(getMovesPlayed(game));
+        }
+        int move = policy.chooseMove(position, moves, count, random);
+
+        // Place the shape, then empty every full region at once
+        int slot = GameEngine.moveSlot(move);
+        int paletteAt = game * GameEngine.PALETTE_SIZE;
+        int id = palettes.get(paletteAt + slot) - 1;
+        int maskAt = anchorAt[id][GameEngine.moveX(move) * numCols + GameEngine.moveY(move)] * words;
+        long[] masks = anchorMasks[id];
+        for (int w = 0; w < words; w++) {
+            board[w] |= masks[maskAt + w];
+            cleared[w] = 0;
+        }
+        int full = 0;
+        for (int region = 0; region < layout.regionWords.length; region++) {
+            full += clearIfFull(region, board, cleared);
+        }
+        for (int w = 0; w < words; w++) {
+            cells.putLong(cellsAt + w * Long.BYTES, board[w] & ~cleared[w]);
+        }
+        scores.putInt(game * Integer.BYTES, scores.getInt(game * Integer.BYTES) + full);
+        movesPlayed.putInt(game * Integer.BYTES, movesPlayed.getInt(game * Integer.BYTES) + 1);
+
+        palettes.put(paletteAt + slot, (byte) 0);
+        if (palettes.get(paletteAt) == 0 && palettes.get(paletteAt + 1) == 0 && palettes.get(paletteAt + 2) == 0) {
+            deal(game, random);
+        }
+        randomStates.putLong(game * Long.BYTES, random.getState());
+        return true;
+    }
+
+    // Marks the region's cells cleared if the board fills it, returning 1 if it did
+    private int clearIfFull(int region, long[] board, long[] cleared) {
+        int[] regionWords = layout.regionWords[region];
+        long[] regionBits = layout.regionBits[region];
+        for (int i = 0; i < regionWords.length; i++) {
+            if ((board[regionWords[i]] & regionBits[i]) != regionBits[i]) {
+                return 0;
+            }
+        }
+        for (int i = 0; i < regionWords.length; i++) {
+            cleared[regionWords[i]] |= regionBits[i];
+        }
+        return 1;
+    }
+
+    // Every legal move of the game on the board, packed as GameEngine.move
+    int legalMoves(int game, long[] board, int[] moves) {
+        int count = 0;
+        for (int slot = 0; slot < GameEngine.PALETTE_SIZE; slot++) {
+            int id = palettes.get(game * GameEngine.PALETTE_SIZE + slot) - 1;
+            if (id < 0) {
+                continue;
+            }
+            int[] shapeAnchors = anchors[id];
+            long[] masks = anchorMasks[id];
+            if (words == 3) {
+                // The classic board (9 rows of 16 bits) and others up to 192 bits, unrolled
+                long first = board[0];
+                long second = board[1];
+                long third = board[2];
+                for (int a = 0; a < shapeAnchors.length; a++) {
+                    int at = 3 * a;
+                    if ((first & masks[at]) == 0 && (second & masks[at + 1]) == 0 && (third & masks[at + 2]) == 0) {
+                        moves[count++] = slot << 16 | shapeAnchors[a];
+                    }
+                }
+                continue;
+            }
+            for (int a = 0; a < shapeAnchors.length; a++) {
+                boolean fits = true;
+                for (int w = 0; w < words && fits; w++) {
+                    fits = (board[w] & masks[a * words + w]) == 0;
+                }
+                if (fits) {
+                    moves[count++] = slot << 16 | shapeAnchors[a];
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getGameCount() {
+        return games;
+    }
+
+    public int getScore(int game) {
+        return scores.getInt(game * Integer.BYTES);
+    }
+
+    public int getMovesPlayed(int game) {
+        return movesPlayed.getInt(game * Integer.BYTES);
+    }
+
+    public boolean isGameOver(int game) {
+        return gameOver.get(game) != 0;
+    }
+
+    public boolean isCellFilled(int game, int x, int y) {
+        int bit = layout.bitIndex(x, y);
+        return (cells.getLong((game * words + (bit >>> 6)) * Long.BYTES) & (1L << bit)) != 0;
+    }
+
+    // Shape in a palette slot of the game, or null if it has been used
+    public Shape getPaletteShape(int game, int slot) {
+        int id = palettes.get(game * GameEngine.PALETTE_SIZE + slot) - 1;
+        return id < 0 ? null : ShapeCatalog.standard().getShape(id);
+    }
+
+    static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionCount(), 0);
+        }
+        return total;
+    }
+
+    /* Steps a population of random games and reports game steps per second, the
+    bytes each game takes and the collections during the run:
+    java GameArena [games] [steps] [threads] */
+    public static void main(String[] args) {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        GameArena arena = new GameArena(games, 9, 9);
+        MovePolicy policy = MovePolicy.random();
+
+        // Warm up the JIT on a few steps before measuring
+        arena.newGames(1);
+        for (int i = 0; i < 3; i++) {
+            arena.stepAll(policy, threads);
+        }
+
+        arena.newGames(2);
+        long collections = gcCount();
+        long start = System.nanoTime();
+        long moved = 0;
+        for (int i = 0; i < steps; i++) {
+            moved += arena.stepAll(policy, threads);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long running = 0;
+        for (int game = 0; game < games; game++) {
+            running += arena.isGameOver(game) ? 0 : 1;
+        }
+        System.out.printf("%,d games, %d bytes each (%.1f MB off-heap), %d threads%n",
+                games, arena.bytesPerGame(), (double) games * arena.bytesPerGame() / 1e6, threads);
+        System.out.printf("%d steps: %,d moves in %.2f s, %,.0f moves/s, %,d games still running, %d GCs%n",
+                steps, moved, elapsed, moved / elapsed, running, gcCount() - collections);
+        arena.close();
+    }
+}
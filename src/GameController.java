@@ -1,106 +1,379 @@
+import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-// Controls the game logic and user interactions for the block puzzle game
+/* Controls the user interactions for the block puzzle game on the EDT. The game
+itself lives in a GameModel on its own thread: the controller only sends it previews
+and drops, and keeps its own pieces for the palette slots in step with the snapshots
+the model publishes */
 public class GameController extends MouseAdapter {
-    GameView gameView;
-    Grid grid;
-    Palette palette;
+    BoardView gameView;
+    GameModel model;
     int paletteCellSize;
+    // The EDT's piece for each palette slot, reset when a snapshot deals its slot a new shape
+    Piece[] pieces = new Piece[Palette.PALETTE_SIZE];
+    // Pieces shown in the palette: every slot with a shape, except the dragged and dropping ones
+    List<Piece> palettePieces = new ArrayList<>(Palette.PALETTE_SIZE);
     Piece selectedPiece;
-    Shape ghostShape;
-    List<Shape> poppableRegions;
+    int selectedSlot = -1;
     Point lastMousePoint = null;
+    // The latest snapshot the EDT has applied
+    BoardSnapshot shown;
+    // Whether a snapshot is waiting to be applied on the EDT, so bursts are applied once
+    AtomicBoolean snapshotQueued = new AtomicBoolean();
 
-    public GameController(Grid grid, Palette palette, int paletteCellSize, GameView gameView) {
-        this.grid = grid;
-        this.palette = palette;
+    // Preview last sent to the model, so it is only asked again when the snapped cell changes
+    int previewSlot = -1;
+    int previewCellX;
+    int previewCellY;
+
+    // Slot dropped but not yet answered by the model, hidden until then, and drops sent
+    int droppingSlot = -1;
+    long dropsSent;
+
+    // Searches for the recommended placement in the background while hint mode is on
+    HintEngine hintEngine;
+    boolean hintMode;
+    // Board version the running hint search is for
+    int hintVersion;
+    // Time allowed before the first hint is shown, and for the first refinement (doubled after each)
+    static final long HINT_LATENCY_MILLIS = 50;
+    static final long HINT_REFINE_MILLIS = 250;
+
+    /* Paced drag mode: motion events only record the latest pointer position and
+    a timer applies it once per display frame. Counters compare the two modes */
+    static final int DEFAULT_FRAME_MILLIS = 16;
+    boolean pacedDrag;
+    Point pendingDragPoint;
+    javax.swing.Timer frameTimer = new javax.swing.Timer(frameMillis(), e -> frameTick());
+    long dragEvents;
+    long dragUpdates;
+
+    // Runs a new model for the grid and palette, which the caller must no longer use
+    public GameController(Grid grid, Palette palette, int paletteCellSize, BoardView gameView) {
+        this(new GameModel(grid, palette), paletteCellSize, gameView);
+    }
+
+    public GameController(GameModel model, int paletteCellSize, BoardView gameView) {
+        this.model = model;
         this.paletteCellSize = paletteCellSize;
         this.gameView = gameView;
+        for (int slot = 0; slot < pieces.length; slot++) {
+            pieces[slot] = new Piece(null, Palette.slotX(slot), Palette.PALETTE_Y, 40);
+        }
+        applySnapshot(model.getSnapshot());
+        // Apply only the latest snapshot once the EDT gets to it
+        model.setListener(snapshot -> {
+            if (snapshotQueued.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(() -> {
+                    snapshotQueued.set(false);
+                    applySnapshot(model.getSnapshot());
+                });
+            }
+        });
     }
 
-    // Make the ghost shape reflect the snapped position of the selected piece on the grid
-    public void setGhostShape() {
-        if (selectedPiece != null) {
-            ghostShape = selectedPiece.snapToGrid();
-            if (ghostShape != null && grid.canPlace(ghostShape)) {
-                gameView.setGhostShape(ghostShape);
+    /* Bring the EDT's pieces, labels and hint search in line with a snapshot, repainting
+    everything if the board or palette changed and only the overlays otherwise */
+    void applySnapshot(BoardSnapshot snapshot) {
+        BoardSnapshot previous = shown;
+        shown = snapshot;
+        if (droppingSlot >= 0 && snapshot.drops() >= dropsSent) {
+            droppingSlot = -1;
+        }
+        syncPieces();
+        gameView.updateScoreLabel(snapshot.score());
+        if (snapshot.gameOver()) {
+            gameView.showGameOverMessage(snapshot.rank());
+        } else if (previous != null && previous.gameOver()) {
+            gameView.hideGameOverMessage();
+        }
+        boolean boardChanged = previous == null || previous.boardVersion() != snapshot.boardVersion()
+                || !Arrays.equals(previous.palette(), snapshot.palette());
+        if (boardChanged) {
+            if (hintMode) {
+                restartHints();
+            }
+            gameView.repaint();
+        } else {
+            gameView.repaintChanges();
+        }
+    }
+
+    // Deal the shown snapshot's shapes to the pieces and list the ones waiting in the palette
+    void syncPieces() {
+        palettePieces.clear();
+        for (int slot = 0; slot < pieces.length; slot++) {
+            Shape shape = shown.palette()[slot];
+            Piece piece = pieces[slot];
+            if (piece == selectedPiece) {
+                continue;
+            }
+            if (piece.getShape() != shape) {
+                piece.reset(shape, Palette.slotX(slot), Palette.PALETTE_Y);
+            }
+            if (shape != null && slot != droppingSlot) {
+                palettePieces.add(piece);
             }
         }
+        gameView.setPalettePieces(palettePieces);
+    }
+
+    // Turn hint mode on or off, called from the view's key binding on the EDT
+    public void toggleHints() {
+        hintMode = !hintMode;
+        if (hintMode) {
+            if (hintEngine == null) {
+                // Hints reach the model on the EDT, tagged with the board they were found for
+                hintEngine = new HintEngine(HINT_LATENCY_MILLIS, HINT_REFINE_MILLIS,
+                        hint -> model.setHint(hint, hintVersion));
+            }
+            restartHints();
+        } else {
+            if (hintEngine != null) {
+                hintEngine.cancel();
+            }
+            model.setHint(null, shown.boardVersion());
+        }
+    }
+
+    private void restartHints() {
+        hintVersion = shown.boardVersion();
+        hintEngine.restart(shown);
     }
 
     @Override
     public void mousePressed(MouseEvent e) {
+        long start = Metrics.start();
         /* Check if the click is on a palette shape - if true
         set the current piece to the selected shape */
-        for (Piece piece : palette.getPieces()) {
+        for (Piece piece : palettePieces) {
             if (piece.contains(e.getPoint(), paletteCellSize)) {
                 selectedPiece = piece;
+                selectedSlot = Arrays.asList(pieces).indexOf(piece);
                 selectedPiece.state = PieceState.IN_PLAY;
                 lastMousePoint = e.getPoint();
                 gameView.setSelectedPiece(selectedPiece);
-                palette.removePiece(piece);
-                gameView.setPalette(palette);
+                syncPieces();
                 break;
             }
         }
         gameView.repaint();
+        Metrics.stop(Metrics.Timer.MOUSE_EVENT, start);
     }
 
     @Override
     public void mouseDragged(MouseEvent e) {
-        /* Update the position of the selected piece based on the mouse drag and set
-        the ghost shape to follow the selected piece and check for any poppable regions */
+        long start = Metrics.start();
+        dragEvents++;
+        Metrics.count(Metrics.Counter.DRAG_EVENTS);
+        if (!pacedDrag) {
+            dragTo(e.getPoint());
+            dragUpdates++;
+            Metrics.count(Metrics.Counter.DRAG_UPDATES);
+        } else {
+            // Paced: keep only the latest position, the next frame tick applies it
+            pendingDragPoint = e.getPoint();
+            if (!frameTimer.isRunning()) {
+                frameTimer.start();
+            }
+        }
+        Metrics.stop(Metrics.Timer.MOUSE_EVENT, start);
+        // Drag-to-paint latency runs from here until the view next paints
+        Metrics.dragged(start);
+    }
+
+    /* Runs once per display frame while dragging in paced mode, applying the latest
+    pointer position if it moved since the last frame, and stopping once idle */
+    void frameTick() {
+        if (pendingDragPoint == null) {
+            frameTimer.stop();
+            return;
+        }
+        Point point = pendingDragPoint;
+        pendingDragPoint = null;
+        dragTo(point);
+        dragUpdates++;
+        Metrics.count(Metrics.Counter.DRAG_UPDATES);
+    }
+
+    // Apply a drag position that a paced frame has not processed yet
+    void flushPendingDrag() {
+        if (pendingDragPoint != null) {
+            frameTick();
+        }
+        frameTimer.stop();
+    }
+
+    /* Switch between updating on every motion event and once per display frame,
+    trading input latency against work per event */
+    public void setPacedDrag(boolean pacedDrag) {
+        flushPendingDrag();
+        this.pacedDrag = pacedDrag;
+    }
+
+    // Undo or redo the last drop, unless a piece is being dragged
+    public void undo() {
+        if (selectedPiece == null) {
+            model.undo();
+        }
+    }
+
+    public void redo() {
+        if (selectedPiece == null) {
+            model.redo();
+        }
+    }
+
+    // Toggle paced drag updates, counting the new mode's events from zero (Metrics keeps the totals)
+    public void togglePacedDrag() {
+        setPacedDrag(!pacedDrag);
+        dragEvents = 0;
+        dragUpdates = 0;
+    }
+
+    public long getDragEvents() {
+        return dragEvents;
+    }
+
+    public long getDragUpdates() {
+        return dragUpdates;
+    }
+
+    // Motion events replaced by a later one before a frame processed them
+    public long getCoalescedDragEvents() {
+        return dragEvents - dragUpdates - (pendingDragPoint == null ? 0 : 1);
+    }
+
+    // Display frame length, from the screen's refresh rate when it is known
+    static int frameMillis() {
+        int refreshRate = 0;
+        if (!GraphicsEnvironment.isHeadless()) {
+            refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDisplayMode().getRefreshRate();
+        }
+        return refreshRate > 0 ? Math.max(1, 1000 / refreshRate) : DEFAULT_FRAME_MILLIS;
+    }
+
+    /* Update the position of the selected piece based on the mouse drag, and ask the
+    model for the ghost shape and poppable regions whenever it snaps to another cell */
+    void dragTo(Point point) {
         if (selectedPiece != null && lastMousePoint != null) {
-            selectedPiece.x += e.getX() - lastMousePoint.x;
-            selectedPiece.y += e.getY() - lastMousePoint.y;
-            if (grid.insideGrid(selectedPiece)) {
-                setGhostShape();
-                poppableRegions = grid.getPoppableRegions(ghostShape);
+            int dx = point.x - lastMousePoint.x;
+            int dy = point.y - lastMousePoint.y;
+            selectedPiece.x += dx;
+            selectedPiece.y += dy;
+            lastMousePoint = point;
+
+            int cellX = selectedPiece.getSnappedCellX();
+            int cellY = selectedPiece.getSnappedCellY();
+            if (selectedSlot != previewSlot || cellX != previewCellX || cellY != previewCellY) {
+                model.preview(selectedSlot, cellX, cellY);
+                previewSlot = selectedSlot;
+                previewCellX = cellX;
+                previewCellY = cellY;
             }
-            else {
-                gameView.setGhostShape(null);
+            // The new preview is repainted when its snapshot arrives, only the piece moved so far
+            if (dx != 0 || dy != 0) {
+                gameView.repaintChanges();
             }
-            lastMousePoint = e.getPoint();
         }
-        gameView.setPoppableRegions(poppableRegions);
-        gameView.repaint();
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
-        /* Place the selectedPiece on the grid if the placement is legal, and
-        clear any full regions, update the score and check for game over */
+        long start = Metrics.start();
+        /* Drop the selected piece where it snaps to. The model places it if the placement
+        is legal, and the slot stays hidden until the snapshot answering the drop arrives */
+        // Drop the piece where the pointer last was, even if no frame has shown it yet
+        flushPendingDrag();
         if (selectedPiece != null) {
-            Shape shape = selectedPiece.snapToGrid();
-            if (grid.canPlace(shape)) {
-                grid.placeShape(shape);
-                grid.clearFullRegions();
-                selectedPiece.state = PieceState.PLACED;
-            } else {
-                selectedPiece.state = PieceState.IN_PALETTE;
-            }
+            model.drop(selectedSlot, selectedPiece.getSnappedCellX(), selectedPiece.getSnappedCellY());
+            dropsSent++;
+            droppingSlot = selectedSlot;
+            selectedPiece.reset(selectedPiece.getShape(), Palette.slotX(selectedSlot), Palette.PALETTE_Y);
+            selectedPiece = null;
+            selectedSlot = -1;
+            previewSlot = -1;
+            gameView.setSelectedPiece(null);
+            syncPieces();
         }
-        gameView.updateScoreLabel(grid.getScore());
-        palette.refresh();
-        if (grid.isGameOver(palette)) {
-            gameView.showGameOverMessage();
-        }
-        gameView.setSelectedPiece(null);
-        gameView.setGhostShape(null);
         gameView.repaint();
+        Metrics.stop(Metrics.Timer.MOUSE_EVENT, start);
+    }
+
+    public GameModel getModel() {
+        return model;
+    }
+
+    /* Restores the game saved at the path into the grid and palette, returning the
+    snapshot, or null (leaving them as they are) if there is no readable save */
+    static GameSnapshot resume(Path path, Grid grid, Palette palette) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            GameSnapshot snapshot = GameSnapshot.load(path);
+            snapshot.restore(grid, palette);
+            System.out.printf("Resumed saved game in %.3f ms%n", (System.nanoTime() - start) / 1e6);
+            return snapshot;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not resume saved game: " + e.getMessage());
+            return null;
+        }
     }
 
     /* Initializes the game components (grid, palette, view, and controller)
     and sets up the necessary listeners to run the block puzzle game */
     public static void main(String[] args) {
+        // Pass a seed to replay the same deals
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("Seed: " + seed);
+        // Metrics can be switched on over JMX, or from the start with -Dblockpuzzle.metrics=<dump seconds>
+        Metrics.register();
+        long dumpSeconds = Long.getLong("blockpuzzle.metrics", 0);
+        if (dumpSeconds > 0) {
+            Metrics.enabled = true;
+            Metrics.startDump(dumpSeconds, System.out);
+        }
         Grid grid = new Grid(9, 9);
-        Palette palette = new Palette();
+        Palette palette = new Palette(grid, PieceGenerator.random(seed));
+        // Carry on from the game saved when the window was last closed, if there is one
+        Path savePath = Path.of(System.getProperty("user.home"), ".block-puzzle", "autosave.bin");
+        GameSnapshot saved = resume(savePath, grid, palette);
+
+        GameModel model = new GameModel(grid, palette);
+        model.setMovesPlayed(saved == null ? 0 : saved.getMovesPlayed());
+        model.setSavePath(savePath);
+        // Rank finished games against every game played here before, a resumed game under its own seed
+        Leaderboard leaderboard = null;
+        try {
+            Leaderboard opened = new Leaderboard(savePath.resolveSibling("leaderboard.log"));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    opened.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close the leaderboard: " + e.getMessage());
+                }
+            }));
+            leaderboard = opened;
+        } catch (IOException e) {
+            System.err.println("Leaderboard unavailable: " + e.getMessage());
+        }
+        model.setLeaderboard(leaderboard, saved == null ? seed : saved.getSeed());
 
-        GameView gameView = new GameView(grid, palette);
-        GameController controller = new GameController(grid, palette, 20, gameView);
+        GameView gameView = new GameView(model);
+        GameController controller = new GameController(model, 20, gameView);
+        controller.setPacedDrag(true);
 
         gameView.setController(controller);
         gameView.addMouseListener(controller);
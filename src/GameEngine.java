@@ -0,0 +1,267 @@
+import java.util.Arrays;
+
+/* GameEngine class running a game without any GUI, built from the grid and
+a piece generator. Moves are (palette slot, anchor cell) pairs packed into an int,
+so a game can be played at memory speed with no AWT or pixel math involved. By
+default the palette is dealt again once every slot is used; with dealEachMove a
+placed slot is dealt a new shape straight away, the rule GameSession plays by */
+public class GameEngine {
+    static final int PALETTE_SIZE = 3;
+
+    int numRows;
+    int numCols;
+    Grid grid;
+    PieceGenerator generator;
+    // Shapes available to place, null once a slot has been used
+    Shape[] palette = new Shape[PALETTE_SIZE];
+    // Deal a placed slot a new shape straight away, rather than once the palette is empty
+    boolean dealEachMove;
+    int movesPlayed;
+    // Records the games played, null if they are not journaled
+    JournalWriter journal;
+    // Exports every transition as training data, null if they are not exported
+    TrajectoryExporter.Recorder trajectory;
+    // Moves that can be taken back and replayed, null if none are kept
+    MoveHistory history;
+
+    // Engine dealing the shape set in order, as the original palette does
+    public GameEngine(int numRows, int numCols) {
+        this(numRows, numCols, PieceGenerator.classic());
+    }
+
+    public GameEngine(int numRows, int numCols, PieceGenerator generator) {
+        this(numRows, numCols, generator, false);
+    }
+
+    public GameEngine(int numRows, int numCols, PieceGenerator generator, boolean dealEachMove) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.generator = generator;
+        this.dealEachMove = dealEachMove;
+        newGame();
+    }
+
+    /* Plays on from an existing grid and palette, e.g. a Palette's shapes or a resumed
+    game, without dealing. The palette array is kept and filled in place */
+    public GameEngine(Grid grid, Shape[] palette, PieceGenerator generator, boolean dealEachMove) {
+        this.numRows = grid.numRows;
+        this.numCols = grid.numCols;
+        this.grid = grid;
+        this.palette = palette;
+        this.generator = generator;
+        this.dealEachMove = dealEachMove;
+    }
+
+    // Start a new game whose deals come from the given seed
+    public void newGame(long seed) {
+        generator.reseed(seed);
+        newGame();
+    }
+
+    // Start a new game on an empty grid with a full palette, reusing the grid
+    public void newGame() {
+        if (grid == null) {
+            grid = new Grid(numRows, numCols);
+        } else {
+            grid.reset();
+        }
+        movesPlayed = 0;
+        if (history != null) {
+            history.clear();
+        }
+        if (journal != null) {
+            journal.startGame(generator.getState());
+        }
+        if (trajectory != null) {
+            trajectory.startGame(generator.getState());
+        }
+        Arrays.fill(palette, null);
+        generator.deal(palette, grid);
+    }
+
+    // Packs a palette slot and an anchor cell into a move
+    public static int move(int slot, int x, int y) {
+        return (slot << 16) | (x << 8) | y;
+    }
+
+    public static int moveSlot(int move) {
+        return move >>> 16;
+    }
+
+    public static int moveX(int move) {
+        return (move >>> 8) & 0xFF;
+    }
+
+    public static int moveY(int move) {
+        return move & 0xFF;
+    }
+
+    /* Writes every legal move into the buffer and returns how many there are,
+    the buffer needs room for PALETTE_SIZE * numRows * numCols moves */
+    public int legalMoves(int[] moves) {
+        int count = 0;
+        for (int slot = 0; slot < PALETTE_SIZE; slot++) {
+            if (palette[slot] == null) {
+                continue;
+            }
+            long[] anchors = grid.getLegalAnchors(palette[slot]);
+            for (int w = 0; w < anchors.length; w++) {
+                long bits = anchors[w];
+                while (bits != 0) {
+                    int index = w * 64 + Long.numberOfTrailingZeros(bits);
+                    moves[count++] = move(slot, grid.cellX(index), grid.cellY(index));
+                    bits &= bits - 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Check if a move places an available shape at an anchor where it fits
+    public boolean isLegal(int move) {
+        int slot = moveSlot(move);
+        return slot < PALETTE_SIZE && palette[slot] != null
+                && grid.canPlaceAt(palette[slot], moveX(move), moveY(move));
+    }
+
+    /* Places the shape from the move's slot, clears any full regions and deals the
+    slot (or the palette, once every slot is used) new shapes. Returns the regions cleared */
+    public int applyMove(int move) {
+        if (!isLegal(move)) {
+            throw new IllegalArgumentException("Illegal move: slot " + moveSlot(move)
+                    + " at (" + moveX(move) + "," + moveY(move) + ")");
+        }
+        return play(move, history == null ? -1 : history.push());
+    }
+
+    // Plays a legal move, recording it in the history entry at the offset unless it is -1
+    private int play(int move, int entry) {
+        int slot = moveSlot(move);
+        Shape shape = palette[slot];
+        if (trajectory != null) {
+            trajectory.beforeMove(grid, palette, move);
+        }
+        grid.placeShapeAt(shape, moveX(move), moveY(move));
+        int cleared = grid.clearFullRegions();
+        palette[slot] = null;
+        movesPlayed++;
+
+        long generatorState = generator.getState();
+        boolean dealt = dealEachMove || isPaletteEmpty();
+        if (dealt) {
+            generator.deal(palette, grid);
+        }
+        if (entry >= 0) {
+            history.record(entry, move, shape, cleared, dealt, generatorState, grid);
+        }
+        if (journal != null) {
+            journal.recordMove(this, shape, moveX(move), moveY(move));
+        }
+        if (trajectory != null) {
+            trajectory.afterMove(grid, cleared, isGameOver());
+        }
+        return cleared;
+    }
+
+    /* Takes back the last move in the history: its clears, its placement, and the deal
+    that followed it if there was one. Returns false if there is no move to take back */
+    public boolean undoMove() {
+        int entry = history == null ? -1 : history.undo();
+        if (entry < 0) {
+            return false;
+        }
+        history.undoPlacement(entry, grid);
+        if (history.dealt(entry)) {
+            // The generator goes back to deal the same shapes again, into every slot if all were empty
+            if (!dealEachMove) {
+                Arrays.fill(palette, null);
+            }
+            generator.setState(history.generatorState(entry));
+        }
+        palette[moveSlot(history.move(entry))] = history.shape(entry);
+        movesPlayed--;
+        if (journal != null) {
+            journal.recordUndo();
+        }
+        return true;
+    }
+
+    // Plays the last move taken back again, returning false if there is none
+    public boolean redoMove() {
+        int entry = history == null ? -1 : history.redo();
+        if (entry < 0) {
+            return false;
+        }
+        play(history.move(entry), entry);
+        return true;
+    }
+
+    // Keep the moves played from now on so they can be undone, or stop with null
+    public void setHistory(MoveHistory history) {
+        this.history = history;
+    }
+
+    // The game is over when no shape left in the palette fits anywhere
+    public boolean isGameOver() {
+        for (Shape shape : palette) {
+            if (shape != null && grid.getLegalMoveCount(shape) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isPaletteEmpty() {
+        for (Shape shape : palette) {
+            if (shape != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Grid getGrid() {
+        return grid;
+    }
+
+    // Shape in a palette slot, or null if it has been used
+    public Shape getPaletteShape(int slot) {
+        return palette[slot];
+    }
+
+    // Journal the games started from now on, or stop journaling with null
+    public void setJournal(JournalWriter journal) {
+        this.journal = journal;
+    }
+
+    // Export the moves played from now on, or stop exporting with null
+    public void setTrajectory(TrajectoryExporter.Recorder trajectory) {
+        this.trajectory = trajectory;
+    }
+
+    public TrajectoryExporter.Recorder getTrajectory() {
+        return trajectory;
+    }
+
+    public PieceGenerator getGenerator() {
+        return generator;
+    }
+
+    public int getScore() {
+        return grid.getScore();
+    }
+
+    public int getMovesPlayed() {
+        return movesPlayed;
+    }
+
+    // For a game resumed part way through
+    public void setMovesPlayed(int movesPlayed) {
+        this.movesPlayed = movesPlayed;
+    }
+
+    // Size of the buffer legalMoves needs
+    public int maxMoves() {
+        return PALETTE_SIZE * numRows * numCols;
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/* GameModel class owning the GameSession of a game on a thread of its own, the same
+engine the GameServer hosts its sessions on. Only that thread ever reads or writes
+the session's grid and palette: the EDT sends it previews and drops,
+and after each change it publishes a new immutable BoardSnapshot through a volatile
+field, which the view paints from. Previews are coalesced, so if the pointer moves
+faster than the model answers only the latest one is computed */
+public class GameModel {
+    GameSession session;
+    // The session's grid and palette
+    Grid grid;
+    Palette palette;
+    // Drops answered, so the EDT knows when its last drop has been applied
+    long drops;
+    // Preview of the dragged piece: where it would land, if it fits, and what it would clear
+    Shape ghost;
+    List<Shape> poppableRegions;
+    Shape hint;
+    // All-time rank of the finished game, 0 while it is running or if it is not ranked
+    long rank;
+
+    volatile BoardSnapshot snapshot;
+    // Called on the model thread after each snapshot is published
+    Consumer<BoardSnapshot> listener;
+
+    ExecutorService executor;
+    // Latest preview request as {slot, x, y}, and whether a task to compute it is queued
+    AtomicReference<int[]> pendingPreview = new AtomicReference<>();
+    AtomicBoolean previewQueued = new AtomicBoolean();
+
+    // Where the game is saved after every placement, null if it is not saved
+    Path savePath;
+    // Writes saves off the model thread, one at a time and in order
+    ExecutorService autosaver;
+
+    // Takes over the grid and palette, which must not be used by any other thread afterwards
+    public GameModel(Grid grid, Palette palette) {
+        this.session = new GameSession(grid, palette, 0);
+        session.setHistory(new MoveHistory(grid));
+        this.grid = grid;
+        this.palette = palette;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "game-model");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publish();
+    }
+
+    // The latest published state, safe to read from any thread
+    public BoardSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void setListener(Consumer<BoardSnapshot> listener) {
+        this.listener = listener;
+    }
+
+    /* Show where the shape in the slot would land anchored at the cell. Requests are
+    coalesced: one queued task computes whichever request is latest when it runs */
+    public void preview(int slot, int x, int y) {
+        pendingPreview.set(new int[] {slot, x, y});
+        if (previewQueued.compareAndSet(false, true)) {
+            executor.execute(this::updatePreview);
+        }
+    }
+
+    public void clearPreview() {
+        pendingPreview.set(null);
+        executor.execute(() -> {
+            ghost = null;
+            poppableRegions = null;
+            publish();
+        });
+    }
+
+    private void updatePreview() {
+        previewQueued.set(false);
+        int[] request = pendingPreview.getAndSet(null);
+        if (request == null) {
+            return;
+        }
+        Shape shape = palette.shapes[request[0]];
+        int x = request[1];
+        int y = request[2];
+        if (shape != null && grid.canPlaceAt(shape, x, y)) {
+            ghost = HintEngine.toShape(palette.shapes, GameEngine.move(request[0], x, y));
+            // The grid reuses its list, so keep a copy the snapshot can hold on to
+            poppableRegions = List.copyOf(grid.getPoppableRegions(ghost));
+        } else {
+            ghost = null;
+            poppableRegions = null;
+        }
+        publish();
+    }
+
+    /* Place the shape in the slot anchored at the cell if it fits there, clear any full
+    regions and deal a new shape into the slot. A drop that does not fit changes nothing,
+    but is still answered with a snapshot */
+    public void drop(int slot, int x, int y) {
+        pendingPreview.set(null);
+        executor.execute(() -> {
+            ghost = null;
+            poppableRegions = null;
+            if (session.place(slot, x, y) >= 0) {
+                // The old hint is stale once the board changes
+                hint = null;
+                autosave();
+                if (session.isGameOver() && session.leaderboard != null) {
+                    session.leaderboard.flush();
+                    rank = session.leaderboard.rank(session.getScore());
+                }
+            }
+            drops++;
+            publish();
+        });
+    }
+
+    // Take back the last drop, or play the last one taken back again
+    public void undo() {
+        executor.execute(() -> changeHistory(session.undo()));
+    }
+
+    public void redo() {
+        executor.execute(() -> changeHistory(session.redo()));
+    }
+
+    private void changeHistory(boolean changed) {
+        if (!changed) {
+            return;
+        }
+        ghost = null;
+        poppableRegions = null;
+        hint = null;
+        rank = 0;
+        autosave();
+        publish();
+    }
+
+    /* Show a hint found for the board with the given version, ignored if the board has
+    changed since the search started */
+    public void setHint(Shape hint, int boardVersion) {
+        executor.execute(() -> {
+            if (boardVersion == grid.getVersion() && hint != this.hint) {
+                this.hint = hint;
+                publish();
+            }
+        });
+    }
+
+    private void publish() {
+        snapshot = BoardSnapshot.capture(grid, palette.shapes, ghost, poppableRegions, hint,
+                session.isGameOver(), rank, session.getMovesPlayed(), drops);
+        if (listener != null) {
+            listener.accept(snapshot);
+        }
+    }
+
+    // Blocks until every change sent so far has been applied and published
+    public void awaitIdle() {
+        try {
+            executor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Save the game after every placement, to the given path
+    public void setSavePath(Path savePath) {
+        executor.execute(() -> this.savePath = savePath);
+    }
+
+    /* Record the game's score on the leaderboard (if any) when it ends, with the seed it
+    was dealt from, which is saved with the game too */
+    public void setLeaderboard(Leaderboard leaderboard, long seed) {
+        executor.execute(() -> session.setLeaderboard(leaderboard, seed));
+    }
+
+    public void setMovesPlayed(int movesPlayed) {
+        executor.execute(() -> {
+            session.setMovesPlayed(movesPlayed);
+            publish();
+        });
+    }
+
+    /* Captures the game on the model thread and writes it in the background, a finished
+    game deletes the save instead so the next start is a new game */
+    void autosave() {
+        if (savePath == null) {
+            return;
+        }
+        if (autosaver == null) {
+            autosaver = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "autosave");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        GameSnapshot save = session.isGameOver() ? null
+                : GameSnapshot.capture(grid, palette, session.getMovesPlayed(), session.seed);
+        Path path = savePath;
+        autosaver.execute(() -> {
+            try {
+                if (save == null) {
+                    Files.deleteIfExists(path);
+                } else {
+                    save.save(path);
+                }
+            } catch (IOException e) {
+                System.err.println("Autosave failed: " + e.getMessage());
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        if (autosaver != null) {
+            autosaver.shutdown();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+
+/* GameProtocol class defining the GameServer's binary protocol. Every message is a
+frame: an int length followed by that many bytes, big-endian. A request body is the
+command byte, the session id and the command's arguments, and the response body is a
+status byte, the session id and the command's results. A client may send several
+requests without waiting, the responses come back in the same order.
+
+  NEW_GAME    long seed                  -> (new session id)
+  LEGAL_MOVES                            -> int count, count moves packed as GameEngine.move
+  PLACE       int move                   -> int cleared (-1 if illegal), int score, byte gameOver
+  STATE                                  -> byte rows, byte cols, int score, int movesPlayed,
+                                            byte gameOver, int shape id per palette slot (-1 if
+                                            empty), filled cells as longs indexed by x * cols + y
+  CLOSE                                  -> nothing
+
+Boards are limited to what these frames can carry: at most 127 rows and columns, and
+few enough cells for every legal move to fit in one frame (see GameServer) */
+public final class GameProtocol {
+    static final byte NEW_GAME = 1;
+    static final byte LEGAL_MOVES = 2;
+    static final byte PLACE = 3;
+    static final byte STATE = 4;
+    static final byte CLOSE = 5;
+
+    static final byte OK = 0;
+    static final byte NO_SESSION = 1;
+    static final byte BAD_REQUEST = 2;
+
+    // Frame length prefix, and the largest frame either side accepts
+    static final int HEADER_BYTES = 4;
+    static final int MAX_FRAME_BYTES = 1 << 16;
+    // Command or status byte and session id at the start of every body
+    static final int BODY_HEADER_BYTES = 5;
+
+    private GameProtocol() {
+    }
+
+    // Write a request with no arguments
+    static void request(ByteBuffer out, byte command, int session) {
+        out.putInt(BODY_HEADER_BYTES).put(command).putInt(session);
+    }
+
+    static void newGame(ByteBuffer out, long seed) {
+        out.putInt(BODY_HEADER_BYTES + 8).put(NEW_GAME).putInt(0).putLong(seed);
+    }
+
+    static void place(ByteBuffer out, int session, int move) {
+        out.putInt(BODY_HEADER_BYTES + 4).put(PLACE).putInt(session).putInt(move);
+    }
+
+    // Length of the complete frame at the buffer's position, or -1 if it has not all arrived
+    static int frameLength(ByteBuffer in) {
+        if (in.remaining() < HEADER_BYTES) {
+            return -1;
+        }
+        int length = in.getInt(in.position());
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Bad frame length " + length);
+        }
+        return in.remaining() < HEADER_BYTES + length ? -1 : length;
+    }
+}
@@ -0,0 +1,379 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* GameServer class hosting independent GameSessions for clients on localhost, speaking
+the GameProtocol over non-blocking sockets. An acceptor thread hands each connection to
+one of the worker threads, and the connection's sessions live on that worker for as long
+as it is open, so sessions are sharded by connection and no lock is ever taken: each
+worker only touches its own selector, connections and sessions. A connection's sessions
+are closed with it. If a client stops reading, its worker stops reading its requests
+until the responses have been written, so buffers stay bounded */
+public class GameServer implements Closeable {
+    static final int DEFAULT_PORT = 7070;
+
+    int numRows;
+    int numCols;
+    ServerSocketChannel serverChannel;
+    Worker[] workers;
+    Thread acceptor;
+    volatile boolean running;
+    // Largest response to a single request, a connection only reads on with this much room to answer
+    int maxResponseBytes;
+    // Where finished sessions' scores are recorded, if anywhere
+    Leaderboard leaderboard;
+
+    // One connection's buffers and sessions, only used by its worker
+    static class Connection {
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(GameProtocol.MAX_FRAME_BYTES + GameProtocol.HEADER_BYTES);
+        ByteBuffer out;
+        Map<Integer, GameSession> sessions = new HashMap<>();
+        int nextSession = 1;
+    }
+
+    // Serves its share of the connections on a selector of its own
+    class Worker implements Runnable {
+        Selector selector;
+        Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        Thread thread;
+        // Legal moves buffer, shared by every session on the worker
+        int[] moves = new int[Palette.PALETTE_SIZE * numRows * numCols];
+        // Written only by the worker, read by anyone
+        volatile long sessionCount;
+        volatile long requestCount;
+
+        Worker(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "game-server-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerAccepted();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                write(connection);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(connection);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // A broken or misbehaving client only loses its own connection
+                            disconnect(connection);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println(thread.getName() + " stopped: " + e.getMessage());
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    disconnect((Connection) key.attachment());
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+        }
+
+        private void registerAccepted() throws IOException {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                Connection connection = new Connection();
+                connection.channel = channel;
+                connection.out = ByteBuffer.allocate(Math.max(GameProtocol.MAX_FRAME_BYTES, 2 * maxResponseBytes));
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            if (connection.channel.read(connection.in) < 0) {
+                disconnect(connection);
+                return;
+            }
+            serve(connection);
+        }
+
+        /* Answer every complete request in the input buffer while there is room for the
+        response, then write what can be written. Requests left over wait, unread, until
+        the client has taken the responses */
+        private void serve(Connection connection) throws IOException {
+            ByteBuffer in = connection.in;
+            in.flip();
+            int length;
+            while ((length = GameProtocol.frameLength(in)) >= 0) {
+                if (connection.out.remaining() < maxResponseBytes) {
+                    flush(connection);
+                    if (connection.out.remaining() < maxResponseBytes) {
+                        break;
+                    }
+                }
+                int end = in.position() + GameProtocol.HEADER_BYTES + length;
+                in.position(in.position() + GameProtocol.HEADER_BYTES);
+                handle(connection, in, end);
+                in.position(end);
+                requestCount++;
+            }
+            in.compact();
+            flush(connection);
+        }
+
+        private void write(Connection connection) throws IOException {
+            flush(connection);
+            if (connection.out.position() == 0) {
+                // Caught up, so answer any requests held back meanwhile
+                serve(connection);
+            }
+        }
+
+        // Write the pending responses, reading requests again only once they are all out
+        private void flush(Connection connection) throws IOException {
+            ByteBuffer out = connection.out;
+            out.flip();
+            connection.channel.write(out);
+            out.compact();
+            if (connection.key.isValid()) {
+                connection.key.interestOps(out.position() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void handle(Connection connection, ByteBuffer in, int end) {
+            ByteBuffer out = connection.out;
+            int start = out.position();
+            byte command = end - in.position() >= GameProtocol.BODY_HEADER_BYTES ? in.get() : 0;
+            int id = command != 0 ? in.getInt() : 0;
+            int arguments = end - in.position();
+            out.position(start + GameProtocol.HEADER_BYTES + GameProtocol.BODY_HEADER_BYTES);
+            byte status = GameProtocol.OK;
+
+            GameSession session = connection.sessions.get(id);
+            if (command == GameProtocol.NEW_GAME) {
+                if (arguments < 8) {
+                    status = GameProtocol.BAD_REQUEST;
+                } else {
+                    id = connection.nextSession++;
+                    long seed = in.getLong();
+                    GameSession created = new GameSession(numRows, numCols, seed);
+                    created.setLeaderboard(leaderboard, seed);
+                    connection.sessions.put(id, created);
+                    sessionCount++;
+                }
+            } else if (command < GameProtocol.NEW_GAME || command > GameProtocol.CLOSE) {
+                status = GameProtocol.BAD_REQUEST;
+            } else if (session == null) {
+                status = GameProtocol.NO_SESSION;
+            } else if (command == GameProtocol.LEGAL_MOVES) {
+                int count = session.legalMoves(moves);
+                out.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.putInt(moves[i]);
+                }
+            } else if (command == GameProtocol.PLACE) {
+                if (arguments < 4) {
+                    status = GameProtocol.BAD_REQUEST;
+                } else {
+                    out.putInt(session.place(in.getInt()));
+                    out.putInt(session.getScore());
+                    out.put((byte) (session.isGameOver() ? 1 : 0));
+                }
+            } else if (command == GameProtocol.STATE) {
+                writeState(out, session);
+            } else {
+                connection.sessions.remove(id);
+                sessionCount--;
+            }
+
+            out.putInt(start, out.position() - start - GameProtocol.HEADER_BYTES);
+            out.put(start + GameProtocol.HEADER_BYTES, status);
+            out.putInt(start + GameProtocol.HEADER_BYTES + 1, id);
+        }
+
+        private void disconnect(Connection connection) {
+            sessionCount -= connection.sessions.size();
+            connection.sessions.clear();
+            connection.key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+        }
+    }
+
+    /* Binds a server on localhost (port 0 picks a free port) for boards of the given size,
+    which the protocol must be able to carry: STATE sends the sides as bytes, and every
+    legal move has to fit in one LEGAL_MOVES frame (up to about 73x73 cells) */
+    public GameServer(int port, int workerCount, int numRows, int numCols) throws IOException {
+        if (numRows < 1 || numCols < 1 || numRows > Byte.MAX_VALUE || numCols > Byte.MAX_VALUE
+                || maxBodyBytes(numRows, numCols) > GameProtocol.MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("The protocol cannot carry " + numRows + "x" + numCols + " boards");
+        }
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.maxResponseBytes = (int) (GameProtocol.HEADER_BYTES + maxBodyBytes(numRows, numCols));
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    public void start() {
+        running = true;
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        acceptor = new Thread(this::accept, "game-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Deal new connections out to the workers in turn
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Worker worker = workers[next];
+                next = (next + 1) % workers.length;
+                worker.accepted.add(channel);
+                worker.selector.wakeup();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Record the score of every session that ends on the leaderboard, set before starting
+    public void setLeaderboard(Leaderboard leaderboard) {
+        this.leaderboard = leaderboard;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Sessions open across every worker
+    public long getSessionCount() {
+        long total = 0;
+        for (Worker worker : workers) {
+            total += worker.sessionCount;
+        }
+        return total;
+    }
+
+    public long getRequestCount() {
+        long total = 0;
+        for (Worker worker : workers) {
+            total += worker.requestCount;
+        }
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        List<Thread> threads = new ArrayList<>();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+            threads.add(worker.thread);
+        }
+        threads.add(acceptor);
+        for (Thread thread : threads) {
+            try {
+                if (thread != null) {
+                    thread.join(1000);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Largest response body on boards of the size: every legal move, or the state
+    static long maxBodyBytes(int numRows, int numCols) {
+        long cells = (long) numRows * numCols;
+        return GameProtocol.BODY_HEADER_BYTES + Math.max(4 + 4L * Palette.PALETTE_SIZE * cells,
+                14 + 4 * Palette.PALETTE_SIZE + 8 * ((cells + 63) / 64));
+    }
+
+    // Session state: board size, score, moves, game over, palette shape ids and the filled cells
+    static void writeState(ByteBuffer out, GameSession session) {
+        Grid grid = session.getGrid();
+        out.put((byte) grid.numRows).put((byte) grid.numCols);
+        out.putInt(session.getScore()).putInt(session.getMovesPlayed());
+        out.put((byte) (session.isGameOver() ? 1 : 0));
+        // Dealt shapes are the standard catalog's own instances, so their ids need no lookup
+        for (Shape shape : session.getPalette().shapes) {
+            out.putInt(shape == null || shape.catalog == null ? -1 : shape.id);
+        }
+        long[] cells = new long[(grid.numRows * grid.numCols + 63) / 64];
+        for (int x = 0; x < grid.numRows; x++) {
+            for (int y = 0; y < grid.numCols; y++) {
+                if (grid.isCellFilled(x, y)) {
+                    int cell = x * grid.numCols + y;
+                    cells[cell >>> 6] |= 1L << cell;
+                }
+            }
+        }
+        for (long word : cells) {
+            out.putLong(word);
+        }
+    }
+
+    /* Runs a server until the process is killed, recording scores on the leaderboard if given one:
+    java GameServer [port] [workers] [rows] [cols] [leaderboardFile] */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 9;
+        int cols = args.length > 3 ? Integer.parseInt(args[3]) : rows;
+        GameServer server = new GameServer(port, workers, rows, cols);
+        Leaderboard leaderboard = args.length > 4 ? new Leaderboard(Path.of(args[4])) : null;
+        server.setLeaderboard(leaderboard);
+        server.start();
+        System.out.printf("Serving %dx%d games on port %d with %d workers%n", rows, cols, server.getPort(), workers);
+        while (true) {
+            Thread.sleep(10_000);
+            System.out.printf("%d sessions, %d requests%n", server.getSessionCount(), server.getRequestCount());
+            if (leaderboard != null) {
+                leaderboard.flush();
+            }
+        }
+    }
+}
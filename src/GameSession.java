@@ -0,0 +1,169 @@
+/* GameSession class playing one game with the GUI's rules, where a placed slot is dealt
+a new shape straight away, on a GameEngine with dealEachMove. The engine plays on the
+Palette's shapes, and the session keeps the palette's pieces, the game-over flag and
+the leaderboard in step with it. It is the engine behind both the GameModel the window
+plays through and every session the GameServer hosts, so their games can be journaled
+and replayed like any engine's. It is not thread-safe - each session belongs to one
+thread at a time */
+public class GameSession {
+    GameEngine engine;
+    Grid grid;
+    Palette palette;
+    boolean gameOver;
+    // Seed the game's shapes are dealt from, and where its score is recorded when it ends (if anywhere)
+    long seed;
+    Leaderboard leaderboard;
+    // Whether the game has been recorded, which undoing its last move does not take back
+    boolean recorded;
+
+    // A new game on a numRows x numCols board dealing random shapes from the seed
+    public GameSession(int numRows, int numCols, long seed) {
+        this(new Palette(new Grid(numRows, numCols), PieceGenerator.random(seed)), seed);
+    }
+
+    private GameSession(Palette palette, long seed) {
+        this(palette.grid, palette, 0);
+        this.seed = seed;
+    }
+
+    // Plays on an existing grid and palette, e.g. a resumed game
+    public GameSession(Grid grid, Palette palette, int movesPlayed) {
+        this.grid = grid;
+        this.palette = palette;
+        this.engine = new GameEngine(grid, palette.shapes, palette.getGenerator(), true);
+        engine.setMovesPlayed(movesPlayed);
+        this.gameOver = grid.isGameOver(palette);
+    }
+
+    // Start a new game on the same board whose deals come from the seed
+    public void newGame(long seed) {
+        this.seed = seed;
+        engine.newGame(seed);
+        palette.resetPieces();
+        gameOver = grid.isGameOver(palette);
+        recorded = false;
+    }
+
+    /* Writes every legal move (packed as GameEngine.move) into the buffer and returns
+    how many there are, the buffer needs room for maxMoves() moves */
+    public int legalMoves(int[] moves) {
+        return engine.legalMoves(moves);
+    }
+
+    /* Place the shape in the slot anchored at the cell, clear any full regions and deal
+    the slot a new shape. Returns the regions cleared, or -1 (changing nothing) if the
+    slot is empty or the shape does not fit there */
+    public int place(int slot, int x, int y) {
+        if (slot < 0 || x < 0 || y < 0 || x >= grid.numRows || y >= grid.numCols) {
+            return -1;
+        }
+        return place(GameEngine.move(slot, x, y));
+    }
+
+    public int place(int move) {
+        if (!engine.isLegal(move)) {
+            return -1;
+        }
+        int cleared = engine.applyMove(move);
+        moved();
+        return cleared;
+    }
+
+    // Brings the pieces and game-over flag up to date with a move the engine played
+    private void moved() {
+        Metrics.countMove(grid);
+        palette.resetPieces();
+        gameOver = grid.isGameOver(palette);
+        if (gameOver && leaderboard != null && !recorded) {
+            leaderboard.record(grid.getScore(), engine.getMovesPlayed(), seed, Leaderboard.ruleset(grid));
+            recorded = true;
+        }
+    }
+
+    /* Takes back the last move in the history: its clears, its placement and the shape
+    dealt into its slot, which the generator will deal again. A finished game can be
+    taken back too, but only the first way it ends is recorded on the leaderboard.
+    Returns false if there is no move to take back */
+    public boolean undo() {
+        if (!engine.undoMove()) {
+            return false;
+        }
+        palette.resetPieces();
+        gameOver = grid.isGameOver(palette);
+        return true;
+    }
+
+    // Plays the last move taken back again, returning false if there is none
+    public boolean redo() {
+        if (!engine.redoMove()) {
+            return false;
+        }
+        moved();
+        return true;
+    }
+
+    // Keep the moves played from now on so they can be undone, or stop with null
+    public void setHistory(MoveHistory history) {
+        engine.setHistory(history);
+    }
+
+    public boolean canUndo() {
+        return engine.history != null && engine.history.getUndoCount() > 0;
+    }
+
+    public boolean canRedo() {
+        return engine.history != null && engine.history.getRedoCount() > 0;
+    }
+
+    public int maxMoves() {
+        return engine.maxMoves();
+    }
+
+    public GameEngine getEngine() {
+        return engine;
+    }
+
+    public Grid getGrid() {
+        return grid;
+    }
+
+    public Palette getPalette() {
+        return palette;
+    }
+
+    public int getScore() {
+        return grid.getScore();
+    }
+
+    public int getMovesPlayed() {
+        return engine.getMovesPlayed();
+    }
+
+    public void setMovesPlayed(int movesPlayed) {
+        engine.setMovesPlayed(movesPlayed);
+    }
+
+    public boolean isGameOver() {
+        return gameOver;
+    }
+
+    /* Journal the games started from now on with newGame, which a JournalReplayer replays
+    on an engine dealing each move from the same distribution */
+    public void setJournal(JournalWriter journal) {
+        engine.setJournal(journal);
+    }
+
+    // Export the moves played from now on as transitions of the session's game
+    public void setTrajectory(TrajectoryExporter.Recorder trajectory) {
+        engine.setTrajectory(trajectory);
+        if (trajectory != null) {
+            trajectory.startGame(seed);
+        }
+    }
+
+    // Record the game's score under the seed when it first ends
+    public void setLeaderboard(Leaderboard leaderboard, long seed) {
+        this.leaderboard = leaderboard;
+        this.seed = seed;
+    }
+}
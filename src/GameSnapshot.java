@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/* GameSnapshot class holding the full state of a game in the GUI: the board, score
+and clear counts, the palette's shapes (as catalog ids), the piece generator's
+random state, the number of moves played and the seed the game was dealt from. It is encoded as a small versioned
+binary record ending in a CRC, and saved by writing a temporary file and renaming
+it over the old one, so a crash never leaves a half-written save. Restoring puts
+the bits straight back, with no re-simulation of the moves */
+public class GameSnapshot {
+    static final int MAGIC = 0x42505331; // "BPS1"
+    // Version 1 did not save the seed, so its games come back with Leaderboard.NO_SEED
+    static final short VERSION = 2;
+
+    int numRows;
+    int numCols;
+    // Filled cells as a bitset indexed by x * numCols + y, whatever the grid's own layout
+    long[] cells;
+    int score;
+    int[] clearCounts;
+    // Catalog id of the shape in each palette slot, -1 for an empty slot
+    int[] paletteIds;
+    long generatorState;
+    int movesPlayed;
+    long seed;
+
+    GameSnapshot(int numRows, int numCols, long[] cells, int score, int[] clearCounts,
+                 int[] paletteIds, long generatorState, int movesPlayed, long seed) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.cells = cells;
+        this.score = score;
+        this.clearCounts = clearCounts;
+        this.paletteIds = paletteIds;
+        this.generatorState = generatorState;
+        this.movesPlayed = movesPlayed;
+        this.seed = seed;
+    }
+
+    // Snapshot of the grid and palette, whose shapes must come from the standard catalog
+    public static GameSnapshot capture(Grid grid, Palette palette, int movesPlayed, long seed) {
+        long[] cells = new long[(grid.numRows * grid.numCols + 63) / 64];
+        long[] bits = grid.grid;
+        for (int w = 0; w < bits.length; w++) {
+            long filled = bits[w];
+            while (filled != 0) {
+                int index = w * 64 + Long.numberOfTrailingZeros(filled);
+                int cell = grid.cellX(index) * grid.numCols + grid.cellY(index);
+                cells[cell >>> 6] |= 1L << cell;
+                filled &= filled - 1;
+            }
+        }
+        int[] paletteIds = new int[palette.shapes.length];
+        for (int slot = 0; slot < paletteIds.length; slot++) {
+            // A placed piece's slot is empty, even before the palette deals it a new shape
+            Shape shape = palette.slots[slot].state == PieceState.PLACED ? null : palette.shapes[slot];
+            if (shape != null && shape.catalog != ShapeCatalog.standard()) {
+                throw new IllegalArgumentException("Only standard catalog shapes can be saved");
+            }
+            paletteIds[slot] = shape == null ? -1 : shape.id;
+        }
+        return new GameSnapshot(grid.numRows, grid.numCols, cells, grid.getScore(), grid.clearCounts.clone(),
+                paletteIds, palette.getGenerator().getState(), movesPlayed, seed);
+    }
+
+    // Puts the grid and palette back in the saved state, the grid must have the saved size
+    public void restore(Grid grid, Palette palette) {
+        if (grid.numRows != numRows || grid.numCols != numCols) {
+            throw new IllegalArgumentException("Snapshot is of a " + numRows + "x" + numCols + " board");
+        }
+        long[] bits = new long[grid.numWords];
+        for (int w = 0; w < cells.length; w++) {
+            long filled = cells[w];
+            while (filled != 0) {
+                int cell = w * 64 + Long.numberOfTrailingZeros(filled);
+                int index = grid.bitIndex(cell / numCols, cell % numCols);
+                bits[index >>> 6] |= 1L << index;
+                filled &= filled - 1;
+            }
+        }
+        grid.restore(bits, score);
+        System.arraycopy(clearCounts, 0, grid.clearCounts, 0, grid.clearCounts.length);
+
+        Shape[] shapes = new Shape[paletteIds.length];
+        for (int slot = 0; slot < shapes.length; slot++) {
+            shapes[slot] = paletteIds[slot] < 0 ? null : ShapeCatalog.standard().getShape(paletteIds[slot]);
+        }
+        palette.restore(shapes, generatorState);
+    }
+
+    public int getMovesPlayed() {
+        return movesPlayed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public byte[] encode() {
+        int size = 4 + 2 + 2 + 2 + 4 + 4 + 1 + clearCounts.length * 4 + 8 + 1 + paletteIds.length * 2
+                + 4 + cells.length * 8 + 8 + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) numRows);
+        buffer.putShort((short) numCols);
+        buffer.putInt(score);
+        buffer.putInt(movesPlayed);
+        buffer.put((byte) clearCounts.length);
+        for (int count : clearCounts) {
+            buffer.putInt(count);
+        }
+        buffer.putLong(generatorState);
+        buffer.put((byte) paletteIds.length);
+        for (int id : paletteIds) {
+            buffer.putShort((short) id);
+        }
+        buffer.putInt(cells.length);
+        for (long word : cells) {
+            buffer.putLong(word);
+        }
+        buffer.putLong(seed);
+        buffer.putInt(crc(buffer.array(), buffer.position()));
+        return buffer.array();
+    }
+
+    // Decodes a snapshot, throwing IOException if it is corrupt or from a newer version
+    public static GameSnapshot decode(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a game snapshot");
+            }
+            short version = buffer.getShort();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            if (crc(bytes, bytes.length - 4) != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+                throw new IOException("Snapshot checksum does not match");
+            }
+            int numRows = buffer.getShort();
+            int numCols = buffer.getShort();
+            int score = buffer.getInt();
+            int movesPlayed = buffer.getInt();
+            int[] clearCounts = new int[RegionType.values().length];
+            int savedTypes = buffer.get();
+            for (int i = 0; i < savedTypes; i++) {
+                int count = buffer.getInt();
+                if (i < clearCounts.length) {
+                    clearCounts[i] = count;
+                }
+            }
+            long generatorState = buffer.getLong();
+            int paletteSize = buffer.get();
+            if (paletteSize != GameEngine.PALETTE_SIZE) {
+                throw new IOException("Palette of " + paletteSize + " slots, not " + GameEngine.PALETTE_SIZE);
+            }
+            int[] paletteIds = new int[paletteSize];
+            for (int slot = 0; slot < paletteIds.length; slot++) {
+                paletteIds[slot] = buffer.getShort();
+                if (paletteIds[slot] >= ShapeCatalog.standard().size()) {
+                    throw new IOException("Unknown shape id " + paletteIds[slot]);
+                }
+            }
+            long[] cells = new long[buffer.getInt()];
+            if (cells.length != (numRows * numCols + 63) / 64) {
+                throw new IOException("Board of " + cells.length + " words does not match " + numRows + "x" + numCols);
+            }
+            for (int w = 0; w < cells.length; w++) {
+                cells[w] = buffer.getLong();
+            }
+            long seed = version >= 2 ? buffer.getLong() : Leaderboard.NO_SEED;
+            return new GameSnapshot(numRows, numCols, cells, score, clearCounts, paletteIds, generatorState,
+                    movesPlayed, seed);
+        } catch (RuntimeException e) {
+            // Buffer underflows and bad lengths from a truncated or damaged file
+            throw new IOException("Corrupt game snapshot", e);
+        }
+    }
+
+    /* Writes the snapshot to a temporary file next to the path, flushes it to disk and
+    renames it over the path, so the path always holds a complete snapshot */
+    public void save(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ByteBuffer.wrap(encode());
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public static GameSnapshot load(Path path) throws IOException {
+        return decode(Files.readAllBytes(path));
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+}
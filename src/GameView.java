@@ -1,35 +1,23 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.util.List;
 
-// Manages the graphical user interface (GUI) elements for the block puzzle game
-public class GameView extends JFrame {
-    final int GRID_CELL_SIZE = 40;
-    final int PALETTE_CELL_SIZE = GRID_CELL_SIZE / 2;
-    final Color GRID_COLOR = Color.GRAY;
-    final Color MINI_GRID_COLOR = Color.BLACK;
-    final Color GRID_CELL_FILLED_COLOR = Color.GREEN;
-    final Color PALETTE_BACKGROUND = Color.GRAY;
-    final Color GHOST_SHAPE_COLOR = new Color(0, 255,255, 128);
-    final Color POPPABLE_REGION_COLOR = new Color(0, 0,0,128);
-
-    final int Y_OFFSET = 55;
-
+/* Manages the graphical user interface (GUI) elements for the block puzzle game,
+with the model's latest snapshot and the controller's pieces painted by a BoardRenderer */
+public class GameView extends JFrame implements BoardView {
     GameController controller;
-    Grid grid;
-    Palette palette;
-    Piece selectedPiece;
-    Shape ghostShape;
-    List<Shape> poppableRegions;
+    GameModel model;
+    BoardRenderer renderer;
+    PerformanceHud hud = new PerformanceHud();
+    JPanel mainPanel;
     JLabel scoreLabel;
     JLabel gameOverLabel;
 
-    public GameView(Grid grid, Palette palette) {
-        this.grid = grid;
-        this.palette = palette;
-        this.selectedPiece = null;
-        this.ghostShape = null;
-        this.poppableRegions = null;
+    public GameView(GameModel model) {
+        this.model = model;
+        this.renderer = new BoardRenderer();
         initialiseUI();
     }
 
@@ -38,25 +26,33 @@ public class GameView extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
         // mainPanel will hold the game components
-        JPanel mainPanel = new JPanel() {
+        mainPanel = new JPanel() {
             @Override
             protected void paintComponent(Graphics g) {
+                /* A repaint of just the opaque HUD after a sample is not a frame, so it
+                is neither measured nor paints the board underneath */
+                Rectangle clip = g.getClipBounds();
+                if (hud.isVisible() && clip != null && hud.bounds(getWidth(), getHeight()).contains(clip)) {
+                    hud.paint((Graphics2D) g, getWidth(), getHeight());
+                    return;
+                }
+                long start = Metrics.start();
                 super.paintComponent(g);
-                paintGrid(g);
-                paintMiniGrid((Graphics2D) g);
-                paintGhostShape(g);
-                paintPoppableRegions(g);
-                paintPalette(g);
-                paintDraggedPiece(g);
+                renderer.paint((Graphics2D) g, model.getSnapshot(), getWidth(), getHeight());
+                Metrics.painted(start);
+                if (hud.isVisible()) {
+                    hud.framePainted(renderer.lastPaintNanos);
+                    hud.paint((Graphics2D) g, getWidth(), getHeight());
+                }
             }
 
             @Override
             public Dimension getPreferredSize() {
-                return new Dimension(GRID_CELL_SIZE * grid.numRows, 600);
+                return new Dimension(BoardRenderer.GRID_CELL_SIZE * model.getSnapshot().numRows(), 600);
             }
         };
 
-        scoreLabel = new JLabel("Score: " + grid.getScore());
+        scoreLabel = new JLabel("Score: " + model.getSnapshot().score());
 
         gameOverLabel = new JLabel("Game Over!");
         gameOverLabel.setVisible(false);
@@ -66,6 +62,37 @@ public class GameView extends JFrame {
         labelsPanel.add(gameOverLabel);
 
         mainPanel.add(labelsPanel, BorderLayout.NORTH);
+        renderer.background = mainPanel.getBackground();
+
+        // H toggles hint mode, which highlights the recommended placement
+        bindKey('h', "toggleHints", () -> controller.toggleHints());
+        // P switches drag updates between every motion event and once per frame
+        bindKey('p', "togglePacedDrag", () -> controller.togglePacedDrag());
+        // Z takes back the last drop and Y plays it again
+        bindKey('z', "undo", () -> controller.undo());
+        bindKey('y', "redo", () -> controller.redo());
+        // F shows or hides the performance HUD
+        bindKey('f', "togglePerformanceHud", this::togglePerformanceHud);
+        hud.onSample = () -> mainPanel.repaint(hud.bounds(mainPanel.getWidth(), mainPanel.getHeight()));
+        // Count input events for the HUD, alongside the controller's own listeners
+        MouseAdapter eventCounter = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                hud.eventHandled();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                hud.eventHandled();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                hud.eventHandled();
+            }
+        };
+        addMouseListener(eventCounter);
+        addMouseMotionListener(eventCounter);
 
         setContentPane(mainPanel);
         pack();
@@ -73,118 +100,71 @@ public class GameView extends JFrame {
         setVisible(true);
     }
 
-    public void setController(GameController controller) {
-        this.controller = controller;
-    }
-
-    public void setSelectedPiece(Piece piece) {
-        this.selectedPiece = piece;
-    }
-
-    public void setPalette(Palette palette) {
-        this.palette = palette;
-    }
-
-    public void setGhostShape(Shape ghostShape) {
-        this.ghostShape = ghostShape;
-    }
-
-    public void setPoppableRegions(List<Shape> poppableRegions) {
-        this.poppableRegions = poppableRegions;
-    }
-
-    public void paintGrid(Graphics g) {
-        g.setColor(GRID_COLOR);
-        for (int i = 0; i < grid.getNumRows(); i++) {
-            for (int j = 0; j < grid.getNumCols(); j++) {
-                if (grid.isCellFilled(i, j)) {
-                    g.setColor(GRID_CELL_FILLED_COLOR);
-                    g.fillRect(i * GRID_CELL_SIZE, Y_OFFSET + j * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
-                    g.setColor(GRID_COLOR);
+    // Run the action when the key is typed anywhere in the window, once there is a controller
+    private void bindKey(char key, String name, Runnable action) {
+        mainPanel.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(key), name);
+        mainPanel.getActionMap().put(name, new AbstractAction() {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                if (controller != null) {
+                    action.run();
                 }
-                g.drawRect(i * GRID_CELL_SIZE, Y_OFFSET + j * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
             }
-        }
+        });
     }
 
-    public void paintMiniGrid(Graphics2D g) {
-        g.setColor(MINI_GRID_COLOR);
-        g.setStroke(new BasicStroke(2)); // thickness of 2px
-        for (int i = 0; i < grid.getNumRows(); i += 3) {
-            for (int j = 0; j < grid.getNumCols(); j += 3) {
-                g.drawRect(j * GRID_CELL_SIZE, Y_OFFSET + i * GRID_CELL_SIZE, 3 * GRID_CELL_SIZE, 3 * GRID_CELL_SIZE);
-            }
-        }
+    public void togglePerformanceHud() {
+        hud.setVisible(!hud.isVisible());
+        mainPanel.repaint();
     }
 
-    public void paintDraggedPiece(Graphics g) {
-        if (selectedPiece != null) {
-            if (selectedPiece.state == PieceState.IN_PLAY) {
-                for (Cell cell : selectedPiece.getShape()) {
-                    int cellX = selectedPiece.getX() + cell.x() * GRID_CELL_SIZE;
-                    int cellY = selectedPiece.getY() + cell.y() * GRID_CELL_SIZE;
-
-                    // Draw the cell
-                    g.setColor(Color.BLUE);
-                    g.fillRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
+    public void setController(GameController controller) {
+        this.controller = controller;
+    }
 
-                    // Draw the border
-                    g.setColor(Color.BLACK);
-                    g.drawRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
-                }
-            }
-        }
+    @Override
+    public void setSelectedPiece(Piece piece) {
+        renderer.selectedPiece = piece;
     }
 
-    public void paintGhostShape(Graphics g) {
-        g.setColor(GHOST_SHAPE_COLOR);
-        if (ghostShape != null) {
-            for (Cell cell : ghostShape) {
-                g.fillRect(cell.x() * GRID_CELL_SIZE, Y_OFFSET + cell.y() * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
-            }
-        }
+    @Override
+    public void setPalettePieces(List<Piece> pieces) {
+        renderer.palettePieces = pieces;
     }
 
-    public void paintPoppableRegions(Graphics g) {
-        g.setColor(POPPABLE_REGION_COLOR);
-        if (poppableRegions != null && ghostShape != null) {
-            for (Shape region : poppableRegions) {
-                for (Cell cell : region) {
-                    g.fillRect(cell.x() * GRID_CELL_SIZE, Y_OFFSET + cell.y() * GRID_CELL_SIZE, GRID_CELL_SIZE, GRID_CELL_SIZE);
-                }
-            }
+    // Repaint only the area the dragged piece, ghost, poppable regions and hint moved over
+    @Override
+    public void repaintChanges() {
+        Rectangle dirty = renderer.takeDirtyArea(model.getSnapshot());
+        if (dirty != null) {
+            Metrics.count(Metrics.Counter.REPAINT_REQUESTS);
+            mainPanel.repaint(dirty);
         }
     }
 
-    public void paintPalette(Graphics g) {
-        g.setColor(PALETTE_BACKGROUND);
-        g.fillRect(0, 420, getWidth(), getHeight());
-
-        List<Piece> pieces = palette.getPieces();
-
-        for (Piece piece : pieces) {
-            g.setColor(Color.BLUE);
-            for (Cell cell : piece.getShape()) {
-                int cellX = piece.x + cell.x() * PALETTE_CELL_SIZE;
-                int cellY = piece.y + cell.y() * PALETTE_CELL_SIZE;
-                g.fillRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
-            }
-
-            // Draw borders for each cell
-            g.setColor(Color.BLACK);
-            for (Cell cell : piece.getShape()) {
-                int cellX = piece.x + cell.x() * PALETTE_CELL_SIZE;
-                int cellY = piece.y + cell.y() * PALETTE_CELL_SIZE;
-                g.drawRect(cellX, cellY, PALETTE_CELL_SIZE, PALETTE_CELL_SIZE);
-            }
+    @Override
+    public void repaint() {
+        // A full repaint covers wherever the overlays are now
+        if (renderer != null) {
+            renderer.takeDirtyArea(model.getSnapshot());
         }
+        Metrics.count(Metrics.Counter.REPAINT_REQUESTS);
+        super.repaint();
     }
 
+    @Override
     public void updateScoreLabel(int score) {
         scoreLabel.setText("Score: " + score);
     }
 
-    public void showGameOverMessage() {
+    @Override
+    public void showGameOverMessage(long rank) {
+        gameOverLabel.setText(rank > 0 ? "Game Over! All-time rank: #" + rank : "Game Over!");
         gameOverLabel.setVisible(true);
     }
+
+    @Override
+    public void hideGameOverMessage() {
+        gameOverLabel.setVisible(false);
+    }
 }
@@ -1,5 +1,8 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /* Grid class representing the game grid and its logic,
 including updating the score and checking for game over */
@@ -10,27 +13,208 @@ public class Grid {
     // yOffset = 55
     final int Y_OFFSET = 55;
 
+    // Side length of the mini-squares, 3 on the classic board
+    final int BOX_SIZE;
+
     int numRows;
     int numCols;
-    int[][] grid;
+    /* Bitboard of the grid cells as one bitset per row, bit bitIndex(x,y) is set when
+    cell (x,y) is occupied. Each row takes the next power of two bits up from numCols
+    (16 for a 9 cell row, so 4 rows per word and three longs for a 9x9 grid), so no row
+    straddles a word boundary and a row is a whole number of words once it is wider
+    than one. The padding bits after each row are always 0 */
+    long[] grid;
+    int numWords;
+    // Bits per row as a shift: bit index = x << rowShift | y
+    int rowShift;
+    // Number of whole squares along x and along y
+    int squaresX;
+    int squaresY;
+    /* Region index of the first square in each row's band of squares, and the square's
+    offset for each column, or -1 for rows and columns past the last whole square */
+    int[] squareRow;
+    int[] squareCol;
+    /* Every region as the words it covers and its bits in each of them - all rows,
+    then all columns, then all whole squares (the order regions are reported in).
+    Checking a region only reads its own words: a single word for a row of up to
+    64 cells, so a row-full check is one compare */
+    int[][] regionWords;
+    long[][] regionBits;
+    // Cells of each region, built once and shared by every caller - never modify them
+    Shape[] regionShapes;
+    // Square lookup and region tables of one grid size, shared by every grid of that size
+    record RegionTables(int[] squareRow, int[] squareCol, int[][] regionWords, long[][] regionBits,
+                        Shape[] regionShapes) {
+    }
+    static final Map<List<Integer>, RegionTables> sharedRegionTables = new ConcurrentHashMap<>();
+    /* Bitset of the regions with a cell filled since they were last checked. Filling
+    is the only way a region becomes full, so regions outside it are never full */
+    long[] dirtyRegions;
+    // Scratch bitset holding only the ghost's cells while getPoppableRegions runs, all 0 otherwise
+    long[] previewGrid;
+    // Bitset of the regions getPoppableRegions checks, all 0 between calls
+    long[] candidateRegions;
+    List<Shape> poppableRegions;
+    // Cells emptied by the last clearFullRegions, set only in the words listed in clearedWords
+    long[] clearMask;
+    int[] clearedWords;
+    int clearedWordCount;
+    // Bitset of the regions the last clearFullRegions emptied, what MoveHistory records to undo it
+    long[] lastClearedRegions;
+    // Scratch mask of the cells emptied by restore
+    long[] restoreMask;
     int gridCellSize;
     int score;
-
+    // Number of regions cleared so far, indexed by RegionType ordinal
+    int[] clearCounts = new int[RegionType.values().length];
+    // Number of regions of each type the last clearFullRegions call cleared
+    int[] lastClearCounts = new int[RegionType.values().length];
+    // Incremented whenever the cells change, so callers can tell if cached answers are stale
+    int version;
+    // Anchors where each shape fits, kept up to date as cells are filled and cleared
+    PlacementIndex placementIndex;
+    // Precomputed placement masks of the catalog the last checked shape came from
+    ShapeCatalog maskCatalog;
+    ShapeCatalog.BoardMasks boardMasks;
+
+    // The classic board, with 3x3 squares
     public Grid(int numRows, int numCols) {
+        this(numRows, numCols, 3);
+    }
+
+    public Grid(int numRows, int numCols, int boxSize) {
+        if (numRows < 1 || numCols < 1 || boxSize < 1) {
+            throw new IllegalArgumentException("Invalid " + numRows + "x" + numCols + " board with "
+                    + boxSize + "x" + boxSize + " squares");
+        }
         this.numRows = numRows;
         this.numCols = numCols;
-        this.grid = new int[numRows][numCols];
+        this.BOX_SIZE = boxSize;
+        this.rowShift = rowShift(numCols);
+        this.numWords = ((numRows << rowShift) + 63) / 64;
+        this.grid = new long[numWords];
         this.gridCellSize = 40;
         this.score = 0;
         initialiseGrid();
+        initialiseRegionMasks();
+        this.placementIndex = new PlacementIndex(this);
+    }
+
+    // Bits each row takes on a board with numCols columns, as a shift
+    static int rowShift(int numCols) {
+        return 32 - Integer.numberOfLeadingZeros(numCols - 1);
     }
 
     private void initialiseGrid() {
+        Arrays.fill(grid, 0L); // 0 bits represent empty cells
+    }
+
+    /* Use the row, column and square masks of the grid size, built by the first grid of
+    that size and shared with every later one, so many small grids (e.g. server sessions)
+    do not each carry a copy. Nothing modifies them after they are built */
+    private void initialiseRegionMasks() {
+        squaresX = numRows / BOX_SIZE;
+        squaresY = numCols / BOX_SIZE;
+        List<Integer> size = List.of(numRows, numCols, BOX_SIZE);
+        RegionTables tables = sharedRegionTables.get(size);
+        if (tables == null) {
+            buildRegionMasks();
+            sharedRegionTables.putIfAbsent(size,
+                    new RegionTables(squareRow, squareCol, regionWords, regionBits, regionShapes));
+        } else {
+            squareRow = tables.squareRow();
+            squareCol = tables.squareCol();
+            regionWords = tables.regionWords();
+            regionBits = tables.regionBits();
+            regionShapes = tables.regionShapes();
+        }
+
+        int regions = regionWords.length;
+        dirtyRegions = new long[(regions + 63) / 64];
+        candidateRegions = new long[(regions + 63) / 64];
+        lastClearedRegions = new long[(regions + 63) / 64];
+        previewGrid = new long[numWords];
+        clearMask = new long[numWords];
+        clearedWords = new int[numWords];
+        restoreMask = new long[numWords];
+        poppableRegions = new ArrayList<>();
+    }
+
+    // Build the row, column and square masks for the grid size
+    private void buildRegionMasks() {
+        int regions = numRows + numCols + squaresX * squaresY;
+        regionWords = new int[regions][];
+        regionBits = new long[regions][];
+        regionShapes = new Shape[regions];
+
+        long[] mask = new long[numWords];
         for (int i = 0; i < numRows; i++) {
             for (int j = 0; j < numCols; j++) {
-                grid[i][j] = 0; // 0 represents an empty cell
+                setBit(mask, i, j);
+            }
+            addRegion(i, mask);
+        }
+
+        for (int j = 0; j < numCols; j++) {
+            for (int i = 0; i < numRows; i++) {
+                setBit(mask, i, j);
+            }
+            addRegion(numRows + j, mask);
+        }
+
+        // Only squares that lie completely inside the grid are regions
+        for (int i = 0; i < squaresX; i++) {
+            for (int j = 0; j < squaresY; j++) {
+                for (int x = i * BOX_SIZE; x < (i + 1) * BOX_SIZE; x++) {
+                    for (int y = j * BOX_SIZE; y < (j + 1) * BOX_SIZE; y++) {
+                        setBit(mask, x, y);
+                    }
+                }
+                addRegion(numRows + numCols + i * squaresY + j, mask);
+            }
+        }
+
+        squareRow = new int[numRows];
+        for (int x = 0; x < numRows; x++) {
+            squareRow[x] = x < squaresX * BOX_SIZE ? numRows + numCols + x / BOX_SIZE * squaresY : -1;
+        }
+        squareCol = new int[numCols];
+        for (int y = 0; y < numCols; y++) {
+            squareCol[y] = y < squaresY * BOX_SIZE ? y / BOX_SIZE : -1;
+        }
+    }
+
+    // Keep the words of the mask that have bits set as the region, and empty the mask for the next one
+    private void addRegion(int region, long[] mask) {
+        int count = 0;
+        for (long word : mask) {
+            if (word != 0) {
+                count++;
+            }
+        }
+        int[] words = new int[count];
+        long[] bits = new long[count];
+        count = 0;
+        for (int w = 0; w < numWords; w++) {
+            if (mask[w] != 0) {
+                words[count] = w;
+                bits[count++] = mask[w];
+                mask[w] = 0;
             }
         }
+        regionWords[region] = words;
+        regionBits[region] = bits;
+        regionShapes[region] = buildRegionShape(region);
+    }
+
+    // Empty every cell and reset the score, so the grid can be reused for a new game
+    public void reset() {
+        initialiseGrid();
+        score = 0;
+        Arrays.fill(clearCounts, 0);
+        Arrays.fill(dirtyRegions, 0L);
+        version++;
+        placementIndex.reset();
     }
 
     public int getNumRows() {
@@ -45,9 +229,85 @@ public class Grid {
         return score;
     }
 
+    // Number of regions of the given type cleared so far
+    public int getClearCount(RegionType type) {
+        return clearCounts[type.ordinal()];
+    }
+
+    // Type of the region with the given index (rows, then columns, then squares)
+    RegionType getRegionType(int region) {
+        if (region < numRows) {
+            return RegionType.ROW;
+        }
+        return region < numRows + numCols ? RegionType.COLUMN : RegionType.SQUARE;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // Bit position of cell (x,y) in the bitboard
+    int bitIndex(int x, int y) {
+        return x << rowShift | y;
+    }
+
+    // Grid x coordinate of the cell at a bit position
+    int cellX(int index) {
+        return index >>> rowShift;
+    }
+
+    // Grid y coordinate of the cell at a bit position
+    int cellY(int index) {
+        return index & ((1 << rowShift) - 1);
+    }
+
+    // Check if (x,y) lies within the grid bounds
+    boolean inBounds(int x, int y) {
+        return x >= 0 && x < numRows && y >= 0 && y < numCols;
+    }
+
+    private void setBit(long[] bits, int x, int y) {
+        int index = bitIndex(x, y);
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private boolean testBit(long[] bits, int x, int y) {
+        int index = bitIndex(x, y);
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    // Fill a cell of the grid, noting the regions through it as ones that may have become full
+    private void fill(int x, int y) {
+        setBit(grid, x, y);
+        markDirty(x);
+        markDirty(numRows + y);
+        int square = squareOf(x, y);
+        if (square >= 0) {
+            markDirty(square);
+        }
+    }
+
+    // Region index of the square containing (x,y), or -1 if it is not in a whole square
+    private int squareOf(int x, int y) {
+        int row = squareRow[x];
+        int col = squareCol[y];
+        return row < 0 || col < 0 ? -1 : row + col;
+    }
+
+    private void markDirty(int region) {
+        dirtyRegions[region >>> 6] |= 1L << region;
+    }
+
     // Check if a cell is filled
     public boolean isCellFilled(int row, int col) {
-        return grid[row][col] == 1;
+        return testBit(grid, row, col);
+    }
+
+    // Mark a single cell as occupied (used to set up boards directly)
+    void fillCell(int row, int col) {
+        fill(row, col);
+        placementIndex.cellFilled(row, col);
+        version++;
     }
 
     /* Check if you can place shape on the grid, where
@@ -60,173 +320,366 @@ public class Grid {
     }
 
     // Check if the grid location is clear
-    private boolean canPlaceGrid(Shape shape, int[][] grid) {
-        for (Cell cell : shape) {
-            int x = cell.x();
-            int y = cell.y();
+    private boolean canPlaceGrid(Shape shape, long[] grid) {
+        for (int i = 0; i < shape.size(); i++) {
+            int x = shape.x(i);
+            int y = shape.y(i);
 
             // Check if the cell is within the grid bounds and not occupied
-            if (x < 0 || x >= numRows || y < 0 || y >= numCols || grid[x][y] == 1) {
+            if (!inBounds(x, y) || testBit(grid, x, y)) {
                 return false;
             }
         }
         return true;
     }
 
-    /* Gets a list of complete regions in the game grid,
-    including full rows, columns, and 3x3 squares */
-    private List<Shape> getFullRegions() {
-        return getFullRegionsGrid(grid);
+    /* Put the ghost shape on a scratch bitset over the grid and get the poppable
+    regions: the full regions through the ghost's cells, plus any region already full
+    (only possible among the dirty ones), in region order. Only those regions are read. Nothing is allocated per
+    call: the returned list is reused and overwritten by the next call, and the
+    region shapes in it are shared across calls */
+    public List<Shape> getPoppableRegions(Shape ghostShape) {
+        long start = Metrics.start();
+        List<Shape> regions = findPoppableRegions(ghostShape);
+        Metrics.stop(Metrics.Timer.POPPABLE_REGIONS, start);
+        return regions;
     }
 
-    // Get the full regions on the grid
-    private List<Shape> getFullRegionsGrid(int[][] grid) {
-        List<Shape> fullRegions = new ArrayList<>();
+    private List<Shape> findPoppableRegions(Shape ghostShape) {
+        if (ghostShape == null) {
+            return null;
+        }
 
-        // Check each row
-        for (int i = 0; i < numRows; i++) {
-            if (isRowFull(i, grid)) {
-                fullRegions.add(getRowShape(i));
+        // Indexed loops avoid creating an iterator on every drag event
+        for (int i = 0; i < ghostShape.size(); i++) {
+            if (!inBounds(ghostShape.x(i), ghostShape.y(i))) {
+                return null;
             }
         }
 
-        // Check each column
-        for (int j = 0; j < numCols; j++) {
-            if (isColumnFull(j, grid)) {
-                fullRegions.add(getColumnShape(j));
+        /* Dirty regions that are not full yet stay that way until filled into again, so
+        stop tracking them, the ones left are full and always poppable */
+        for (int w = 0; w < dirtyRegions.length; w++) {
+            long bits = dirtyRegions[w];
+            while (bits != 0) {
+                int region = w * 64 + Long.numberOfTrailingZeros(bits);
+                if (!isRegionFull(region, grid)) {
+                    dirtyRegions[w] &= ~(1L << region);
+                }
+                bits &= bits - 1;
             }
+            candidateRegions[w] = dirtyRegions[w];
         }
 
-        // Check each 3x3 square
-        for (int i = 0; i < numRows; i += 3) {
-            for (int j = 0; j < numCols; j += 3) {
-                if (isSquareFull(i, j, grid)) {
-                    fullRegions.add(getSquareShape(i, j));
+        // Mark the regions through the ghost's cells, the bitset lists each candidate once and in order
+        for (int i = 0; i < ghostShape.size(); i++) {
+            int x = ghostShape.x(i);
+            int y = ghostShape.y(i);
+            setBit(previewGrid, x, y);
+            candidateRegions[x >>> 6] |= 1L << x;
+            int column = numRows + y;
+            candidateRegions[column >>> 6] |= 1L << column;
+            int square = squareOf(x, y);
+            if (square >= 0) {
+                candidateRegions[square >>> 6] |= 1L << square;
+            }
+        }
+
+        // Get full regions on the grid with the ghost's cells added (poppable regions)
+        poppableRegions.clear();
+        for (int w = 0; w < candidateRegions.length; w++) {
+            long bits = candidateRegions[w];
+            candidateRegions[w] = 0;
+            while (bits != 0) {
+                int region = w * 64 + Long.numberOfTrailingZeros(bits);
+                if (isRegionFull(region, grid, previewGrid)) {
+                    poppableRegions.add(regionShapes[region]);
                 }
+                bits &= bits - 1;
             }
         }
 
-        return fullRegions;
+        for (int i = 0; i < ghostShape.size(); i++) {
+            int index = bitIndex(ghostShape.x(i), ghostShape.y(i));
+            previewGrid[index >>> 6] = 0;
+        }
+        return poppableRegions;
     }
 
-    // Put the ghost shape in a copy of the grid and get the poppable regions
-    public List<Shape> getPoppableRegions(Shape ghostShape) {
-        // Create a copy of the grid
-        int[][] copyGrid = copyGrid();
+    /* Set the cells of full regions to empty again and update the score
+    based on the number of cleared regions, which is also returned. Only the
+    regions filled into since the last call are checked */
+    public int clearFullRegions() {
+        long start = Metrics.start();
+        int cleared = clearRegions();
+        Metrics.stop(Metrics.Timer.CLEAR_FULL_REGIONS, start);
+        return cleared;
+    }
 
-        for (Cell cell : ghostShape) {
-            if (cell.x() < 0 || cell.x() >= numRows || cell.y() < 0 || cell.y() >= numCols) {
-                return null;
+    private int clearRegions() {
+        Arrays.fill(lastClearCounts, 0);
+        Arrays.fill(lastClearedRegions, 0L);
+        // Forget the cells emptied by the previous call
+        for (int i = 0; i < clearedWordCount; i++) {
+            clearMask[clearedWords[i]] = 0;
+        }
+        clearedWordCount = 0;
+        int cleared = 0;
+
+        // Collect every full region first, so overlapping regions all count
+        for (int w = 0; w < dirtyRegions.length; w++) {
+            long dirty = dirtyRegions[w];
+            dirtyRegions[w] = 0;
+            while (dirty != 0) {
+                int region = w * 64 + Long.numberOfTrailingZeros(dirty);
+                dirty &= dirty - 1;
+                if (isRegionFull(region, grid)) {
+                    int[] words = regionWords[region];
+                    long[] bits = regionBits[region];
+                    for (int k = 0; k < words.length; k++) {
+                        if (clearMask[words[k]] == 0) {
+                            clearedWords[clearedWordCount++] = words[k];
+                        }
+                        clearMask[words[k]] |= bits[k];
+                    }
+                    clearCounts[getRegionType(region).ordinal()]++;
+                    lastClearCounts[getRegionType(region).ordinal()]++;
+                    lastClearedRegions[region >>> 6] |= 1L << region;
+                    cleared++;
+                }
             }
         }
+        if (cleared == 0) {
+            return 0;
+        }
 
-        // Place the shape on the copy grid
-        placeShapeGrid(ghostShape, copyGrid);
+        for (int i = 0; i < clearedWordCount; i++) {
+            grid[clearedWords[i]] &= ~clearMask[clearedWords[i]]; // Set the cells to empty
+        }
 
-        // Get full regions on the copy grid (poppable regions)
-        return getFullRegionsGrid(copyGrid);
+        score += cleared;
+        // Only re-check placements around the cells that were just emptied
+        for (int i = 0; i < clearedWordCount; i++) {
+            int w = clearedWords[i];
+            long bits = clearMask[w];
+            while (bits != 0) {
+                int index = w * 64 + Long.numberOfTrailingZeros(bits);
+                placementIndex.cellCleared(cellX(index), cellY(index));
+                bits &= bits - 1;
+            }
+        }
+        version++;
+        return cleared;
     }
 
-    /* Set the cells of full regions to empty again and update
-    the score based on the number of cleared regions */
-    public void clearFullRegions() {
-        List<Shape> fullRegions = getFullRegions();
-
-        for (Shape region : fullRegions) {
-            for (Cell cell : region) {
-                int x = cell.x();
-                int y = cell.y();
-                grid[x][y] = 0; // Set the cell to empty
+    // Check if every cell of the region is occupied
+    private boolean isRegionFull(int region, long[] grid) {
+        int[] words = regionWords[region];
+        long[] bits = regionBits[region];
+        for (int k = 0; k < words.length; k++) {
+            if ((grid[words[k]] & bits[k]) != bits[k]) {
+                return false; // Found an empty cell in the region
             }
         }
+        return true; // All cells in the region are occupied
+    }
 
-        score += fullRegions.size();
+    // Check if every cell of the region is occupied in either bitset
+    private boolean isRegionFull(int region, long[] grid, long[] overlay) {
+        int[] words = regionWords[region];
+        long[] bits = regionBits[region];
+        for (int k = 0; k < words.length; k++) {
+            int w = words[k];
+            if (((grid[w] | overlay[w]) & bits[k]) != bits[k]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     // Check if a row is full
-    boolean isRowFull(int row, int[][] grid) {
-        for (int j = 0; j < numCols; j++) {
-            if (grid[row][j] == 0) {
-                return false; // Found an empty cell in the row
+    boolean isRowFull(int row, long[] grid) {
+        return isRegionFull(row, grid);
+    }
+
+    // Check if a column is full
+    boolean isColumnFull(int col, long[] grid) {
+        return isRegionFull(numRows + col, grid);
+    }
+
+    // Check if the square with its top-left cell at (startX,startY) is full
+    boolean isSquareFull(int startX, int startY, long[] grid) {
+        return isRegionFull(squareOf(startX, startY), grid);
+    }
+
+    // Get the shape made up of the cells of a region
+    private Shape buildRegionShape(int region) {
+        List<Cell> cells = new ArrayList<>();
+        int[] words = regionWords[region];
+        long[] bits = regionBits[region];
+        for (int k = 0; k < words.length; k++) {
+            long word = bits[k];
+            while (word != 0) {
+                int index = words[k] * 64 + Long.numberOfTrailingZeros(word);
+                cells.add(Cell.of(cellX(index), cellY(index)));
+                word &= word - 1;
             }
         }
-        return true; // All cells in the row are occupied
+        return new Shape(cells, 0, 0);
     }
 
-    // Check if a column is full
-    boolean isColumnFull(int col, int[][] grid) {
-        for (int i = 0; i < numRows; i++) {
-            if (grid[i][col] == 0) {
-                return false; // Found an empty cell in the column
+    // Places the shape on the grid
+    public void placeShape(Shape shape) {
+        // Check every cell first, so a shape sticking out of the grid changes nothing
+        for (int i = 0; i < shape.size(); i++) {
+            if (!inBounds(shape.x(i), shape.y(i))) {
+                throw new IndexOutOfBoundsException("Cell " + shape.get(i) + " is outside the grid");
             }
         }
-        return true; // All cells in the column are occupied
+        for (int i = 0; i < shape.size(); i++) {
+            int x = shape.x(i);
+            int y = shape.y(i);
+            fill(x, y);
+            placementIndex.cellFilled(x, y);
+        }
+        version++;
     }
 
-    // Check if a 3x3 square is full
-    boolean isSquareFull(int startX, int startY, int[][] grid) {
-        for (int i = startX; i < startX + 3; i++) {
-            for (int j = startY; j < startY + 3; j++) {
-                if (grid[i][j] == 0) {
-                    return false; // Found an empty cell in the square
+    /* Check if the shape, with its cells as offsets from an anchor,
+    fits on the grid when anchored at (x,y) */
+    public boolean canPlaceAt(Shape shape, int x, int y) {
+        ShapeCatalog.BoardMasks masks = masksFor(shape);
+        if (masks != null) {
+            // Catalog shapes: look up the cells covered at this anchor and test them at once
+            long[] mask = inBounds(x, y) ? masks.mask(shape, x, y) : null;
+            if (mask == null) {
+                return false;
+            }
+            // Only the words of the rows the shape spans can overlap it
+            int last = bitIndex(x + shape.getShapeWidth() - 1, numCols - 1) >>> 6;
+            for (int w = bitIndex(x, 0) >>> 6; w <= last; w++) {
+                if ((grid[w] & mask[w]) != 0) {
+                    return false;
                 }
             }
+            return true;
         }
-        return true; // All cells in the square are occupied
-    }
 
-    // Get the shapes of a full row
-    private Shape getRowShape(int row) {
-        List<Cell> cells = new ArrayList<>();
-        for (int j = 0; j < numRows; j++) {
-            cells.add(new Cell(row, j));
+        for (int i = 0; i < shape.size(); i++) {
+            int cellX = x + shape.x(i);
+            int cellY = y + shape.y(i);
+            if (!inBounds(cellX, cellY) || testBit(grid, cellX, cellY)) {
+                return false;
+            }
         }
-        return new Shape(cells, 0, 0);
+        return true;
     }
 
-    // Get the shapes of a full column
-    private Shape getColumnShape(int col) {
-        List<Cell> cells = new ArrayList<>();
-        for (int i = 0; i < numCols; i++) {
-            cells.add(new Cell(i, col));
+    // Placement masks for the shape's catalog on this grid, or null for shapes from no catalog
+    private ShapeCatalog.BoardMasks masksFor(Shape shape) {
+        if (shape.catalog == null) {
+            return null;
         }
-        return new Shape(cells, 0, 0);
+        if (shape.catalog != maskCatalog) {
+            maskCatalog = shape.catalog;
+            boardMasks = maskCatalog.masksFor(this);
+        }
+        return boardMasks;
     }
 
-    // Get the shapes of a 3x3 square
-    private Shape getSquareShape(int startX, int startY) {
-        List<Cell> cells = new ArrayList<>();
-        for (int i = startX; i < startX + 3; i++) {
-            for (int j = startY; j < startY + 3; j++) {
-                cells.add(new Cell(i, j));
+    /* Places the shape, with its cells as offsets from an anchor, at (x,y)
+    without building a translated copy of it */
+    public void placeShapeAt(Shape shape, int x, int y) {
+        for (int i = 0; i < shape.size(); i++) {
+            int cellX = x + shape.x(i);
+            int cellY = y + shape.y(i);
+            if (!inBounds(cellX, cellY)) {
+                throw new IndexOutOfBoundsException("Cell " + shape.get(i) + " at (" + x + "," + y + ") is outside the grid");
             }
+            fill(cellX, cellY);
+            placementIndex.cellFilled(cellX, cellY);
         }
-        return new Shape(cells, 0, 0);
+        version++;
     }
 
-    // Places the shape on the grid
-    public void placeShape(Shape shape) {
-        placeShapeGrid(shape, grid);
+    // Creates a copy of the grid
+    public long[] copyGrid() {
+        return Arrays.copyOf(grid, numWords);
+    }
+
+    // Creates an independent grid with the same cells and score
+    public Grid copy() {
+        Grid copy = new Grid(numRows, numCols, BOX_SIZE);
+        System.arraycopy(grid, 0, copy.grid, 0, numWords);
+        System.arraycopy(dirtyRegions, 0, copy.dirtyRegions, 0, dirtyRegions.length);
+        copy.score = score;
+        return copy;
     }
 
-    // Places the shape on the specified grid, marking the corresponding cells as occupied
-    private void placeShapeGrid(Shape shape, int[][] grid) {
-        for (Cell cell : shape) {
-            int x = cell.x();
-            int y = cell.y();
-            grid[x][y] = 1; // 1 represents an occupied cell
+    /* Puts the cells (as returned by copyGrid) and score back, e.g. to undo moves
+    tried during a search. Only the cells that differ are reported to the placement index */
+    public void restore(long[] cells, int score) {
+        for (int w = 0; w < numWords; w++) {
+            long filled = cells[w] & ~grid[w];
+            while (filled != 0) {
+                int index = w * 64 + Long.numberOfTrailingZeros(filled);
+                fill(cellX(index), cellY(index));
+                placementIndex.cellFilled(cellX(index), cellY(index));
+                filled &= filled - 1;
+            }
+        }
+        // Empty cells only once the whole board is final, so re-checked anchors see the final board
+        for (int w = 0; w < numWords; w++) {
+            restoreMask[w] = grid[w] & ~cells[w];
+            grid[w] = cells[w];
+        }
+        for (int w = 0; w < numWords; w++) {
+            long emptied = restoreMask[w];
+            while (emptied != 0) {
+                int index = w * 64 + Long.numberOfTrailingZeros(emptied);
+                placementIndex.cellCleared(cellX(index), cellY(index));
+                emptied &= emptied - 1;
+            }
         }
+        this.score = score;
+        version++;
     }
 
-    // Creates a copy of the grid
-    public int[][] copyGrid() {
-        int[][] copy = new int[numRows][numCols];
-        for (int i = 0; i < numRows; i++) {
-            for (int j = 0; j < numCols; j++) {
-                copy[i][j] = grid[i][j];
+    /* Takes back placing the shape at (x,y) and the clear that followed it, given the
+    regions that clear emptied (a bitset like lastClearedRegions, starting at the offset)
+    and the score it gained. Every cell of a cleared region was filled when it cleared,
+    so the regions are filled back whole and then the shape's cells are emptied. The
+    work follows the cells changed, not the board or the moves played since */
+    public void undoPlacement(Shape shape, int x, int y, long[] clearedRegions, int offset, int scoreDelta) {
+        for (int w = 0; w < lastClearedRegions.length; w++) {
+            long regions = clearedRegions[offset + w];
+            while (regions != 0) {
+                int region = w * 64 + Long.numberOfTrailingZeros(regions);
+                int[] words = regionWords[region];
+                long[] bits = regionBits[region];
+                for (int k = 0; k < words.length; k++) {
+                    long emptied = bits[k] & ~grid[words[k]];
+                    while (emptied != 0) {
+                        int index = words[k] * 64 + Long.numberOfTrailingZeros(emptied);
+                        fill(cellX(index), cellY(index));
+                        placementIndex.cellFilled(cellX(index), cellY(index));
+                        emptied &= emptied - 1;
+                    }
+                }
+                clearCounts[getRegionType(region).ordinal()]--;
+                regions &= regions - 1;
             }
         }
-        return copy;
+        // Empty the shape's cells only once the whole board is final, so re-checked anchors see it
+        for (int i = 0; i < shape.size(); i++) {
+            int index = bitIndex(x + shape.x(i), y + shape.y(i));
+            grid[index >>> 6] &= ~(1L << index);
+        }
+        for (int i = 0; i < shape.size(); i++) {
+            placementIndex.cellCleared(x + shape.x(i), y + shape.y(i));
+        }
+        score -= scoreDelta;
+        version++;
     }
 
     // Checks if the top-left position of the selected piece is within the grid
@@ -252,8 +705,42 @@ public class Grid {
         return false;
     }
 
-    // Checks for game over conditions
+    // Checks for game over conditions: no piece in the palette fits anywhere on the grid
     public boolean isGameOver(Palette palette) {
+        long start = Metrics.start();
+        boolean gameOver = noPieceFits(palette);
+        Metrics.stop(Metrics.Timer.IS_GAME_OVER, start);
+        return gameOver;
+    }
+
+    private boolean noPieceFits(Palette palette) {
+        for (Piece piece : palette.getPieces()) {
+            if (getLegalMoveCount(piece) > 0) {
+                // If a piece can be placed, the game is not over
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Number of grid locations where the piece can be placed, read from the placement index
+    public int getLegalMoveCount(Piece piece) {
+        return getLegalMoveCount(piece.getShape());
+    }
+
+    // Number of anchors where the shape, with its cells as offsets, fits on the grid
+    public int getLegalMoveCount(Shape shape) {
+        return placementIndex.getLegalMoveCount(shape);
+    }
+
+    // Bitset of the anchors where the shape fits, indexed by bit position - do not modify
+    public long[] getLegalAnchors(Shape shape) {
+        return placementIndex.getLegalAnchors(shape);
+    }
+
+    /* Reference game over check that tries every grid location for every piece,
+    used to verify the placement index */
+    boolean isGameOverBruteForce(Palette palette) {
         // Loop through every possible grid location
         for (int row = 0; row < numRows; row++) {
             for (int col = 0; col < numCols; col++) {
@@ -270,14 +757,27 @@ public class Grid {
         return true;
     }
 
+    // Reference count of the grid locations where the piece can be placed
+    int countLegalMovesBruteForce(Piece piece) {
+        int count = 0;
+        for (int row = 0; row < numRows; row++) {
+            for (int col = 0; col < numCols; col++) {
+                if (canPlacePiece(piece, row, col)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
     // Check if the piece can be placed in the specified grid location
     private boolean canPlacePiece(Piece piece, int row, int col) {
         for (Cell cell : piece.getShape()) {
-            int cellX = col + cell.x();
-            int cellY = row + cell.y();
+            int cellX = row + cell.x();
+            int cellY = col + cell.y();
 
             // Check if the cell is within the grid bounds and not already occupied
-            if (cellX < 0 || cellX >= numRows || cellY < 0 || cellY >= numCols || grid[cellX][cellY] == 1) {
+            if (!inBounds(cellX, cellY) || testBit(grid, cellX, cellY)) {
                 return false;
             }
         }
@@ -0,0 +1,419 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/* GridBenchmark measures the Grid, Piece, Palette, drag and paint hot paths on boards of
+different sizes and fill densities, reporting time and allocated bytes per operation
+plus GC activity. Results are printed as CSV so they can be checked in as a baseline
+and compared against later runs, flagging regressions.
+Run with: java GridBenchmark [--measure millis] [--compare baseline.csv] */
+public class GridBenchmark {
+    static final int[] SIZES = {9, 18};
+    // Fill densities, NEAR_DEAD leaves only a few legal moves for the palette
+    static final double NEAR_DEAD = -1;
+    static final double[] DENSITIES = {0.0, 0.3, 0.6, NEAR_DEAD};
+    static final int WARMUP_ITERATIONS = 2;
+    static final int MEASURE_ITERATIONS = 3;
+    // A run is a regression if it is this much slower than the baseline
+    static final double TIME_TOLERANCE = 1.25;
+    // Or allocates this many more bytes per operation
+    static final double ALLOCATION_TOLERANCE = 16;
+
+    // Results are written here so the JIT cannot remove the measured work
+    static volatile long sink;
+
+    static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // A benchmarked operation, called with an increasing counter
+    interface Operation {
+        long run(int i);
+    }
+
+    record Result(String name, int size, String density, double nanosPerOp, double bytesPerOp,
+                  long gcCount, long gcMillis) {
+        String key() {
+            return name + "," + size + "," + density;
+        }
+
+        String toCsv() {
+            return String.format("%s,%.1f,%.1f,%d,%d", key(), nanosPerOp, bytesPerOp, gcCount, gcMillis);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long measureMillis = 200;
+        Path baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--measure")) {
+                measureMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--compare")) {
+                baseline = Path.of(args[++i]);
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        System.out.println("benchmark,size,density,ns/op,B/op,gcCount,gcMillis");
+        for (int size : SIZES) {
+            for (double density : DENSITIES) {
+                for (Result result : runAll(size, density, measureMillis)) {
+                    System.out.println(result.toCsv());
+                    results.add(result);
+                }
+            }
+        }
+
+        if (baseline != null && compare(results, baseline) > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Runs every benchmark against one board configuration
+    static List<Result> runAll(int size, double density, long measureMillis) {
+        String densityName = density == NEAR_DEAD ? "near-dead" : String.valueOf(density);
+        Random random = new Random(size * 31L + (long) (density * 100));
+        Palette palette = new Palette();
+        Grid grid = fillGrid(new Grid(size, size), palette, density, random);
+        List<Shape> ghosts = randomGhosts(grid, palette, random);
+        List<Result> results = new ArrayList<>();
+
+        results.add(measure("canPlace", size, densityName, measureMillis,
+                i -> grid.canPlace(ghosts.get(i & 255)) ? 1 : 0));
+        results.add(measure("getPoppableRegions", size, densityName, measureMillis,
+                i -> grid.getPoppableRegions(ghosts.get(i & 255)).size()));
+        results.add(measure("clearFullRegions", size, densityName, measureMillis,
+                i -> grid.clearFullRegions()));
+        results.add(measure("isGameOver", size, densityName, measureMillis,
+                i -> grid.isGameOver(palette) ? 1 : 0));
+        results.add(measure("isGameOverBruteForce", size, densityName, measureMillis,
+                i -> grid.isGameOverBruteForce(palette) ? 1 : 0));
+        results.add(measure("copyGrid", size, densityName, measureMillis,
+                i -> grid.copyGrid().length));
+
+        // Filling then clearing a whole row on an empty board
+        Grid clearGrid = new Grid(size, size);
+        List<Cell> rowCells = new ArrayList<>();
+        for (int y = 0; y < size; y++) {
+            rowCells.add(new Cell(0, y));
+        }
+        Shape row = new Shape(rowCells, size, 1);
+        results.add(measure("placeAndClearRow", size, densityName, measureMillis, i -> {
+            clearGrid.placeShape(row);
+            return clearGrid.clearFullRegions();
+        }));
+
+        // Snapping a piece at pixel positions sweeping across the grid
+        Piece piece = palette.getPieces().get(0);
+        results.add(measure("snapToGrid", size, densityName, measureMillis, i -> {
+            piece.x = 7 + (i * 13) % (size * 40);
+            piece.y = 55 + (i * 7) % (size * 40);
+            Shape snapped = piece.snapToGrid(size, size);
+            return snapped == null ? 0 : snapped.size();
+        }));
+
+        // Refreshing after one piece is placed, which deals a single slot
+        Palette refreshed = new Palette(grid, PieceGenerator.random(1));
+        results.add(measure("paletteRefresh", size, densityName, measureMillis, i -> {
+            refreshed.getPieces().get(0).state = PieceState.PLACED;
+            refreshed.refresh();
+            return refreshed.getPieces().size();
+        }));
+
+        results.add(measureDrag(grid, size, densityName, measureMillis));
+        for (int scale = 1; scale <= 2; scale++) {
+            results.addAll(measurePaint(grid, ghosts, size, densityName, scale, measureMillis));
+        }
+        return results;
+    }
+
+    /* Paints drag frames off-screen at the given scale (2 for a high-DPI screen): a whole
+    frame painted cell by cell as before the layers were cached, a whole frame from the
+    cached layers, and only the dirty area of a drag step */
+    static List<Result> measurePaint(Grid grid, List<Shape> ghosts, int size, String densityName, int scale,
+                                     long measureMillis) {
+        Palette palette = new Palette();
+        BoardRenderer renderer = new BoardRenderer();
+        Piece piece = palette.getPieces().get(0);
+        piece.state = PieceState.IN_PLAY;
+        renderer.selectedPiece = piece;
+        renderer.palettePieces = palette.getPieces().subList(1, Palette.PALETTE_SIZE);
+        // One snapshot per ghost, as the model would publish them during the drag
+        List<BoardSnapshot> snapshots = new ArrayList<>();
+        for (Shape ghost : ghosts) {
+            snapshots.add(BoardSnapshot.capture(grid, palette.shapes, ghost, null, null, false, 0, 0, 0));
+        }
+        int width = BoardRenderer.boardWidth(snapshots.get(0));
+        int height = BoardRenderer.boardHeight(snapshots.get(0)) + 180;
+        BufferedImage frame = new BufferedImage(width * scale, height * scale, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = frame.createGraphics();
+        g.scale(scale, scale);
+        String suffix = scale == 1 ? "" : "@" + scale + "x";
+
+        // Each frame moves the piece 3 pixels along a sweep and shows another ghost
+        Operation step = i -> {
+            piece.x = (i * 3) % (size * 40);
+            piece.y = 100 + (i / size) % 200;
+            g.setClip(null);
+            renderer.paint(g, snapshots.get(i & 255), width, height);
+            return renderer.getPaintCount();
+        };
+        List<Result> results = new ArrayList<>();
+        renderer.cacheLayers = false;
+        results.add(measure("paintFrameUncached" + suffix, size, densityName, measureMillis, step));
+        renderer.cacheLayers = true;
+        results.add(measure("paintFrame" + suffix, size, densityName, measureMillis, step));
+        results.add(measure("paintDragDirty" + suffix, size, densityName, measureMillis, i -> {
+            piece.x = (i * 3) % (size * 40);
+            piece.y = 100 + (i / size) % 200;
+            BoardSnapshot snapshot = snapshots.get(i & 255);
+            g.setClip(renderer.takeDirtyArea(snapshot));
+            renderer.paint(g, snapshot, width, height);
+            return renderer.getPaintCount();
+        }));
+        g.dispose();
+        return results;
+    }
+
+    /* Replays a recorded drag back and forth over the grid through the controller,
+    timing the EDT's side of it: the previews are computed on the model's thread */
+    static Result measureDrag(Grid grid, int size, String densityName, long measureMillis) {
+        Palette palette = new Palette();
+        // The model takes over its grid, so give it a copy
+        GameController controller = new GameController(grid.copy(), palette, 20, new StubView());
+        JPanel source = new JPanel();
+
+        Piece piece = controller.pieces[0];
+        MouseEvent press = new MouseEvent(source, MouseEvent.MOUSE_PRESSED, 0, 0,
+                piece.x + 7 + 1, piece.y + 30 + 1, 1, false);
+        controller.mousePressed(press);
+
+        // Drag onto the grid first, then sweep right and back in 3 pixel steps
+        List<MouseEvent> drag = new ArrayList<>();
+        int x = press.getX();
+        int y = press.getY();
+        int targetY = 55 + 30 + 40;
+        while (y > targetY) {
+            y -= 3;
+            drag.add(new MouseEvent(source, MouseEvent.MOUSE_DRAGGED, 0, 0, x, y, 0, false));
+        }
+        int sweepStart = drag.size();
+        for (int step = 0; step < size * 40 / 3; step++) {
+            x += 3;
+            drag.add(new MouseEvent(source, MouseEvent.MOUSE_DRAGGED, 0, 0, x, y, 0, false));
+        }
+        for (int step = 0; step < size * 40 / 3; step++) {
+            x -= 3;
+            drag.add(new MouseEvent(source, MouseEvent.MOUSE_DRAGGED, 0, 0, x, y, 0, false));
+        }
+        for (int i = 0; i < sweepStart; i++) {
+            controller.mouseDragged(drag.get(i));
+        }
+        List<MouseEvent> sweep = drag.subList(sweepStart, drag.size());
+
+        Result result = measure("mouseDragged", size, densityName, measureMillis, i -> {
+            controller.mouseDragged(sweep.get(i % sweep.size()));
+            return controller.selectedPiece.x;
+        });
+        controller.getModel().shutdown();
+        return result;
+    }
+
+    /* Times the operation in warm-up and measurement iterations of the given length,
+    recording allocation on this thread and GC activity over the measured iterations */
+    static Result measure(String name, int size, String density, long iterationMillis, Operation operation) {
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++) {
+            runFor(operation, iterationMillis);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long ops = 0;
+        for (int iteration = 0; iteration < MEASURE_ITERATIONS; iteration++) {
+            ops += runFor(operation, iterationMillis);
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        return new Result(name, size, density, (double) elapsed / ops, (double) bytes / ops,
+                gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+    }
+
+    // Calls the operation in batches until the time is up, returns the number of calls
+    static long runFor(Operation operation, long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long result = 0;
+        int i = 0;
+        do {
+            // Check the clock once per batch so it does not dominate fast operations
+            for (int batch = 0; batch < 1024; batch++) {
+                result += operation.run(i++);
+            }
+        } while (System.nanoTime() < deadline);
+        sink = result;
+        return i;
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /* Fills random cells up to the density without completing any region. For
+    NEAR_DEAD it keeps filling while the palette still has at least one legal move */
+    static Grid fillGrid(Grid grid, Palette palette, double density, Random random) {
+        List<Cell> cells = new ArrayList<>();
+        for (int x = 0; x < grid.getNumRows(); x++) {
+            for (int y = 0; y < grid.getNumCols(); y++) {
+                cells.add(new Cell(x, y));
+            }
+        }
+        java.util.Collections.shuffle(cells, random);
+
+        int target = density == NEAR_DEAD ? cells.size() : (int) (density * cells.size());
+        int filled = 0;
+        for (Cell cell : cells) {
+            if (filled >= target) {
+                break;
+            }
+            Shape single = new Shape(List.of(cell), 1, 1);
+            if (!grid.getPoppableRegions(single).isEmpty()) {
+                continue;
+            }
+            if (density == NEAR_DEAD && legalMovesAvoiding(grid, palette, cell) == 0) {
+                continue;
+            }
+            grid.fillCell(cell.x(), cell.y());
+            filled++;
+        }
+        return grid;
+    }
+
+    // Number of legal palette placements that do not cover the given cell
+    static int legalMovesAvoiding(Grid grid, Palette palette, Cell cell) {
+        int count = 0;
+        for (Piece piece : palette.getPieces()) {
+            Shape shape = piece.getShape();
+            for (int x = 0; x < grid.getNumRows(); x++) {
+                for (int y = 0; y < grid.getNumCols(); y++) {
+                    if (grid.canPlaceAt(shape, x, y) && !covers(shape, x, y, cell)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    static boolean covers(Shape shape, int x, int y, Cell cell) {
+        for (Cell offset : shape) {
+            if (x + offset.x() == cell.x() && y + offset.y() == cell.y()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 256 palette shapes translated to random anchors that keep them inside the grid
+    static List<Shape> randomGhosts(Grid grid, Palette palette, Random random) {
+        List<Shape> ghosts = new ArrayList<>();
+        while (ghosts.size() < 256) {
+            Shape shape = palette.getPieces().get(random.nextInt(palette.getPieces().size())).getShape();
+            int anchorX = random.nextInt(grid.getNumRows());
+            int anchorY = random.nextInt(grid.getNumCols());
+            boolean inside = true;
+            for (Cell cell : shape) {
+                inside &= grid.inBounds(anchorX + cell.x(), anchorY + cell.y());
+            }
+            if (inside) {
+                ghosts.add(shape.translate(anchorX, anchorY));
+            }
+        }
+        return ghosts;
+    }
+
+    /* Compares results with a baseline CSV, printing every benchmark that got slower
+    or allocates more than the tolerances allow. Returns the number of regressions */
+    static int compare(List<Result> results, Path baselinePath) throws IOException {
+        Map<String, String[]> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselinePath)) {
+            String[] fields = line.split(",");
+            if (fields.length >= 5 && !fields[0].equals("benchmark") && !line.startsWith("#")) {
+                baseline.put(fields[0] + "," + fields[1] + "," + fields[2], fields);
+            }
+        }
+
+        int regressions = 0;
+        for (Result result : results) {
+            String[] fields = baseline.get(result.key());
+            if (fields == null) {
+                continue;
+            }
+            double baselineNanos = Double.parseDouble(fields[3]);
+            double baselineBytes = Double.parseDouble(fields[4]);
+            if (result.nanosPerOp() > baselineNanos * TIME_TOLERANCE
+                    || result.bytesPerOp() > baselineBytes + ALLOCATION_TOLERANCE) {
+                System.out.printf("REGRESSION %s: %.1f ns/op (baseline %.1f), %.1f B/op (baseline %.1f)%n",
+                        result.key(), result.nanosPerOp(), baselineNanos, result.bytesPerOp(), baselineBytes);
+                regressions++;
+            }
+        }
+        System.out.println(regressions + " regression(s) against " + baselinePath);
+        return regressions;
+    }
+
+    // View that ignores every update, so the controller can run without a display
+    static class StubView implements BoardView {
+        @Override
+        public void setSelectedPiece(Piece piece) {
+        }
+
+        @Override
+        public void setPalettePieces(List<Piece> pieces) {
+        }
+
+        @Override
+        public void updateScoreLabel(int score) {
+        }
+
+        @Override
+        public void showGameOverMessage(long rank) {
+        }
+
+        @Override
+        public void hideGameOverMessage() {
+        }
+
+        @Override
+        public void repaint() {
+        }
+
+        @Override
+        public void repaintChanges() {
+        }
+    }
+}
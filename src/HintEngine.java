@@ -0,0 +1,108 @@
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/* HintEngine class finding the recommended placement for the palette without
+ever running the search on the Event Dispatch Thread. restart() is called on the
+EDT whenever the board changes: it hands the model's snapshot of the board to a
+worker thread, which abandons any search for an older board, publishes a
+best-so-far hint within the latency budget and then keeps refining it with longer
+searches until one is complete. Hints are delivered back on the EDT, and only if
+the board has not changed since */
+public class HintEngine {
+    Solver solver;
+    long latencyBudgetNanos;
+    long refineBudgetNanos;
+    // Receives the hint (the recommended shape in grid coordinates, or null) on the EDT
+    Consumer<Shape> listener;
+    // Bumped by every restart or cancel, searches for an older generation stop
+    AtomicInteger generation = new AtomicInteger();
+    ExecutorService executor;
+    // Runs the solver's parallel search, owned by this engine
+    ForkJoinPool pool;
+
+    public HintEngine(long latencyBudgetMillis, long refineBudgetMillis, Consumer<Shape> listener) {
+        this.latencyBudgetNanos = latencyBudgetMillis * 1_000_000;
+        this.refineBudgetNanos = refineBudgetMillis * 1_000_000;
+        this.listener = listener;
+
+        // Leave a core free for the EDT so painting is never starved
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.pool = new ForkJoinPool(threads);
+        this.solver = new Solver(Evaluation.standard(), new ShapeSet().getShapes(), pool);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hint-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /* Start searching the snapshot's board, with the shapes still in its palette.
+    The search works on its own grid, built on the worker thread */
+    public void restart(BoardSnapshot board) {
+        int current = generation.incrementAndGet();
+        List<Shape> remaining = new ArrayList<>();
+        for (Shape shape : board.palette()) {
+            if (shape != null) {
+                remaining.add(shape);
+            }
+        }
+        Shape[] shapes = remaining.toArray(new Shape[0]);
+        executor.execute(() -> search(current, board.toGrid(), shapes));
+    }
+
+    // Stop any running search and drop results that have not been delivered yet
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    private void search(int current, Grid snapshot, Shape[] shapes) {
+        BooleanSupplier stale = () -> generation.get() != current;
+        if (stale.getAsBoolean()) {
+            return;
+        }
+
+        /* A quick answer within the latency budget, then searches with twice the budget
+        each time until one covers every line or the board changes */
+        SearchResult result = solver.search(snapshot, shapes, latencyBudgetNanos, Long.MAX_VALUE, stale);
+        publish(current, shapes, result);
+        long budget = refineBudgetNanos;
+        while (!result.complete() && !stale.getAsBoolean()) {
+            int previous = result.bestMove();
+            result = solver.search(snapshot, shapes, budget, Long.MAX_VALUE, stale);
+            if (result.bestMove() != previous && !stale.getAsBoolean()) {
+                publish(current, shapes, result);
+            }
+            budget = Math.min(budget * 2, Long.MAX_VALUE / 2);
+        }
+    }
+
+    private void publish(int current, Shape[] shapes, SearchResult result) {
+        Shape hint = toShape(shapes, result.bestMove());
+        SwingUtilities.invokeLater(() -> {
+            if (generation.get() == current) {
+                listener.accept(hint);
+            }
+        });
+    }
+
+    // The move's shape in grid coordinates, or null if there is no move
+    static Shape toShape(Shape[] shapes, int move) {
+        if (move < 0) {
+            return null;
+        }
+        return shapes[GameEngine.moveSlot(move)].translate(GameEngine.moveX(move), GameEngine.moveY(move));
+    }
+}
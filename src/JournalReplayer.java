@@ -0,0 +1,178 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/* JournalReplayer class re-executing the games in a journal written by JournalWriter on
+a GameEngine, which must deal from the same distribution, and by the same rule, as the
+games were played with (dealEachMove for games journaled through a GameSession).
+Every recorded move is checked to be legal and, when verifying, every checksum frame
+is compared with the replayed score and board, stopping at the first divergence.
+Replay stops at the end of the file or at a zero word, where the journal of a process
+that died before closing it ends. Undo frames are taken back through a MoveHistory the replayer gives the engine if it
+has none, so it must hold at least as many moves as the games were undone through.
+The journal is streamed through one reused buffer and moves go straight to the engine,
+so replay allocates nothing per move. Without verification the replay rebuilds scores
+under the current rules, e.g. after a scoring change.
+Run with: java JournalReplayer [games] [file] */
+public class JournalReplayer {
+    static final int HEADER_BYTES = 10;
+    static final int READ_BUFFER_SIZE = 1 << 20;
+
+    GameEngine engine;
+    boolean verifyChecksums;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    public JournalReplayer(GameEngine engine, boolean verifyChecksums) {
+        this.engine = engine;
+        this.verifyChecksums = verifyChecksums;
+        if (engine.history == null) {
+            engine.setHistory(new MoveHistory(engine.getGrid()));
+        }
+    }
+
+    /* Replays every game in the journal, handing the engine to the listener (if any)
+    after each game's last move. Stops at the first divergence */
+    public ReplayResult replay(Path path, Consumer<GameEngine> gameFinished) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer.clear().flip();
+            require(channel, HEADER_BYTES);
+            if (buffer.getInt() != JournalWriter.MAGIC || buffer.getShort() != JournalWriter.VERSION) {
+                throw new IOException("Not a version " + JournalWriter.VERSION + " journal: " + path);
+            }
+            int numRows = buffer.getShort();
+            int numCols = buffer.getShort();
+            if (numRows != engine.numRows || numCols != engine.numCols) {
+                throw new IOException("Journal is for " + numRows + "x" + numCols + " boards, the engine plays "
+                        + engine.numRows + "x" + engine.numCols);
+            }
+
+            long games = 0;
+            long moves = 0;
+            while (fill(channel, 2)) {
+                int word = buffer.getShort() & 0xFFFF;
+                if (word == JournalWriter.END_OF_DATA) {
+                    break;
+                } else if (word == JournalWriter.SEED_FRAME) {
+                    require(channel, 8);
+                    if (games > 0 && gameFinished != null) {
+                        gameFinished.accept(engine);
+                    }
+                    engine.newGame(buffer.getLong());
+                    games++;
+                } else if (word == JournalWriter.CHECKSUM_FRAME) {
+                    require(channel, 16);
+                    int recordedMoves = buffer.getInt();
+                    int recordedScore = buffer.getInt();
+                    long recordedHash = buffer.getLong();
+                    String divergence = !verifyChecksums ? null
+                            : recordedMoves != engine.getMovesPlayed() ? "recorded " + recordedMoves
+                                    + " moves, replayed " + engine.getMovesPlayed()
+                            : recordedScore != engine.getScore() ? "recorded score " + recordedScore
+                                    + ", replayed score " + engine.getScore()
+                            : recordedHash != JournalWriter.boardHash(engine.getGrid()) ? "the board differs"
+                            : null;
+                    if (divergence != null) {
+                        return diverged(games, moves, channel, start, divergence);
+                    }
+                } else if (word == JournalWriter.UNDO_FRAME) {
+                    if (!engine.undoMove()) {
+                        return diverged(games, moves, channel, start, "no move to undo");
+                    }
+                    moves--;
+                } else if (word >>> JournalWriter.ANCHOR_BITS == JournalWriter.FRAME_SHAPE_ID) {
+                    throw new IOException("Unknown frame " + Integer.toHexString(word) + " in " + path);
+                } else if (games == 0) {
+                    throw new IOException("Move before the first seed frame in " + path);
+                } else {
+                    int shapeId = (word >>> JournalWriter.ANCHOR_BITS) - 1;
+                    int anchor = word & (JournalWriter.MAX_CELLS - 1);
+                    int slot = findSlot(shapeId);
+                    if (slot < 0) {
+                        return diverged(games, moves, channel, start, "shape " + shapeId + " was not dealt");
+                    }
+                    int move = GameEngine.move(slot, anchor / numCols, anchor % numCols);
+                    if (!engine.isLegal(move)) {
+                        return diverged(games, moves, channel, start, "shape " + shapeId + " does not fit at ("
+                                + GameEngine.moveX(move) + "," + GameEngine.moveY(move) + ")");
+                    }
+                    engine.applyMove(move);
+                    moves++;
+                }
+            }
+            if (games > 0 && gameFinished != null) {
+                gameFinished.accept(engine);
+            }
+            return new ReplayResult(games, moves, channel.size(), System.nanoTime() - start, null, -1, -1);
+        }
+    }
+
+    // Slot holding the catalog shape with the given id, or -1 if none does
+    private int findSlot(int shapeId) {
+        for (int slot = 0; slot < GameEngine.PALETTE_SIZE; slot++) {
+            Shape shape = engine.getPaletteShape(slot);
+            if (shape != null && shape.id == shapeId) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private ReplayResult diverged(long games, long moves, FileChannel channel, long start, String divergence)
+            throws IOException {
+        return new ReplayResult(games - 1, moves, channel.size(), System.nanoTime() - start,
+                divergence, games - 1, engine.getMovesPlayed());
+    }
+
+    // Reads more of the file until the buffer holds the given number of bytes, false at the end of the file
+    private boolean fill(FileChannel channel, int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private void require(FileChannel channel, int bytes) throws IOException {
+        if (!fill(channel, bytes)) {
+            throw new EOFException("Journal ends in the middle of a frame");
+        }
+    }
+
+    /* Records random self-play games to a journal, then replays it with verification,
+    reporting replay speed and the rebuilt score statistics */
+    public static void main(String[] args) throws IOException {
+        long numGames = args.length > 0 ? Long.parseLong(args[0]) : 100_000;
+        Path path = args.length > 1 ? Path.of(args[1]) : Files.createTempFile("games", ".journal");
+
+        SelfPlayRunner runner = new SelfPlayRunner(9, 9, MovePolicy.random(), 1);
+        GameEngine recorder = runner.newEngine();
+        int[] moves = new int[recorder.maxMoves()];
+        try (JournalWriter journal = new JournalWriter(path, 9, 9)) {
+            recorder.setJournal(journal);
+            for (long game = 0; game < numGames; game++) {
+                runner.playGame(recorder, game, moves);
+            }
+        }
+
+        JournalReplayer replayer = new JournalReplayer(runner.newEngine(), true);
+        // Warm up the JIT before measuring
+        replayer.replay(path, null);
+        SelfPlayStats stats = new SelfPlayStats();
+        ReplayResult result = replayer.replay(path, stats::addGame);
+        System.out.println(path + ": " + result);
+        System.out.println(stats);
+    }
+}
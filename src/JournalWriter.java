@@ -0,0 +1,136 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* JournalWriter class appending the games played on a GameEngine to a compact binary
+journal through a memory-mapped file. After a header with the board size, a game is a
+seed frame holding the piece generator's state, then one 2-byte word per move (the
+catalog id of the shape placed plus one, and its anchor cell), with a checksum frame of the
+score and board every CHECKSUM_INTERVAL moves and at game over. A move taken back
+with GameEngine.undoMove is an undo frame, and playing it again (redo) or another
+move after it is journaled as a move like any other. No word is zero, so the zeroed tail of the mapped file marks
+the end of the journal if the process dies before close trims it. JournalReplayer reads
+the journal back. Attach it with GameEngine.setJournal (or GameSession.setJournal) before
+starting the games */
+public class JournalWriter implements Closeable {
+    static final int MAGIC = 0x42504A31; // "BPJ1"
+    static final short VERSION = 2;
+    // Move words are (shapeId + 1) << ANCHOR_BITS | anchor, the top shape id marks a frame and 0 the end
+    static final int ANCHOR_BITS = 9;
+    static final int MAX_CELLS = 1 << ANCHOR_BITS;
+    static final int FRAME_SHAPE_ID = 0x7F;
+    static final int END_OF_DATA = 0;
+    static final int SEED_FRAME = 0xFF01;
+    static final int CHECKSUM_FRAME = 0xFF02;
+    static final int UNDO_FRAME = 0xFF03;
+    static final int CHECKSUM_INTERVAL = 64;
+    // Size of each mapped region of the file, remapped further along as it fills
+    static final int MAP_SIZE = 1 << 20;
+    // Largest frame: a marker, two ints and a long
+    static final int MAX_FRAME_BYTES = 18;
+
+    FileChannel channel;
+    MappedByteBuffer buffer;
+    // File offset of the start of the mapped region
+    long mappedStart;
+    int numCols;
+    boolean gameStarted;
+
+    // Creates (or truncates) the journal for games on boards of the given size
+    public JournalWriter(Path path, int numRows, int numCols) throws IOException {
+        if (numRows * numCols > MAX_CELLS) {
+            throw new IllegalArgumentException("Journals hold boards of up to " + MAX_CELLS
+                    + " cells, not " + numRows + "x" + numCols);
+        }
+        this.numCols = numCols;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAP_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) numRows);
+        buffer.putShort((short) numCols);
+    }
+
+    // Starts a game whose deals come from the generator state (the engine's seed for the game)
+    public void startGame(long seed) {
+        ensureSpace();
+        buffer.putShort((short) SEED_FRAME);
+        buffer.putLong(seed);
+        gameStarted = true;
+    }
+
+    // Records a move the engine has just applied, followed by a checksum frame when one is due
+    public void recordMove(GameEngine engine, Shape shape, int x, int y) {
+        if (!gameStarted) {
+            throw new IllegalStateException("Start a game before recording moves");
+        }
+        if (shape.id < 0 || shape.id + 1 >= FRAME_SHAPE_ID) {
+            throw new IllegalArgumentException("Only catalog shapes can be journaled");
+        }
+        ensureSpace();
+        buffer.putShort((short) ((shape.id + 1) << ANCHOR_BITS | (x * numCols + y)));
+        if (engine.getMovesPlayed() % CHECKSUM_INTERVAL == 0 || engine.isGameOver()) {
+            buffer.putShort((short) CHECKSUM_FRAME);
+            buffer.putInt(engine.getMovesPlayed());
+            buffer.putInt(engine.getScore());
+            buffer.putLong(boardHash(engine.getGrid()));
+        }
+    }
+
+    // Records that the engine has just taken back its last move
+    public void recordUndo() {
+        if (!gameStarted) {
+            throw new IllegalStateException("Start a game before recording moves");
+        }
+        ensureSpace();
+        buffer.putShort((short) UNDO_FRAME);
+    }
+
+    // Bytes written so far, including the header
+    public long size() {
+        return mappedStart + buffer.position();
+    }
+
+    // Trims the file to the bytes written
+    @Override
+    public void close() throws IOException {
+        long size = size();
+        buffer.force();
+        buffer = null;
+        channel.truncate(size);
+        channel.close();
+    }
+
+    // Maps the next region of the file once the current one cannot hold another move and frame
+    private void ensureSpace() {
+        if (buffer.remaining() >= 2 + MAX_FRAME_BYTES) {
+            return;
+        }
+        try {
+            mappedStart += buffer.position();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, mappedStart, MAP_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Hash of the filled cells by (row, column), independent of how the grid lays out its bits
+    static long boardHash(Grid grid) {
+        long hash = grid.numRows * 31L + grid.numCols;
+        long[] cells = grid.grid;
+        for (int w = 0; w < cells.length; w++) {
+            long bits = cells[w];
+            while (bits != 0) {
+                int index = w * 64 + Long.numberOfTrailingZeros(bits);
+                hash = SplitMix.mix(hash ^ (grid.cellX(index) * (long) grid.numCols + grid.cellY(index)));
+                bits &= bits - 1;
+            }
+        }
+        return hash;
+    }
+}
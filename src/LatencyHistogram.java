@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* LatencyHistogram class counting durations in nanoseconds in log-linear buckets:
+values below 16 get a bucket each, and above that every power of two is split into
+8 buckets, so any percentile is within 12.5% of the true value. A histogram has a
+single writer, which records with ordered plain writes and no locks or CAS, while
+any thread can read it or add it into another histogram */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for every positive long
+    static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    // Counts per bucket, then the total count, sum and maximum
+    AtomicLongArray counts;
+    static final int COUNT = BUCKETS;
+    static final int SUM = BUCKETS + 1;
+    static final int MAX = BUCKETS + 2;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS + 3);
+    }
+
+    // Bucket holding the value
+    static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that falls into the bucket
+    static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    // Record one duration, only ever called by the histogram's own thread
+    public void record(long nanos) {
+        increment(bucket(nanos), 1);
+        increment(COUNT, 1);
+        increment(SUM, nanos);
+        if (nanos > counts.getPlain(MAX)) {
+            counts.setRelease(MAX, nanos);
+        }
+    }
+
+    // Single writer, so a plain read and an ordered write are enough for readers to see whole values
+    private void increment(int index, long delta) {
+        counts.setRelease(index, counts.getPlain(index) + delta);
+    }
+
+    // Add the other histogram's counts into this one, which must not be recorded into meanwhile
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < MAX; i++) {
+            counts.setRelease(i, counts.getPlain(i) + other.counts.getAcquire(i));
+        }
+        counts.setRelease(MAX, Math.max(counts.getPlain(MAX), other.counts.getAcquire(MAX)));
+    }
+
+    // Take the other histogram's counts out of this one, e.g. to see what changed since a copy
+    public void subtract(LatencyHistogram other) {
+        for (int i = 0; i < MAX; i++) {
+            counts.setRelease(i, counts.getPlain(i) - other.counts.getAcquire(i));
+        }
+    }
+
+    public long getCount() {
+        return counts.getAcquire(COUNT);
+    }
+
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) counts.getAcquire(SUM) / count;
+    }
+
+    public long getMaxNanos() {
+        return counts.getAcquire(MAX);
+    }
+
+    // Duration that the given fraction (e.g. 0.99) of the recorded durations do not exceed
+    public long getPercentileNanos(double fraction) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.getAcquire(bucket);
+            if (seen >= rank) {
+                return Math.min(highestValue(bucket), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+}
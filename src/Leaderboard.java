@@ -0,0 +1,529 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/* Leaderboard class keeping the score of every finished game on disk. The log is the
+record of truth: an append-only file of fixed-width records (score, moves, seed,
+ruleset, time) each ending in a CRC, so a torn write at the end of the log is found
+and cut off when it is next opened. Next to it a memory-mapped index answers queries
+without reading the log: a Fenwick tree of game counts by score for ranks, the best
+TOP_CAPACITY games, the best game of each ruleset, and an open-addressing table of the
+best score per seed in a file of its own that doubles as it fills. The index is only
+trusted if it was closed cleanly, otherwise it is rebuilt from the log.
+
+Writers on any thread record into one of STRIPES batches picked by thread, and a full
+batch is appended to the log and indexed at once, so threads rarely wait on each other
+or on the file. Queries see the games flushed so far: call flush first to include
+every recorded game */
+public class Leaderboard implements Closeable {
+    static final int LOG_MAGIC = 0x42504C31; // "BPL1"
+    static final int INDEX_MAGIC = 0x42504931; // "BPI1"
+    static final short VERSION = 1;
+    static final int LOG_HEADER_BYTES = 16;
+    // Record: int score, int moves, long seed, int ruleset, long time, int CRC of the rest
+    static final int RECORD_BYTES = 32;
+    static final int CRC_OFFSET = RECORD_BYTES - 4;
+    // Scores at or above SCORE_LIMIT - 1 share the rank tree's top bucket
+    static final int SCORE_LIMIT = 1 << 20;
+    static final int TOP_CAPACITY = 1024;
+    static final int MAX_RULESETS = 64;
+    static final int STRIPES = 16;
+    static final int BATCH_RECORDS = 256;
+
+    // Index layout: header, rank tree (1-based, by descending score), top games, ruleset bests
+    static final int HEADER_BYTES = 64;
+    static final int OPEN_FLAG = 6;
+    static final int INDEXED_COUNT = 8;
+    static final int TOP_COUNT = 16;
+    static final int RULESET_COUNT = 20;
+    static final int SEED_COUNT = 24;
+    static final int SEED_CAPACITY = 32;
+    static final int TREE = HEADER_BYTES;
+    static final int TOP = TREE + (SCORE_LIMIT + 1) * 8;
+    static final int RULESETS = TOP + TOP_CAPACITY * RECORD_BYTES;
+    static final int INDEX_BYTES = RULESETS + MAX_RULESETS * RECORD_BYTES;
+
+    // Seed table slots: long seed, int score + 1 (0 for an empty slot), int moves
+    static final int SLOT_BYTES = 16;
+    static final long INITIAL_SEED_CAPACITY = 1 << 16;
+    // The seed table is mapped in chunks of this size, as one mapping holds at most 2 GB
+    static final int CHUNK_BYTES = 1 << 30;
+    // Seed of a game whose deals are not known, which is kept out of the seed table
+    static final long NO_SEED = Long.MIN_VALUE;
+
+    // A recorded game
+    public record Score(int score, int movesPlayed, long seed, int ruleset, long time) {
+    }
+
+    // Records waiting to be appended, and the CRC for them, both guarded by the stripe
+    static class Stripe {
+        ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_BYTES);
+        CRC32 crc = new CRC32();
+    }
+
+    Path logPath;
+    Path indexPath;
+    Path seedPath;
+    FileChannel log;
+    FileChannel indexChannel;
+    MappedByteBuffer index;
+    FileChannel seedChannel;
+    MappedByteBuffer[] seedChunks;
+    Stripe[] stripes = new Stripe[STRIPES];
+    boolean closed;
+
+    // Everything below is guarded by this, the log's end and the games indexed
+    long logEnd;
+    long count;
+    int topCount;
+    int rulesetCount;
+    long seedCount;
+    long seedCapacity;
+
+    // Opens the leaderboard logged at the path, creating it or recovering it as needed
+    public Leaderboard(Path path) throws IOException {
+        logPath = path.toAbsolutePath();
+        indexPath = logPath.resolveSibling(logPath.getFileName() + ".index");
+        seedPath = logPath.resolveSibling(logPath.getFileName() + ".seeds");
+        Files.createDirectories(logPath.getParent());
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (log.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+            header.putInt(LOG_MAGIC).putShort(VERSION).flip();
+            log.write(header, 0);
+            log.force(true);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(6);
+            log.read(header, 0);
+            if (header.getInt(0) != LOG_MAGIC || header.getShort(4) < 1 || header.getShort(4) > VERSION) {
+                log.close();
+                throw new IOException("Not a leaderboard log: " + logPath);
+            }
+        }
+
+        boolean existed = Files.exists(indexPath) && Files.exists(seedPath);
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_BYTES);
+        long logRecords = (log.size() - LOG_HEADER_BYTES) / RECORD_BYTES;
+        boolean clean = existed && index.getInt(0) == INDEX_MAGIC && index.getShort(4) == VERSION
+                && index.get(OPEN_FLAG) == 0 && index.getLong(INDEXED_COUNT) <= logRecords;
+        if (clean) {
+            count = index.getLong(INDEXED_COUNT);
+            topCount = index.getInt(TOP_COUNT);
+            rulesetCount = index.getInt(RULESET_COUNT);
+            seedCount = index.getLong(SEED_COUNT);
+            seedCapacity = index.getLong(SEED_CAPACITY);
+            seedChannel = FileChannel.open(seedPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            seedChunks = map(seedChannel, seedCapacity);
+        } else {
+            // Closed mid-write or never built: start the index over and index the whole log
+            for (int i = 0; i < INDEX_BYTES; i += 8) {
+                index.putLong(i, 0);
+            }
+            index.putInt(0, INDEX_MAGIC).putShort(4, VERSION);
+            seedCapacity = INITIAL_SEED_CAPACITY;
+            seedChannel = createSeedTable(seedPath, seedCapacity);
+            seedChunks = map(seedChannel, seedCapacity);
+        }
+        // Until closed the index may hold games it has not counted yet
+        index.put(OPEN_FLAG, (byte) 1);
+        index.force();
+        logEnd = LOG_HEADER_BYTES + count * RECORD_BYTES;
+        recover();
+    }
+
+    /* Indexes the records after those already indexed, stopping at the first torn or
+    corrupt record and cutting the log there */
+    private void recover() throws IOException {
+        ByteBuffer records = ByteBuffer.allocateDirect(BATCH_RECORDS * 128 * RECORD_BYTES);
+        CRC32 crc = new CRC32();
+        long size = log.size();
+        while (logEnd < size) {
+            records.clear();
+            long end = Math.min(size, logEnd + records.capacity());
+            records.limit((int) (end - logEnd));
+            while (records.hasRemaining()) {
+                if (log.read(records, logEnd + records.position()) < 0) {
+                    break;
+                }
+            }
+            int valid = 0;
+            while (valid + RECORD_BYTES <= records.position()
+                    && checksum(crc, records, valid) == records.getInt(valid + CRC_OFFSET)) {
+                indexRecord(records, valid);
+                valid += RECORD_BYTES;
+            }
+            logEnd += valid;
+            count += valid / RECORD_BYTES;
+            if (valid < records.position()) {
+                break;
+            }
+        }
+        if (logEnd < size) {
+            System.err.printf("Leaderboard log cut from %d to %d bytes after a bad record%n", size, logEnd);
+            log.truncate(logEnd);
+            log.force(true);
+        }
+    }
+
+    // Rules a score was played under: the board size and the size of its squares
+    public static int ruleset(int numRows, int numCols, int boxSize) {
+        return numRows << 20 | numCols << 10 | boxSize;
+    }
+
+    public static int ruleset(Grid grid) {
+        return ruleset(grid.numRows, grid.numCols, grid.BOX_SIZE);
+    }
+
+    // Records a finished game, safe to call from any thread
+    public void record(int score, int movesPlayed, long seed, int ruleset) {
+        if (score < 0) {
+            throw new IllegalArgumentException("Negative score " + score);
+        }
+        Stripe stripe = stripes[(int) SplitMix.mix(Thread.currentThread().getId()) & (STRIPES - 1)];
+        synchronized (stripe) {
+            if (closed) {
+                throw new IllegalStateException("Leaderboard is closed");
+            }
+            ByteBuffer batch = stripe.batch;
+            int offset = batch.position();
+            batch.putInt(score).putInt(movesPlayed).putLong(seed).putInt(ruleset).putLong(System.currentTimeMillis());
+            batch.putInt(checksum(stripe.crc, batch, offset));
+            if (!batch.hasRemaining()) {
+                append(stripe);
+            }
+        }
+    }
+
+    // Appends and indexes every game recorded so far
+    public void flush() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.batch.position() > 0) {
+                    append(stripe);
+                }
+            }
+        }
+    }
+
+    // Writes the stripe's batch to the end of the log and indexes it, with the stripe held
+    private void append(Stripe stripe) {
+        ByteBuffer batch = stripe.batch;
+        batch.flip();
+        synchronized (this) {
+            try {
+                while (batch.hasRemaining()) {
+                    logEnd += log.write(batch, logEnd);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (int offset = 0; offset < batch.limit(); offset += RECORD_BYTES) {
+                indexRecord(batch, offset);
+            }
+            count += batch.limit() / RECORD_BYTES;
+        }
+        batch.clear();
+    }
+
+    // Forces the games appended so far to disk
+    public void sync() throws IOException {
+        flush();
+        synchronized (this) {
+            log.force(false);
+        }
+    }
+
+    private void indexRecord(ByteBuffer records, int offset) {
+        int score = records.getInt(offset);
+        int moves = records.getInt(offset + 4);
+        long seed = records.getLong(offset + 8);
+        int ruleset = records.getInt(offset + 16);
+
+        for (int i = bucket(score); i <= SCORE_LIMIT; i += i & -i) {
+            index.putLong(TREE + i * 8, index.getLong(TREE + i * 8) + 1);
+        }
+
+        // Top games by descending score, a later game goes after earlier ones with its score
+        if (topCount < TOP_CAPACITY || score > index.getInt(TOP + (topCount - 1) * RECORD_BYTES)) {
+            int low = 0;
+            int high = topCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (index.getInt(TOP + middle * RECORD_BYTES) >= score) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            if (topCount < TOP_CAPACITY) {
+                topCount++;
+            }
+            for (int i = topCount - 1; i > low; i--) {
+                copyRecord(index, TOP + (i - 1) * RECORD_BYTES, TOP + i * RECORD_BYTES);
+            }
+            copyRecord(records, offset, TOP + low * RECORD_BYTES);
+        }
+
+        int slot = 0;
+        while (slot < rulesetCount && index.getInt(RULESETS + slot * RECORD_BYTES + 16) != ruleset) {
+            slot++;
+        }
+        if (slot == rulesetCount && rulesetCount < MAX_RULESETS) {
+            rulesetCount++;
+            copyRecord(records, offset, RULESETS + slot * RECORD_BYTES);
+        } else if (slot < rulesetCount && score > index.getInt(RULESETS + slot * RECORD_BYTES)) {
+            copyRecord(records, offset, RULESETS + slot * RECORD_BYTES);
+        }
+
+        if (seed != NO_SEED && putSeed(seedChunks, seedCapacity, seed, score, moves)) {
+            seedCount++;
+            if (seedCount * 2 > seedCapacity) {
+                growSeedTable();
+            }
+        }
+    }
+
+    private void copyRecord(ByteBuffer from, int fromOffset, int toOffset) {
+        for (int i = 0; i < RECORD_BYTES; i += 8) {
+            index.putLong(toOffset + i, from.getLong(fromOffset + i));
+        }
+    }
+
+    // Rank tree position of a score, the best scores first
+    private static int bucket(int score) {
+        return SCORE_LIMIT - Math.min(score, SCORE_LIMIT - 1);
+    }
+
+    // Games indexed with a higher score than the given one, plus one
+    public synchronized long rank(int score) {
+        long higher = 0;
+        for (int i = bucket(score) - 1; i > 0; i -= i & -i) {
+            higher += index.getLong(TREE + i * 8);
+        }
+        return higher + 1;
+    }
+
+    // Games indexed so far
+    public synchronized long getCount() {
+        return count;
+    }
+
+    // Best k games, best first (and earliest first between equal scores), at most TOP_CAPACITY
+    public synchronized List<Score> topK(int k) {
+        List<Score> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(k, topCount); i++) {
+            top.add(score(TOP + i * RECORD_BYTES));
+        }
+        return top;
+    }
+
+    // Best game played under the ruleset, or null if none has been
+    public synchronized Score bestForRuleset(int ruleset) {
+        for (int slot = 0; slot < rulesetCount; slot++) {
+            if (index.getInt(RULESETS + slot * RECORD_BYTES + 16) == ruleset) {
+                return score(RULESETS + slot * RECORD_BYTES);
+            }
+        }
+        return null;
+    }
+
+    // Best score of the games dealt from the seed, or -1 if none has been recorded
+    public synchronized int bestForSeed(long seed) {
+        for (long slot = SplitMix.mix(seed) & (seedCapacity - 1); ; slot = (slot + 1) & (seedCapacity - 1)) {
+            ByteBuffer chunk = seedChunks[(int) (slot * SLOT_BYTES / CHUNK_BYTES)];
+            int offset = (int) (slot * SLOT_BYTES % CHUNK_BYTES);
+            int stored = chunk.getInt(offset + 8);
+            if (stored == 0) {
+                return -1;
+            }
+            if (chunk.getLong(offset) == seed) {
+                return stored - 1;
+            }
+        }
+    }
+
+    private Score score(int offset) {
+        return new Score(index.getInt(offset), index.getInt(offset + 4), index.getLong(offset + 8),
+                index.getInt(offset + 16), index.getLong(offset + 20));
+    }
+
+    /* Keeps the better of the game and the seed's slot, inserting the seed if it is new.
+    Returns whether it was */
+    private static boolean putSeed(MappedByteBuffer[] chunks, long capacity, long seed, int score, int moves) {
+        for (long slot = SplitMix.mix(seed) & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+            ByteBuffer chunk = chunks[(int) (slot * SLOT_BYTES / CHUNK_BYTES)];
+            int offset = (int) (slot * SLOT_BYTES % CHUNK_BYTES);
+            int stored = chunk.getInt(offset + 8);
+            if (stored == 0 || chunk.getLong(offset) == seed) {
+                if (stored == 0 || score + 1 > stored) {
+                    chunk.putLong(offset, seed).putInt(offset + 8, score + 1).putInt(offset + 12, moves);
+                }
+                return stored == 0;
+            }
+        }
+    }
+
+    // Rehashes the seed table into one of twice the size, written aside and renamed over it
+    private void growSeedTable() {
+        try {
+            long capacity = seedCapacity * 2;
+            Path temp = seedPath.resolveSibling(seedPath.getFileName() + ".tmp");
+            FileChannel channel = createSeedTable(temp, capacity);
+            MappedByteBuffer[] chunks = map(channel, capacity);
+            for (long slot = 0; slot < seedCapacity; slot++) {
+                ByteBuffer chunk = seedChunks[(int) (slot * SLOT_BYTES / CHUNK_BYTES)];
+                int offset = (int) (slot * SLOT_BYTES % CHUNK_BYTES);
+                int stored = chunk.getInt(offset + 8);
+                if (stored != 0) {
+                    putSeed(chunks, capacity, chunk.getLong(offset), stored - 1, chunk.getInt(offset + 12));
+                }
+            }
+            try {
+                Files.move(temp, seedPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, seedPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            seedChannel.close();
+            seedChannel = channel;
+            seedChunks = chunks;
+            seedCapacity = capacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileChannel createSeedTable(Path path, long capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // Extending the file leaves it full of zeros, which are empty slots
+        channel.write(ByteBuffer.allocate(1), capacity * SLOT_BYTES - 1);
+        return channel;
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long capacity) throws IOException {
+        long bytes = capacity * SLOT_BYTES;
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((bytes + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i * CHUNK_BYTES;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNK_BYTES, bytes - start));
+        }
+        return chunks;
+    }
+
+    // CRC of the record at the offset, everything but its own CRC field
+    private static int checksum(CRC32 crc, ByteBuffer records, int offset) {
+        int position = records.position();
+        int limit = records.limit();
+        crc.reset();
+        records.limit(offset + CRC_OFFSET).position(offset);
+        crc.update(records);
+        records.limit(limit).position(position);
+        return (int) crc.getValue();
+    }
+
+    // Appends the recorded games, forces everything to disk and marks the index as clean
+    @Override
+    public void close() throws IOException {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                closed = true;
+                if (stripe.batch.position() > 0) {
+                    append(stripe);
+                }
+            }
+        }
+        synchronized (this) {
+            if (log.isOpen()) {
+                log.force(true);
+                index.putLong(INDEXED_COUNT, count).putInt(TOP_COUNT, topCount).putInt(RULESET_COUNT, rulesetCount)
+                        .putLong(SEED_COUNT, seedCount).putLong(SEED_CAPACITY, seedCapacity);
+                for (MappedByteBuffer chunk : seedChunks) {
+                    chunk.force();
+                }
+                index.force();
+                index.put(OPEN_FLAG, (byte) 0);
+                index.force();
+                log.close();
+                indexChannel.close();
+                seedChannel.close();
+            }
+        }
+    }
+
+    /* Records games from several threads at once, then times rank, top-k and seed queries
+    and reopening: java Leaderboard [games] [threads] [file] */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long games = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path path = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("leaderboard").resolve("scores.log");
+        int ruleset = ruleset(9, 9, 3);
+
+        long start = System.nanoTime();
+        try (Leaderboard leaderboard = new Leaderboard(path)) {
+            System.out.printf("Opened %,d games in %.1f ms%n", leaderboard.getCount(), (System.nanoTime() - start) / 1e6);
+            Thread[] writers = new Thread[threads];
+            start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                writers[t] = new Thread(() -> {
+                    SplitMix random = new SplitMix(thread);
+                    for (long game = thread; game < games; game += threads) {
+                        leaderboard.record(random.nextInt(100) + random.nextInt(100), 50, game, ruleset);
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            leaderboard.flush();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Recorded %,d games on %d threads: %,.0f games/s, %.1f bytes per game on disk%n",
+                    games, threads, games / seconds, (double) (Files.size(path) + Files.size(leaderboard.indexPath)
+                            + Files.size(leaderboard.seedPath)) / leaderboard.getCount());
+
+            LatencyHistogram rank = new LatencyHistogram();
+            LatencyHistogram top = new LatencyHistogram();
+            LatencyHistogram seed = new LatencyHistogram();
+            SplitMix random = new SplitMix(7);
+            for (int i = 0; i < 100_000; i++) {
+                long t0 = System.nanoTime();
+                leaderboard.rank(random.nextInt(200));
+                long t1 = System.nanoTime();
+                leaderboard.topK(10);
+                long t2 = System.nanoTime();
+                leaderboard.bestForSeed(random.nextInt((int) Math.min(games, Integer.MAX_VALUE)));
+                long t3 = System.nanoTime();
+                rank.record(t1 - t0);
+                top.record(t2 - t1);
+                seed.record(t3 - t2);
+            }
+            System.out.printf("p50/p99 micros: rank %.2f/%.2f, top 10 %.2f/%.2f, seed best %.2f/%.2f%n",
+                    rank.getPercentileNanos(0.5) / 1e3, rank.getPercentileNanos(0.99) / 1e3,
+                    top.getPercentileNanos(0.5) / 1e3, top.getPercentileNanos(0.99) / 1e3,
+                    seed.getPercentileNanos(0.5) / 1e3, seed.getPercentileNanos(0.99) / 1e3);
+            System.out.println("Best: " + leaderboard.topK(1));
+        }
+        start = System.nanoTime();
+        try (Leaderboard leaderboard = new Leaderboard(path)) {
+            System.out.printf("Reopened %,d games in %.1f ms%n", leaderboard.getCount(), (System.nanoTime() - start) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/* LoadGenerator class simulating many clients of a GameServer over a few connections.
+Every client plays its own session: it asks for the legal moves, places a random one,
+and starts a new game, seeded from its own stream, when the last one ends, always with
+one request in flight, so the connections carry many pipelined requests. One thread drives every connection
+from a selector. It reports the sessions the server holds and the heap each takes,
+moves per second and the round-trip latency percentiles */
+public class LoadGenerator {
+    // Simulated clients per connection at most, and the connection count at most
+    static final int MAX_CONNECTIONS = 64;
+    // Bytes of requests one client can have queued at once: a CLOSE then a NEW_GAME
+    static final int CLIENT_REQUEST_BYTES = 2 * (GameProtocol.HEADER_BYTES + GameProtocol.BODY_HEADER_BYTES + 8);
+
+    // One connection's clients, with the requests in flight in the order they were sent
+    static class Connection {
+        SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(1 << 18);
+        ByteBuffer out;
+        // Ring of in-flight requests: client index, command and send time
+        int[] pendingClient;
+        byte[] pendingCommand;
+        long[] pendingNanos;
+        int head;
+        int size;
+    }
+
+    InetSocketAddress address;
+    int clients;
+    // Each client's session id on its connection, 0 before its first game starts
+    int[] session;
+    int[] connectionOf;
+    Connection[] connections;
+    SplitMix random = new SplitMix(42);
+    // Each client's own stream of game seeds, so no two games repeat the same deal
+    SplitMix[] seeds;
+    int sessionsStarted;
+    // Called once connected, and once every client has a session before measuring starts
+    Runnable onConnected = () -> { };
+    Runnable onAllStarted = () -> { };
+
+    // While measuring: round trips, moves placed and games finished
+    boolean measuring;
+    LatencyHistogram latency = new LatencyHistogram();
+    long moves;
+    long games;
+
+    LoadGenerator(InetSocketAddress address, int clients) {
+        this.address = address;
+        this.clients = clients;
+        this.session = new int[clients];
+        this.connectionOf = new int[clients];
+        this.seeds = new SplitMix[clients];
+        for (int client = 0; client < clients; client++) {
+            seeds[client] = random.split();
+        }
+    }
+
+    /* Connect, start every client's game, then measure for the given time once every
+    client is playing. Returns the measured seconds */
+    double run(double seconds) throws IOException {
+        int count = Math.min(clients, MAX_CONNECTIONS);
+        connections = new Connection[count];
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < count; i++) {
+                Connection connection = new Connection();
+                int perConnection = (clients + count - 1) / count;
+                connection.out = ByteBuffer.allocate(perConnection * CLIENT_REQUEST_BYTES);
+                connection.pendingClient = new int[2 * perConnection];
+                connection.pendingCommand = new byte[2 * perConnection];
+                connection.pendingNanos = new long[2 * perConnection];
+                connection.channel = SocketChannel.open(address);
+                connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connection.channel.configureBlocking(false);
+                connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                connections[i] = connection;
+            }
+            onConnected.run();
+            for (int client = 0; client < clients; client++) {
+                connectionOf[client] = client % count;
+                newGame(client);
+            }
+            flushAll(selector);
+
+            long measureStart = 0;
+            long end = Long.MAX_VALUE;
+            while (System.nanoTime() < end) {
+                selector.select(100);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isReadable()) {
+                        read((Connection) key.attachment());
+                    }
+                }
+                flushAll(selector);
+                if (!measuring && sessionsStarted == clients) {
+                    onAllStarted.run();
+                    measuring = true;
+                    measureStart = System.nanoTime();
+                    end = measureStart + (long) (seconds * 1e9);
+                }
+            }
+            for (Connection connection : connections) {
+                connection.channel.close();
+            }
+            return (System.nanoTime() - measureStart) / 1e9;
+        }
+    }
+
+    private void newGame(int client) {
+        Connection connection = connections[connectionOf[client]];
+        GameProtocol.newGame(connection.out, seeds[client].nextLong());
+        sent(connection, client, GameProtocol.NEW_GAME);
+    }
+
+    private void send(int client, byte command) {
+        Connection connection = connections[connectionOf[client]];
+        GameProtocol.request(connection.out, command, session[client]);
+        sent(connection, client, command);
+    }
+
+    private void sent(Connection connection, int client, byte command) {
+        int slot = (connection.head + connection.size) % connection.pendingClient.length;
+        connection.pendingClient[slot] = client;
+        connection.pendingCommand[slot] = command;
+        connection.pendingNanos[slot] = System.nanoTime();
+        connection.size++;
+    }
+
+    private void read(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if (connection.channel.read(in) < 0) {
+            throw new IOException("Server closed the connection");
+        }
+        in.flip();
+        int length;
+        long now = System.nanoTime();
+        while ((length = GameProtocol.frameLength(in)) >= 0) {
+            int end = in.position() + GameProtocol.HEADER_BYTES + length;
+            in.position(in.position() + GameProtocol.HEADER_BYTES);
+            int client = connection.pendingClient[connection.head];
+            byte command = connection.pendingCommand[connection.head];
+            if (measuring) {
+                latency.record(now - connection.pendingNanos[connection.head]);
+            }
+            connection.head = (connection.head + 1) % connection.pendingClient.length;
+            connection.size--;
+            respond(client, command, in);
+            in.position(end);
+        }
+        in.compact();
+    }
+
+    // Send the client's next request for the response to its last one
+    private void respond(int client, byte command, ByteBuffer in) throws IOException {
+        byte status = in.get();
+        int id = in.getInt();
+        if (status != GameProtocol.OK) {
+            throw new IOException("Request " + command + " failed with status " + status);
+        }
+        if (command == GameProtocol.NEW_GAME) {
+            if (session[client] == 0) {
+                sessionsStarted++;
+            }
+            session[client] = id;
+            send(client, GameProtocol.LEGAL_MOVES);
+        } else if (command == GameProtocol.LEGAL_MOVES) {
+            int count = in.getInt();
+            if (count == 0) {
+                endGame(client);
+            } else {
+                int move = in.getInt(in.position() + 4 * random.nextInt(count));
+                Connection connection = connections[connectionOf[client]];
+                GameProtocol.place(connection.out, session[client], move);
+                sent(connection, client, GameProtocol.PLACE);
+            }
+        } else if (command == GameProtocol.PLACE) {
+            if (in.getInt() < 0) {
+                throw new IOException("Legal move rejected");
+            }
+            in.getInt();
+            boolean gameOver = in.get() != 0;
+            if (measuring) {
+                moves++;
+            }
+            if (gameOver) {
+                endGame(client);
+            } else {
+                send(client, GameProtocol.LEGAL_MOVES);
+            }
+        }
+    }
+
+    // Close the finished session and start another, both sent at once
+    private void endGame(int client) {
+        if (measuring) {
+            games++;
+        }
+        send(client, GameProtocol.CLOSE);
+        newGame(client);
+    }
+
+    /* Write what each connection's socket takes, keeping the rest for when it is writable.
+    Every queued request is also in flight, so the buffer never holds more than its clients send */
+    private void flushAll(Selector selector) throws IOException {
+        for (Connection connection : connections) {
+            ByteBuffer out = connection.out;
+            if (out.position() > 0) {
+                out.flip();
+                connection.channel.write(out);
+                out.compact();
+                connection.channel.keyFor(selector).interestOps(
+                        out.position() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /* Runs an in-process server and loads it with each client count in turn:
+    java LoadGenerator [secondsPerLevel] [clients...], clients default to 1000 10000 100000 */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5;
+        int[] levels = {1_000, 10_000, 100_000};
+        if (args.length > 1) {
+            levels = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                levels[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        int workers = Runtime.getRuntime().availableProcessors();
+        try (GameServer server = new GameServer(0, workers, 9, 9)) {
+            server.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+            System.out.printf("Server with %d workers on port %d%n", workers, server.getPort());
+            System.out.println("clients,sessions,heapBytesPerSession,movesPerSecond,requestsPerSecond,"
+                    + "p50Micros,p99Micros,p999Micros,maxMicros");
+            // Warm up the JIT on both sides before measuring anything
+            new LoadGenerator(address, levels[0]).run(seconds);
+            for (int clients : levels) {
+                // Let the server drop the closed connections' sessions first
+                while (server.getSessionCount() > 0) {
+                    Thread.sleep(10);
+                }
+                LoadGenerator generator = new LoadGenerator(address, clients);
+                // Weigh the sessions while the load is paused, before measuring
+                long[] baseline = new long[1];
+                long[] sessions = new long[1];
+                long[] heapPerSession = new long[1];
+                generator.onConnected = () -> baseline[0] = usedHeap();
+                generator.onAllStarted = () -> {
+                    sessions[0] = server.getSessionCount();
+                    heapPerSession[0] = (usedHeap() - baseline[0]) / Math.max(sessions[0], 1);
+                };
+                double measured = generator.run(seconds);
+                LatencyHistogram latency = generator.latency;
+                System.out.printf("%d,%d,%d,%.0f,%.0f,%.1f,%.1f,%.1f,%.1f%n", clients, sessions[0], heapPerSession[0],
+                        generator.moves / measured, latency.getCount() / measured,
+                        latency.getPercentileNanos(0.5) / 1e3, latency.getPercentileNanos(0.99) / 1e3,
+                        latency.getPercentileNanos(0.999) / 1e3, latency.getMaxNanos() / 1e3);
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/* Metrics class recording how long the game's hot paths take and how often things
+happen, off by default. Each thread records into a Recorder of its own, so recording
+takes no locks and never contends: readers merge every thread's recorder when they
+ask. While disabled a timed call costs one volatile read. The totals are exposed
+over JMX as the MetricsMBean and can be printed periodically as a text report */
+public class Metrics implements MetricsMBean {
+    public enum Timer {
+        MOUSE_EVENT, POPPABLE_REGIONS, CLEAR_FULL_REGIONS, IS_GAME_OVER, PAINT,
+        // From the first drag event not painted yet to the paint that shows it
+        DRAG_TO_PAINT
+    }
+
+    public enum Counter {
+        MOVES, ROW_CLEARS, COLUMN_CLEARS, SQUARE_CLEARS, REPAINT_REQUESTS, PAINTS,
+        // Drag motion events, and the drag updates run for them (fewer when paced drags coalesce)
+        DRAG_EVENTS, DRAG_UPDATES
+    }
+
+    static final String OBJECT_NAME = "blockpuzzle:type=Metrics";
+
+    static volatile boolean enabled;
+
+    // One thread's histograms and counters, only ever written by that thread
+    static class Recorder {
+        LatencyHistogram[] timers = new LatencyHistogram[Timer.values().length];
+        AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+        // The thread writing it, weakly held so a finished thread can still be collected
+        WeakReference<Thread> owner;
+
+        Recorder() {
+            for (int i = 0; i < timers.length; i++) {
+                timers[i] = new LatencyHistogram();
+            }
+        }
+
+        // Once its thread has ended nothing writes to the recorder again
+        boolean isRetired() {
+            Thread thread = owner == null ? null : owner.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        void add(Recorder other) {
+            for (int i = 0; i < timers.length; i++) {
+                timers[i].add(other.timers[i]);
+            }
+            for (int i = 0; i < counters.length(); i++) {
+                counters.setRelease(i, counters.getPlain(i) + other.counters.getAcquire(i));
+            }
+        }
+
+        void subtract(Recorder other) {
+            for (int i = 0; i < timers.length; i++) {
+                timers[i].subtract(other.timers[i]);
+            }
+            for (int i = 0; i < counters.length(); i++) {
+                counters.setRelease(i, counters.getPlain(i) - other.counters.getAcquire(i));
+            }
+        }
+    }
+
+    /* Recorders of the threads still running. When a thread ends its counts are folded into
+    retired and its recorder dropped, so threads that come and go (e.g. pool workers that
+    time out) do not leave a recorder each behind */
+    static final Queue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+    static final Recorder retired = new Recorder();
+    static final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+        Recorder created = new Recorder();
+        created.owner = new WeakReference<>(Thread.currentThread());
+        retireEnded();
+        recorders.add(created);
+        return created;
+    });
+    // Totals at the last reset, taken off every report since
+    static volatile Recorder baseline = new Recorder();
+
+    // When the first drag event the screen does not show yet was handled, 0 if none, EDT only
+    static long unpaintedDragNanos;
+
+    static ScheduledExecutorService dumper;
+
+    // Start time for stop, 0 while disabled so the stop records nothing
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Timer timer, long start) {
+        if (start != 0) {
+            recorder.get().timers[timer.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    public static void count(Counter counter) {
+        count(counter, 1);
+    }
+
+    public static void count(Counter counter, long delta) {
+        if (enabled) {
+            AtomicLongArray counters = recorder.get().counters;
+            counters.setRelease(counter.ordinal(), counters.getPlain(counter.ordinal()) + delta);
+        }
+    }
+
+    // Count a move and the regions its clearFullRegions call cleared on the grid
+    public static void countMove(Grid grid) {
+        if (enabled) {
+            count(Counter.MOVES);
+            count(Counter.ROW_CLEARS, grid.lastClearCounts[RegionType.ROW.ordinal()]);
+            count(Counter.COLUMN_CLEARS, grid.lastClearCounts[RegionType.COLUMN.ordinal()]);
+            count(Counter.SQUARE_CLEARS, grid.lastClearCounts[RegionType.SQUARE.ordinal()]);
+        }
+    }
+
+    // A drag event was handled on the EDT, timed until the next paint
+    public static void dragged(long start) {
+        if (start != 0 && unpaintedDragNanos == 0) {
+            unpaintedDragNanos = start;
+        }
+    }
+
+    // The view painted on the EDT, showing every drag event handled so far
+    public static void painted(long start) {
+        stop(Timer.PAINT, start);
+        count(Counter.PAINTS);
+        if (unpaintedDragNanos != 0) {
+            stop(Timer.DRAG_TO_PAINT, unpaintedDragNanos);
+            unpaintedDragNanos = 0;
+        }
+    }
+
+    // Every thread's recorder added up, minus the totals at the last reset
+    static Recorder merged() {
+        Recorder total = totals();
+        total.subtract(baseline);
+        return total;
+    }
+
+    // The counts of every thread since the start, ended ones included
+    static synchronized Recorder totals() {
+        retireEnded();
+        Recorder total = new Recorder();
+        total.add(retired);
+        for (Recorder each : recorders) {
+            total.add(each);
+        }
+        return total;
+    }
+
+    // Folds the recorders of threads that have ended into the retired totals
+    static synchronized void retireEnded() {
+        for (Iterator<Recorder> each = recorders.iterator(); each.hasNext(); ) {
+            Recorder ended = each.next();
+            if (ended.isRetired()) {
+                retired.add(ended);
+                each.remove();
+            }
+        }
+    }
+
+    /* One line per timer with its count and percentiles in microseconds. The maximum
+    is since the start, a reset cannot take it back out */
+    static List<String> report(Recorder totals) {
+        List<String> lines = new ArrayList<>();
+        for (Timer timer : Timer.values()) {
+            LatencyHistogram histogram = totals.timers[timer.ordinal()];
+            lines.add(String.format("%-18s n=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    timer, histogram.getCount(), micros(histogram.getPercentileNanos(0.5)),
+                    micros(histogram.getPercentileNanos(0.99)), micros(histogram.getPercentileNanos(0.999)),
+                    micros(histogram.getMaxNanos())));
+        }
+        StringBuilder counts = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            counts.append(counts.length() == 0 ? "" : " ").append(counter).append('=')
+                    .append(totals.counters.get(counter.ordinal()));
+        }
+        lines.add(counts.toString());
+        return lines;
+    }
+
+    static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+
+    // Register the MBean with the platform MBean server, so JConsole and friends can read it
+    public static void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // Print the report to the stream every period on a background thread
+    public static synchronized void startDump(long periodSeconds, PrintStream out) {
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> report(merged()).forEach(out::println),
+                periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    // MBean attributes and operations, each reading freshly merged totals
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    @Override
+    public long getMoves() {
+        return merged().counters.get(Counter.MOVES.ordinal());
+    }
+
+    @Override
+    public long getRowClears() {
+        return merged().counters.get(Counter.ROW_CLEARS.ordinal());
+    }
+
+    @Override
+    public long getColumnClears() {
+        return merged().counters.get(Counter.COLUMN_CLEARS.ordinal());
+    }
+
+    @Override
+    public long getSquareClears() {
+        return merged().counters.get(Counter.SQUARE_CLEARS.ordinal());
+    }
+
+    @Override
+    public long getRepaintRequests() {
+        return merged().counters.get(Counter.REPAINT_REQUESTS.ordinal());
+    }
+
+    @Override
+    public long getPaints() {
+        return merged().counters.get(Counter.PAINTS.ordinal());
+    }
+
+    @Override
+    public long getDragEvents() {
+        return merged().counters.get(Counter.DRAG_EVENTS.ordinal());
+    }
+
+    @Override
+    public long getCoalescedDragEvents() {
+        Recorder totals = merged();
+        return totals.counters.get(Counter.DRAG_EVENTS.ordinal()) - totals.counters.get(Counter.DRAG_UPDATES.ordinal());
+    }
+
+    @Override
+    public double getDragToPaintP50Micros() {
+        return dragToPaintMicros(0.5);
+    }
+
+    @Override
+    public double getDragToPaintP99Micros() {
+        return dragToPaintMicros(0.99);
+    }
+
+    @Override
+    public double getDragToPaintP999Micros() {
+        return dragToPaintMicros(0.999);
+    }
+
+    private static double dragToPaintMicros(double fraction) {
+        return micros(merged().timers[Timer.DRAG_TO_PAINT.ordinal()].getPercentileNanos(fraction));
+    }
+
+    @Override
+    public String[] getLatencyReport() {
+        return report(merged()).toArray(new String[0]);
+    }
+
+    // Start counting from zero again
+    @Override
+    public void reset() {
+        baseline = totals();
+    }
+}
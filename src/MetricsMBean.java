@@ -0,0 +1,35 @@
+/* MetricsMBean interface of the attributes and operations Metrics exposes over JMX,
+latencies in microseconds and everything counted since the last reset */
+public interface MetricsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getMoves();
+
+    long getRowClears();
+
+    long getColumnClears();
+
+    long getSquareClears();
+
+    long getRepaintRequests();
+
+    long getPaints();
+
+    long getDragEvents();
+
+    // Drag events a paced frame replaced with a later one before applying it
+    long getCoalescedDragEvents();
+
+    double getDragToPaintP50Micros();
+
+    double getDragToPaintP99Micros();
+
+    double getDragToPaintP999Micros();
+
+    // One line per timer with its percentiles, then the counters
+    String[] getLatencyReport();
+
+    void reset();
+}
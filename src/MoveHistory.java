@@ -0,0 +1,145 @@
+/* MoveHistory class keeping the last moves of a game as compact deltas in one fixed
+long[] ring, so they can be taken back and replayed. An entry is a header word (the
+move, the catalog id of the shape placed, the score it gained and whether the palette
+was dealt afterwards), the generator state before that deal, and the bitset of the
+regions the move cleared. Undoing puts the cleared regions back and takes the shape
+off (Grid.undoPlacement), so it costs the same however long the game has been.
+
+Entries after the cursor can be redone until a new move is pushed, which drops them.
+Once the ring is full the oldest entry is overwritten. A 9x9 board's entry is three
+longs, so a thousand levels take 24 KB */
+public class MoveHistory {
+    static final int DEFAULT_CAPACITY = 1024;
+    // Header word: move in the low 24 bits, then shape id, score delta and the dealt flag
+    static final int SHAPE_SHIFT = 24;
+    static final int SCORE_SHIFT = 40;
+    static final int NO_SHAPE = 0xFFFF;
+    static final long DEALT = 1L << 62;
+    static final int GENERATOR = 1;
+    static final int REGIONS = 2;
+
+    long[] entries;
+    int capacity;
+    // Longs per entry, and per bitset of cleared regions
+    int stride;
+    int regionWords;
+    // Index of the oldest entry, and how many entries can be undone and then redone
+    int oldest;
+    int undoable;
+    int redoable;
+    // Catalog the shapes' ids refer to, taken from the first shape recorded
+    ShapeCatalog catalog;
+
+    // History of up to capacity moves on the grid
+    public MoveHistory(Grid grid, int capacity) {
+        this.capacity = capacity;
+        this.regionWords = grid.lastClearedRegions.length;
+        this.stride = REGIONS + regionWords;
+        this.entries = new long[capacity * stride];
+    }
+
+    public MoveHistory(Grid grid) {
+        this(grid, DEFAULT_CAPACITY);
+    }
+
+    /* Starts a new entry after the ones that can be undone, dropping any that could be
+    redone, and returns its offset for record */
+    public int push() {
+        redoable = 0;
+        if (undoable == capacity) {
+            oldest = (oldest + 1) % capacity;
+            undoable--;
+        }
+        return offset(undoable++);
+    }
+
+    /* Fills in the entry at the offset from a move just played on the grid. A shape from
+    no catalog is not kept, so the caller has to supply it again to undo the move */
+    public void record(int entry, int move, Shape shape, int scoreDelta, boolean dealt, long generatorState,
+                       Grid grid) {
+        int id = NO_SHAPE;
+        if (shape.catalog != null) {
+            if (catalog != null && shape.catalog != catalog) {
+                throw new IllegalArgumentException("Only shapes from one catalog can be recorded");
+            }
+            catalog = shape.catalog;
+            id = shape.id;
+        }
+        entries[entry] = move | (long) id << SHAPE_SHIFT | (long) scoreDelta << SCORE_SHIFT
+                | (dealt ? DEALT : 0);
+        entries[entry + GENERATOR] = generatorState;
+        System.arraycopy(grid.lastClearedRegions, 0, entries, entry + REGIONS, regionWords);
+    }
+
+    // Offset of the latest entry, which moves to the redo side, or -1 if there is none
+    public int undo() {
+        if (undoable == 0) {
+            return -1;
+        }
+        redoable++;
+        return offset(--undoable);
+    }
+
+    // Offset of the entry undone last, which moves back to the undo side, or -1 if there is none
+    public int redo() {
+        if (redoable == 0) {
+            return -1;
+        }
+        redoable--;
+        return offset(undoable++);
+    }
+
+    // Takes the entry's placement and clears back off the grid
+    public void undoPlacement(int entry, Grid grid) {
+        undoPlacement(entry, grid, shape(entry));
+    }
+
+    // Same for a move whose shape the caller already has, e.g. search code
+    public void undoPlacement(int entry, Grid grid, Shape shape) {
+        int move = move(entry);
+        grid.undoPlacement(shape, GameEngine.moveX(move), GameEngine.moveY(move), entries,
+                entry + REGIONS, scoreDelta(entry));
+    }
+
+    public int move(int entry) {
+        return (int) (entries[entry] & 0xFFFFFF);
+    }
+
+    public Shape shape(int entry) {
+        int id = (int) (entries[entry] >>> SHAPE_SHIFT) & 0xFFFF;
+        if (id == NO_SHAPE) {
+            throw new IllegalStateException("The move's shape is from no catalog");
+        }
+        return catalog.getShape(id);
+    }
+
+    public int scoreDelta(int entry) {
+        return (int) (entries[entry] >>> SCORE_SHIFT) & 0x3FFFFF;
+    }
+
+    // Whether the palette was dealt after the move, from the generator state recorded with it
+    public boolean dealt(int entry) {
+        return (entries[entry] & DEALT) != 0;
+    }
+
+    public long generatorState(int entry) {
+        return entries[entry + GENERATOR];
+    }
+
+    public int getUndoCount() {
+        return undoable;
+    }
+
+    public int getRedoCount() {
+        return redoable;
+    }
+
+    public void clear() {
+        undoable = 0;
+        redoable = 0;
+    }
+
+    private int offset(int index) {
+        return (oldest + index) % capacity * stride;
+    }
+}
@@ -0,0 +1,29 @@
+/* MovePolicy interface for the move selection used when games are played
+without a player, e.g. by the self-play runner or in a GameArena */
+public interface MovePolicy {
+
+    /* Chooses one of the first count moves in the buffer for the engine's
+    current position, using only the given random source for any randomness */
+    int chooseMove(GameEngine engine, int[] moves, int count, SplitMix random);
+
+    /* Whether chooseMove looks at the engine at all. A GameArena only loads a game
+    into an engine for the policies that do */
+    default boolean readsPosition() {
+        return true;
+    }
+
+    // Picks a legal move uniformly at random
+    static MovePolicy random() {
+        return new MovePolicy() {
+            @Override
+            public int chooseMove(GameEngine engine, int[] moves, int count, SplitMix random) {
+                return moves[random.nextInt(count)];
+            }
+
+            @Override
+            public boolean readsPosition() {
+                return false;
+            }
+        };
+    }
+}
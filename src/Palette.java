@@ -2,26 +2,44 @@ import java.util.ArrayList;
 import java.util.List;
 
 /* Palette class representing the set of shapes the player can select
-from will also refresh palette when all the shapes are used */
+from. Each slot has one pooled piece that is reset in place, and refreshing
+only deals new shapes into the slots whose pieces have been placed */
 public class Palette {
-    List<Shape> shapes = new ArrayList<>();
-    List<Piece> pieces = new ArrayList<>();
+    static final int PALETTE_SIZE = 3;
+    // Pixel position of the first slot, and distance between slots (fits a 4 cell wide shape)
+    static final int PALETTE_X = 10;
+    static final int PALETTE_Y = 475;
+    static final int SLOT_SPACING = 120;
+
+    // Board the generator deals for, null if the deal does not depend on the board
+    Grid grid;
+    PieceGenerator generator;
+    // Shape in each slot, null once its piece has been placed
+    Shape[] shapes = new Shape[PALETTE_SIZE];
+    Piece[] slots = new Piece[PALETTE_SIZE];
+    // Pieces waiting in the palette, in slot order
+    List<Piece> pieces = new ArrayList<>(PALETTE_SIZE);
     int paletteCellSize = 20;
 
+    // The original palette, dealing the shape set in order
     public Palette() {
+        this(null, PieceGenerator.classic());
+    }
+
+    public Palette(Grid grid, PieceGenerator generator) {
+        this.grid = grid;
+        this.generator = generator;
         initialisePalette();
     }
 
-    /* Initialises the palette with predefined shapes and their corresponding
-    pieces, positioning them at specified x and y pixel coordinates */
+    /* Initialises the palette with a full deal and one piece per slot,
+    positioning them at the slots' x and y pixel coordinates */
     public void initialisePalette() {
-        shapes.addAll(new ShapeSet().getShapes());
-        int x = 10;
-        int y = 475;
-        for (Shape shape : shapes) {
-            pieces.add(new Piece(shape, x, y, 40));
-            // Use shape width and additional spacing for consistent spacing between shapes
-            x += shape.getShapeWidth() * paletteCellSize + 75;
+        generator.deal(shapes, grid);
+        pieces.clear();
+        for (int slot = 0; slot < PALETTE_SIZE; slot++) {
+            slots[slot] = new Piece(shapes[slot], slotX(slot), PALETTE_Y, 40);
+            pieces.add(slots[slot]);
         }
     }
 
@@ -35,11 +53,46 @@ public class Palette {
         pieces.remove(piece);
     }
 
-    /* Refreshes the palette by clearing existing shapes/pieces
-    and then initializes a new set of shapes */
+    /* Refreshes the palette by dealing new shapes into the slots whose pieces were
+    placed, and moving every piece, including any released without being placed,
+    back to its slot */
     public void refresh() {
-        shapes.clear();
+        for (int slot = 0; slot < PALETTE_SIZE; slot++) {
+            if (slots[slot].state == PieceState.PLACED) {
+                shapes[slot] = null;
+            }
+        }
+        generator.deal(shapes, grid);
+        resetPieces();
+    }
+
+    /* Puts saved shapes (null for a slot whose piece was placed) back in the slots and
+    resumes the generator from its saved state, as if the palette had never changed */
+    public void restore(Shape[] savedShapes, long generatorState) {
+        generator.setState(generatorState);
+        System.arraycopy(savedShapes, 0, shapes, 0, PALETTE_SIZE);
+        resetPieces();
+    }
+
+    /* Moves every slot's piece back to the slot with the slot's current shape, e.g. after
+    a GameEngine played on the shapes. A slot with no shape has its piece marked placed */
+    public void resetPieces() {
         pieces.clear();
-        initialisePalette();
+        for (int slot = 0; slot < PALETTE_SIZE; slot++) {
+            slots[slot].reset(shapes[slot], slotX(slot), PALETTE_Y);
+            if (shapes[slot] == null) {
+                slots[slot].state = PieceState.PLACED;
+            } else {
+                pieces.add(slots[slot]);
+            }
+        }
+    }
+
+    public PieceGenerator getGenerator() {
+        return generator;
+    }
+
+    static int slotX(int slot) {
+        return PALETTE_X + slot * SLOT_SPACING;
     }
 }
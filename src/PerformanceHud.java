@@ -0,0 +1,221 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/* PerformanceHud class drawing a small overlay of how the game is performing: frame
+time, paint time, input events per second, allocation rate and GC time, each as a
+sparkline over the last few seconds. A timer samples ten times a second while the HUD
+is shown, and the overlay is rendered into a cached layer only when a sample arrives,
+so painting it is one image copy and adds next to nothing to the frames it measures.
+Everything runs on the EDT */
+public class PerformanceHud {
+    static final int SAMPLE_MILLIS = 100;
+    // Five seconds of samples
+    static final int SAMPLES = 50;
+    static final String[] LABELS = {"frame ms", "paint ms", "events/s", "alloc MB/s", "GC ms/s"};
+    static final int FRAME = 0;
+    static final int PAINT = 1;
+    static final int EVENTS = 2;
+    static final int ALLOCATION = 3;
+    static final int GC = 4;
+
+    static final int ROW_HEIGHT = 22;
+    static final int WIDTH = 190;
+    static final int HEIGHT = LABELS.length * ROW_HEIGHT + 4;
+    static final int SPARKLINE_WIDTH = SAMPLES * 2;
+    // Opaque, so repainting the overlay alone needs nothing drawn beneath it
+    static final Color BACKGROUND = new Color(30, 30, 30);
+    static final Color TEXT_COLOR = Color.WHITE;
+    static final Color LINE_COLOR = new Color(120, 220, 120);
+
+    boolean visible;
+    // Ring of samples per metric, next is where the next sample goes
+    float[][] history = new float[LABELS.length][SAMPLES];
+    int next;
+    int filled;
+
+    // Since the last sample: frames, their total interval, the slowest paint and input events
+    int frames;
+    long frameNanos;
+    long lastFrameNanos;
+    long maxPaintNanos;
+    long events;
+    // Totals at the last sample
+    long lastSampleNanos;
+    long lastAllocatedBytes;
+    long lastGcMillis;
+
+    // Null when the JVM cannot count allocated bytes
+    com.sun.management.ThreadMXBean threadBean;
+
+    // Rendered overlay, redrawn only after a new sample
+    BufferedImage layer;
+    boolean layerStale = true;
+
+    javax.swing.Timer sampler = new javax.swing.Timer(SAMPLE_MILLIS, e -> sample());
+    // Called after each sample, e.g. to repaint the overlay's area
+    Runnable onSample = () -> { };
+
+    public PerformanceHud() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+        }
+    }
+
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+        if (visible) {
+            // Start a fresh window, so the first sample does not include time spent hidden
+            frames = 0;
+            frameNanos = 0;
+            lastFrameNanos = 0;
+            maxPaintNanos = 0;
+            events = 0;
+            lastSampleNanos = System.nanoTime();
+            lastAllocatedBytes = allocatedBytes();
+            lastGcMillis = gcMillis();
+            sampler.start();
+        } else {
+            sampler.stop();
+        }
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    // A frame was painted, taking paintNanos
+    public void framePainted(long paintNanos) {
+        long now = System.nanoTime();
+        if (lastFrameNanos != 0) {
+            frameNanos += now - lastFrameNanos;
+            frames++;
+        }
+        lastFrameNanos = now;
+        maxPaintNanos = Math.max(maxPaintNanos, paintNanos);
+    }
+
+    public void eventHandled() {
+        events++;
+    }
+
+    // Turn what happened since the last sample into one point of each sparkline
+    void sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastSampleNanos, 1) / 1e9;
+        long allocated = allocatedBytes();
+        long gc = gcMillis();
+
+        float[] values = new float[LABELS.length];
+        values[FRAME] = frames == 0 ? 0 : (float) (frameNanos / 1e6 / frames);
+        values[PAINT] = (float) (maxPaintNanos / 1e6);
+        values[EVENTS] = (float) (events / seconds);
+        values[ALLOCATION] = allocated < 0 ? 0 : (float) (Math.max(allocated - lastAllocatedBytes, 0) / 1e6 / seconds);
+        values[GC] = (float) ((gc - lastGcMillis) / seconds);
+        for (int i = 0; i < values.length; i++) {
+            history[i][next] = values[i];
+        }
+        next = (next + 1) % SAMPLES;
+        filled = Math.min(filled + 1, SAMPLES);
+
+        // An idle gap is not a frame time, start timing again from the next frame
+        if (frames == 0) {
+            lastFrameNanos = 0;
+        }
+        frames = 0;
+        frameNanos = 0;
+        maxPaintNanos = 0;
+        events = 0;
+        lastSampleNanos = now;
+        lastAllocatedBytes = allocated;
+        lastGcMillis = gc;
+        layerStale = true;
+        onSample.run();
+    }
+
+    /* Bytes allocated so far by the threads alive now, or -1 if the JVM cannot tell.
+    A thread ending takes its bytes with it, so the rate clamps at 0 */
+    long allocatedBytes() {
+        if (threadBean == null) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            total += Math.max(bytes, 0);
+        }
+        return total;
+    }
+
+    static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+    // Most recent sample of the metric
+    public float latest(int metric) {
+        return filled == 0 ? 0 : history[metric][(next + SAMPLES - 1) % SAMPLES];
+    }
+
+    // Where the overlay sits: the bottom right corner of a component of the given size
+    public Rectangle bounds(int width, int height) {
+        return new Rectangle(width - WIDTH - 4, height - HEIGHT - 4, WIDTH, HEIGHT);
+    }
+
+    // Draw the overlay if it is shown, re-rendering the layer only after a new sample
+    public void paint(Graphics2D g, int width, int height) {
+        if (!visible) {
+            return;
+        }
+        if (layer == null || layerStale) {
+            renderLayer();
+        }
+        Rectangle bounds = bounds(width, height);
+        g.drawImage(layer, bounds.x, bounds.y, null);
+    }
+
+    private void renderLayer() {
+        if (layer == null) {
+            layer = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g = layer.createGraphics();
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setFont(g.getFont().deriveFont(10f));
+        int lineX = WIDTH - SPARKLINE_WIDTH - 4;
+        for (int metric = 0; metric < LABELS.length; metric++) {
+            int top = 2 + metric * ROW_HEIGHT;
+            g.setColor(TEXT_COLOR);
+            g.drawString(LABELS[metric], 4, top + 10);
+            g.drawString(String.format("%.1f", latest(metric)), 4, top + 20);
+            paintSparkline(g, history[metric], lineX, top + 2, ROW_HEIGHT - 4);
+        }
+        g.dispose();
+        layerStale = false;
+    }
+
+    // Oldest sample on the left, scaled to the largest sample shown
+    private void paintSparkline(Graphics2D g, float[] samples, int x, int y, int height) {
+        float max = 0;
+        for (float sample : samples) {
+            max = Math.max(max, sample);
+        }
+        g.setColor(LINE_COLOR);
+        int previousY = -1;
+        for (int i = 0; i < filled; i++) {
+            float sample = samples[(next - filled + i + SAMPLES) % SAMPLES];
+            int pointY = y + height - (max == 0 ? 0 : Math.round(sample / max * height));
+            int pointX = x + (SAMPLES - filled + i) * 2;
+            if (previousY >= 0) {
+                g.drawLine(pointX - 2, previousY, pointX, pointY);
+            }
+            previousY = pointY;
+        }
+    }
+}
@@ -1,6 +1,4 @@
 import java.awt.*;
-import java.util.List;
-import java.util.ArrayList;
 
 /* Piece class representing a shape placed on the grid at a given
 location in pixel coordinates, with specified cell size */
@@ -23,6 +21,14 @@ public class Piece {
         this.cellSize = cellSize;
     }
 
+    // Reuse the piece for a newly dealt shape, waiting in the palette at (x,y)
+    public void reset(Shape shape, int x, int y) {
+        this.shape = shape;
+        this.x = x;
+        this.y = y;
+        this.state = PieceState.IN_PALETTE;
+    }
+
     public Shape getShape() {
         return shape;
     }
@@ -45,33 +51,37 @@ public class Piece {
                 point.y >= this.y + FRAME_TOP_LEFT_Y && point.y <= this.y + FRAME_TOP_LEFT_Y + palettePieceHeight);
     }
 
-    /* Snaps the piece to the nearest grid position, adjusting for the frame and cell size.
-    Returns a new shape representing the snapped position, or null if outside the grid. */
-    public Shape snapToGrid() {
+    // Grid x coordinate of the cell the top-left of the piece snaps to
+    public int getSnappedCellX() {
+        // Adjust for the frame's top-left corner
+        int adjustedX = x - FRAME_TOP_LEFT_X;
+        return (int) Math.floor((double) adjustedX / cellSize);
+    }
+
+    // Grid y coordinate of the cell the top-left of the piece snaps to
+    public int getSnappedCellY() {
         // Adjust for default top-left y coordinate
         int yOffset = Y_OFFSET - FRAME_TOP_LEFT_Y;
 
         // Adjust for the frame's top-left corner
-        int adjustedX = x - FRAME_TOP_LEFT_X;
         int adjustedY = y - FRAME_TOP_LEFT_Y;
 
         // Adjust for the yOffset
         int relativeY = adjustedY - yOffset;
+        return (int) Math.floor((double) relativeY / cellSize);
+    }
 
+    /* Snaps the piece to the nearest grid position, adjusting for the frame and cell size.
+    Returns the shape at the snapped position, or null if outside a grid of the given size. */
+    public Shape snapToGrid(int numRows, int numCols) {
         // Calculate the grid cell coordinates based on the top-left position of the piece
-        int cellX = (int) Math.floor((double) adjustedX / cellSize);
-        int cellY = (int) Math.floor((double) relativeY / cellSize);
+        int cellX = getSnappedCellX();
+        int cellY = getSnappedCellY();
 
         // Ensure the snapped cells are inside the grid
-        if (cellX >= 0 && cellX <= 8 && cellY >= 0 && cellY <= 8) {
-            // Create a new shape with cells adjusted to the grid coordinates
-            List<Cell> snappedCells = new ArrayList<>();
-            for (Cell cell : shape) {
-                int snappedX = cellX + cell.x();
-                int snappedY = cellY + cell.y();
-                snappedCells.add(new Cell(snappedX, snappedY));
-            }
-            return new Shape(snappedCells, shape.getShapeWidth(), shape.getShapeHeight());
+        if (cellX >= 0 && cellX < numRows && cellY >= 0 && cellY < numCols) {
+            // The shape moved to the grid coordinates, as a view sharing the piece's cells
+            return shape.translate(cellX, cellY);
         } else {
             return null;
         }
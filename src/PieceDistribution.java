@@ -0,0 +1,102 @@
+import java.util.List;
+
+/* PieceDistribution interface choosing the shape dealt into an empty palette slot.
+Distributions only draw from the random stream they are given, so a deal is
+reproducible from the generator's seed */
+public interface PieceDistribution {
+    // Times a guaranteed-legal deal redraws from its base distribution before searching for a shape that fits
+    int MAX_REDRAWS = 8;
+
+    /* Picks the shape for the palette slot. The palette holds the shapes dealt so far,
+    null for slots still empty, and grid is the board (null if the deal ignores it) */
+    Shape next(SplitMix random, Grid grid, Shape[] palette, int slot);
+
+    // Deals the shapes in order by slot, the same palette every time
+    static PieceDistribution inOrder(List<Shape> shapes) {
+        Shape[] choices = shapes.toArray(new Shape[0]);
+        return (random, grid, palette, slot) -> choices[slot % choices.length];
+    }
+
+    // Every shape is equally likely
+    static PieceDistribution uniform(List<Shape> shapes) {
+        Shape[] choices = shapes.toArray(new Shape[0]);
+        return (random, grid, palette, slot) -> choices[random.nextInt(choices.length)];
+    }
+
+    // Each shape is drawn in proportion to its weight
+    static PieceDistribution weighted(List<Shape> shapes, double[] weights) {
+        if (weights.length != shapes.size()) {
+            throw new IllegalArgumentException("Expected " + shapes.size() + " weights, got " + weights.length);
+        }
+        Shape[] choices = shapes.toArray(new Shape[0]);
+        // Cumulative weights, scaled so the last one is 1
+        double[] cumulative = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (!(weights[i] >= 0)) {
+                throw new IllegalArgumentException("Weights must not be negative: " + weights[i]);
+            }
+            total += weights[i];
+            cumulative[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("At least one weight must be positive");
+        }
+        for (int i = 0; i < cumulative.length; i++) {
+            cumulative[i] /= total;
+        }
+        return (random, grid, palette, slot) -> {
+            double draw = random.nextDouble();
+            int i = 0;
+            while (i < cumulative.length - 1 && draw >= cumulative[i]) {
+                i++;
+            }
+            return choices[i];
+        };
+    }
+
+    /* Deals from the base distribution, but makes sure the palette has at least one shape
+    with a legal placement whenever any of the given shapes fits the board. Only the last
+    empty slot of a deal is checked, and only if none of the shapes before it fits */
+    static PieceDistribution guaranteedLegal(PieceDistribution base, List<Shape> shapes) {
+        Shape[] choices = shapes.toArray(new Shape[0]);
+        return (random, grid, palette, slot) -> {
+            Shape shape = base.next(random, grid, palette, slot);
+            if (grid == null || !isLastEmptySlot(palette, slot) || anyFits(grid, palette)) {
+                return shape;
+            }
+            for (int draw = 0; draw < MAX_REDRAWS && grid.getLegalMoveCount(shape) == 0; draw++) {
+                shape = base.next(random, grid, palette, slot);
+            }
+            if (grid.getLegalMoveCount(shape) > 0) {
+                return shape;
+            }
+            // Pick uniformly among the shapes that fit (reservoir sampling), if any does
+            int fitting = 0;
+            for (Shape choice : choices) {
+                if (grid.getLegalMoveCount(choice) > 0 && random.nextInt(++fitting) == 0) {
+                    shape = choice;
+                }
+            }
+            return shape;
+        };
+    }
+
+    private static boolean isLastEmptySlot(Shape[] palette, int slot) {
+        for (int i = 0; i < palette.length; i++) {
+            if (i != slot && palette[i] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean anyFits(Grid grid, Shape[] palette) {
+        for (Shape shape : palette) {
+            if (shape != null && grid.getLegalMoveCount(shape) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.List;
+
+/* PieceGenerator class dealing shapes into the empty slots of a palette from a
+PieceDistribution and its own seeded random stream. Shapes still in the palette are
+left alone, and the same seed always deals the same shapes for the same moves */
+public class PieceGenerator {
+    PieceDistribution distribution;
+    SplitMix random;
+    long seed;
+
+    public PieceGenerator(PieceDistribution distribution, long seed) {
+        this.distribution = distribution;
+        this.seed = seed;
+        this.random = new SplitMix(seed);
+    }
+
+    // The original deal: the shape set in order, whatever the seed
+    public static PieceGenerator classic() {
+        return new PieceGenerator(PieceDistribution.inOrder(new ShapeSet().getShapes()), 0);
+    }
+
+    // Uniform random shapes from the shape set, always leaving a legal placement if one exists
+    public static PieceGenerator random(long seed) {
+        List<Shape> shapes = new ShapeSet().getShapes();
+        return new PieceGenerator(PieceDistribution.guaranteedLegal(PieceDistribution.uniform(shapes), shapes), seed);
+    }
+
+    /* Fills the empty (null) slots of the palette in slot order, the grid is the board
+    the shapes are dealt for, or null if the distribution does not look at it */
+    public void deal(Shape[] palette, Grid grid) {
+        for (int slot = 0; slot < palette.length; slot++) {
+            if (palette[slot] == null) {
+                palette[slot] = distribution.next(random, grid, palette, slot);
+            }
+        }
+    }
+
+    // Restart the stream from a new seed, e.g. for a new game
+    public void reseed(long seed) {
+        this.seed = seed;
+        random.setState(seed);
+    }
+
+    // A generator with the same distribution and an independent stream split from this one
+    public PieceGenerator split() {
+        PieceGenerator split = new PieceGenerator(distribution, 0);
+        split.random = random.split();
+        split.seed = split.random.getState();
+        return split;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    // Current position in the random stream, restoring it resumes the same deals
+    public long getState() {
+        return random.getState();
+    }
+
+    public void setState(long state) {
+        random.setState(state);
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/* PlacementIndex class keeping, for every distinct shape it has been asked about,
+a bitset of the anchor cells where the shape currently fits on the grid. The grid
+reports every cell it fills or empties, so only anchors near changed cells are
+re-checked and legal move counts are always ready to read */
+public class PlacementIndex {
+    static final int RECENT_SIZE = 8;
+
+    Grid grid;
+    // Keyed by the shape's cells, so equal shapes from different pieces share an entry
+    Map<Shape, Entry> entries = new HashMap<>();
+    /* Shapes looked up most recently, compared by identity so that repeat
+    queries for the palette's shapes skip hashing their cells */
+    Shape[] recentShapes = new Shape[RECENT_SIZE];
+    Entry[] recentEntries = new Entry[RECENT_SIZE];
+    int nextRecent;
+    // The same entries as an array, for fast iteration on every cell change
+    Entry[] tracked = new Entry[0];
+
+    // Anchors where one shape fits, with the shape's cell offsets unpacked for fast checks
+    static class Entry {
+        Shape shape;
+        int[] offsetX;
+        int[] offsetY;
+        long[] anchors;
+        int count;
+        // Anchors where the shape fits on an empty grid, and how many there are
+        long[] emptyAnchors;
+        int emptyCount;
+
+        Entry(Shape shape, int numWords) {
+            this.shape = shape;
+            offsetX = new int[shape.size()];
+            offsetY = new int[shape.size()];
+            for (int k = 0; k < shape.size(); k++) {
+                offsetX[k] = shape.x(k);
+                offsetY[k] = shape.y(k);
+            }
+            anchors = new long[numWords];
+        }
+    }
+
+    public PlacementIndex(Grid grid) {
+        this.grid = grid;
+    }
+
+    // Get the entry for a shape, computing its anchors from scratch the first time
+    private Entry track(Shape shape) {
+        for (int i = 0; i < RECENT_SIZE; i++) {
+            if (recentShapes[i] == shape) {
+                return recentEntries[i];
+            }
+        }
+
+        Entry entry = entries.get(shape);
+        if (entry == null) {
+            // Prefer the catalog's instance, whose placement masks make checks cheaper
+            Shape interned = shape.catalog == null ? ShapeCatalog.standard().intern(shape) : shape;
+            entry = new Entry(interned != null ? interned : shape, grid.numWords);
+            computeEmptyAnchors(entry);
+            computeAnchors(entry);
+            tracked = Arrays.copyOf(tracked, tracked.length + 1);
+            tracked[tracked.length - 1] = entry;
+            // Shapes are immutable, so the shape itself can be the key
+            entries.put(shape, entry);
+        }
+        recentShapes[nextRecent] = shape;
+        recentEntries[nextRecent] = entry;
+        nextRecent = (nextRecent + 1) % RECENT_SIZE;
+        return entry;
+    }
+
+    // Check every anchor on the grid from scratch
+    private void computeAnchors(Entry entry) {
+        Arrays.fill(entry.anchors, 0L);
+        entry.count = 0;
+        for (int x = 0; x < grid.numRows; x++) {
+            for (int y = 0; y < grid.numCols; y++) {
+                if (fits(entry, x, y)) {
+                    setAnchor(entry, x, y);
+                }
+            }
+        }
+    }
+
+    // Work out which anchors keep the whole shape inside the grid
+    private void computeEmptyAnchors(Entry entry) {
+        entry.emptyAnchors = new long[grid.numWords];
+        for (int x = 0; x < grid.numRows; x++) {
+            for (int y = 0; y < grid.numCols; y++) {
+                if (insideGrid(entry, x, y)) {
+                    int index = grid.bitIndex(x, y);
+                    entry.emptyAnchors[index >>> 6] |= 1L << index;
+                    entry.emptyCount++;
+                }
+            }
+        }
+    }
+
+    // Reset every tracked shape's anchors after the grid has been emptied
+    void reset() {
+        for (Entry entry : tracked) {
+            System.arraycopy(entry.emptyAnchors, 0, entry.anchors, 0, entry.anchors.length);
+            entry.count = entry.emptyCount;
+        }
+    }
+
+    private boolean insideGrid(Entry entry, int x, int y) {
+        for (int k = 0; k < entry.offsetX.length; k++) {
+            if (!grid.inBounds(x + entry.offsetX[k], y + entry.offsetY[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Number of anchors where the shape (with cells as offsets from its anchor) fits
+    public int getLegalMoveCount(Shape shape) {
+        return track(shape).count;
+    }
+
+    // Bitset of the anchors where the shape fits, indexed like the grid's cells - do not modify
+    public long[] getLegalAnchors(Shape shape) {
+        return track(shape).anchors;
+    }
+
+    // Check if every cell of the shape anchored at (x,y) is inside the grid and empty
+    private boolean fits(Entry entry, int x, int y) {
+        return grid.canPlaceAt(entry.shape, x, y);
+    }
+
+    private void setAnchor(Entry entry, int x, int y) {
+        int index = grid.bitIndex(x, y);
+        long bit = 1L << index;
+        if ((entry.anchors[index >>> 6] & bit) == 0) {
+            entry.anchors[index >>> 6] |= bit;
+            entry.count++;
+        }
+    }
+
+    private void clearAnchor(Entry entry, int x, int y) {
+        int index = grid.bitIndex(x, y);
+        long bit = 1L << index;
+        if ((entry.anchors[index >>> 6] & bit) != 0) {
+            entry.anchors[index >>> 6] &= ~bit;
+            entry.count--;
+        }
+    }
+
+    // A cell became occupied: no anchor that covers it fits any more
+    void cellFilled(int x, int y) {
+        for (Entry entry : tracked) {
+            for (int k = 0; k < entry.offsetX.length; k++) {
+                int anchorX = x - entry.offsetX[k];
+                int anchorY = y - entry.offsetY[k];
+                if (grid.inBounds(anchorX, anchorY)) {
+                    clearAnchor(entry, anchorX, anchorY);
+                }
+            }
+        }
+    }
+
+    /* A cell became empty: re-check the anchors that cover it. Must be called
+    after all the cells of a clear have been emptied */
+    void cellCleared(int x, int y) {
+        for (Entry entry : tracked) {
+            for (int k = 0; k < entry.offsetX.length; k++) {
+                int anchorX = x - entry.offsetX[k];
+                int anchorY = y - entry.offsetY[k];
+                if (grid.inBounds(anchorX, anchorY) && fits(entry, anchorX, anchorY)) {
+                    setAnchor(entry, anchorX, anchorY);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+/* Enum representing the kinds of region that are cleared when full:
+- ROW: A full row of the grid
+- COLUMN: A full column of the grid
+- SQUARE: A full 3x3 mini-square */
+public enum RegionType {
+    ROW, COLUMN, SQUARE
+}
@@ -0,0 +1,26 @@
+/* ReplayResult record holding what a JournalReplayer replayed and, if the replay
+stopped early, the game and move where it first diverged from the journal */
+public record ReplayResult(long games, long moves, long bytes, long nanos,
+                           String divergence, long divergentGame, int divergentMove) {
+
+    public boolean diverged() {
+        return divergence != null;
+    }
+
+    public double gamesPerSecond() {
+        return nanos == 0 ? 0 : games * 1e9 / nanos;
+    }
+
+    public double movesPerSecond() {
+        return nanos == 0 ? 0 : moves * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        String summary = String.format("%,d games, %,d moves, %,d bytes in %.1f ms: %,.0f games/s, %,.0f moves/s, %.1f MB/s",
+                games, moves, bytes, nanos / 1e6, gamesPerSecond(), movesPerSecond(),
+                nanos == 0 ? 0 : bytes * 1e3 / nanos);
+        return diverged() ? summary + String.format("%nDiverged in game %d at move %d: %s",
+                divergentGame, divergentMove, divergence) : summary;
+    }
+}
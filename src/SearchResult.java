@@ -0,0 +1,24 @@
+/* SearchResult record holding the best line the solver found (moves packed as in
+GameEngine, in the order to play them), its value and the search statistics */
+public record SearchResult(int[] line, double value, long nodes, long tableHits, long nanos, boolean complete) {
+
+    // First move of the best line, or -1 if no shape fits anywhere
+    public int bestMove() {
+        return line.length > 0 ? line[0] : -1;
+    }
+
+    public double nodesPerSecond() {
+        return nanos == 0 ? 0 : nodes * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder moves = new StringBuilder();
+        for (int move : line) {
+            moves.append(String.format(" slot %d at (%d,%d)", GameEngine.moveSlot(move),
+                    GameEngine.moveX(move), GameEngine.moveY(move)));
+        }
+        return String.format("value %.2f,%s%n%,d nodes, %,d table hits, %.1f ms, %,.0f nodes/s%s",
+                value, moves, nodes, tableHits, nanos / 1e6, nodesPerSecond(), complete ? "" : " (budget hit)");
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/* SelfPlayRunner class playing many headless games across a fork-join pool.
+Game i gets its own seed derived from the master seed, which seeds both its
+piece deals and its moves, so any single game can be replayed on its own with playGame, and each worker keeps its own statistics
+which are merged as the tasks join, with no shared lock.
+Run with: java SelfPlayRunner [games] [masterSeed] */
+public class SelfPlayRunner {
+    // Games played by one task without splitting further
+    static final int GAMES_PER_TASK = 1024;
+
+    int numRows;
+    int numCols;
+    MovePolicy policy;
+    long masterSeed;
+    // Where every game's score is recorded under its seed, if anywhere
+    Leaderboard leaderboard;
+    // Where every move is exported as training data, if anywhere
+    TrajectoryExporter exporter;
+
+    public SelfPlayRunner(int numRows, int numCols, MovePolicy policy, long masterSeed) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.policy = policy;
+        this.masterSeed = masterSeed;
+    }
+
+    // Seed of a single game, mixed from the master seed and game index
+    public static long seedFor(long masterSeed, long gameIndex) {
+        return SplitMix.mix(masterSeed + (gameIndex + 1) * SplitMix.GOLDEN_GAMMA);
+    }
+
+    // Plays games 0 to numGames - 1 on the given number of threads
+    public SelfPlayStats run(long numGames, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new GamesTask(0, numGames));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // An engine dealing random shapes, as the games of a run are played on
+    public GameEngine newEngine() {
+        return new GameEngine(numRows, numCols, PieceGenerator.random(masterSeed));
+    }
+
+    // Replays a single game from the run on the given engine
+    public void playGame(GameEngine engine, long gameIndex, int[] moves) {
+        SplitMix random = new SplitMix(seedFor(masterSeed, gameIndex));
+        engine.newGame(random.nextLong());
+        int count;
+        while ((count = engine.legalMoves(moves)) > 0) {
+            engine.applyMove(policy.chooseMove(engine, moves, count, random));
+        }
+    }
+
+    // Plays a range of games, splitting it in half until it is small enough
+    class GamesTask extends RecursiveTask<SelfPlayStats> {
+        private static final long serialVersionUID = 1L;
+
+        long from;
+        long to;
+
+        GamesTask(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected SelfPlayStats compute() {
+            if (to - from <= GAMES_PER_TASK) {
+                SelfPlayStats stats = new SelfPlayStats();
+                GameEngine engine = newEngine();
+                if (exporter != null) {
+                    engine.setTrajectory(exporter.recorder());
+                }
+                int[] moves = new int[engine.maxMoves()];
+                for (long game = from; game < to; game++) {
+                    playGame(engine, game, moves);
+                    stats.addGame(engine);
+                    if (leaderboard != null) {
+                        leaderboard.record(engine.getScore(), engine.getMovesPlayed(), seedFor(masterSeed, game),
+                                Leaderboard.ruleset(engine.getGrid()));
+                    }
+                }
+                if (exporter != null) {
+                    engine.getTrajectory().flush();
+                }
+                return stats;
+            }
+            long middle = (from + to) >>> 1;
+            GamesTask left = new GamesTask(from, middle);
+            left.fork();
+            SelfPlayStats right = new GamesTask(middle, to).compute();
+            return right.merge(left.join());
+        }
+    }
+
+    /* Plays the games with a random policy on 1, 2, 4, ... threads up to the
+    number of cores, reporting games per second and the speed-up over 1 thread */
+    public static void main(String[] args) {
+        long numGames = args.length > 0 ? Long.parseLong(args[0]) : 200_000;
+        long masterSeed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int cores = Runtime.getRuntime().availableProcessors();
+        SelfPlayRunner runner = new SelfPlayRunner(9, 9, MovePolicy.random(), masterSeed);
+
+        // Warm up the JIT before measuring
+        runner.run(Math.min(numGames, 20_000), cores);
+
+        double singleThreadRate = 0;
+        SelfPlayStats stats = null;
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            long start = System.nanoTime();
+            stats = runner.run(numGames, threads);
+            double rate = numGames / ((System.nanoTime() - start) / 1e9);
+            if (threads == 1) {
+                singleThreadRate = rate;
+            }
+            System.out.printf("%2d threads: %,.0f games/s, %,.0f moves/s, %.2fx%n",
+                    threads, rate, rate * stats.getMoves() / numGames, rate / singleThreadRate);
+            if (threads == cores) {
+                break;
+            }
+        }
+        System.out.println(stats);
+    }
+}
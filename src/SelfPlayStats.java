@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/* SelfPlayStats class collecting the results of many self-play games: score and
+game length histograms plus the number of regions cleared of each type. Each
+worker fills its own instance, and instances are merged once the workers finish */
+public class SelfPlayStats {
+    long games;
+    long moves;
+    long[] scoreHistogram = new long[64];
+    long[] lengthHistogram = new long[256];
+    long[] clears = new long[RegionType.values().length];
+
+    // Record the final state of a finished game
+    public void addGame(GameEngine engine) {
+        games++;
+        moves += engine.getMovesPlayed();
+        scoreHistogram = increment(scoreHistogram, engine.getScore());
+        lengthHistogram = increment(lengthHistogram, engine.getMovesPlayed());
+        for (RegionType type : RegionType.values()) {
+            clears[type.ordinal()] += engine.getGrid().getClearCount(type);
+        }
+    }
+
+    // Add another worker's results into this one
+    public SelfPlayStats merge(SelfPlayStats other) {
+        games += other.games;
+        moves += other.moves;
+        scoreHistogram = add(scoreHistogram, other.scoreHistogram);
+        lengthHistogram = add(lengthHistogram, other.lengthHistogram);
+        for (int i = 0; i < clears.length; i++) {
+            clears[i] += other.clears[i];
+        }
+        return this;
+    }
+
+    // Count a value, growing the histogram when the value is past its end
+    private static long[] increment(long[] histogram, int value) {
+        if (value >= histogram.length) {
+            histogram = Arrays.copyOf(histogram, Math.max(value + 1, histogram.length * 2));
+        }
+        histogram[value]++;
+        return histogram;
+    }
+
+    private static long[] add(long[] histogram, long[] other) {
+        if (other.length > histogram.length) {
+            histogram = Arrays.copyOf(histogram, other.length);
+        }
+        for (int i = 0; i < other.length; i++) {
+            histogram[i] += other[i];
+        }
+        return histogram;
+    }
+
+    public long getGames() {
+        return games;
+    }
+
+    public long getMoves() {
+        return moves;
+    }
+
+    // Number of games that ended with the given score
+    public long getScoreCount(int score) {
+        return score < scoreHistogram.length ? scoreHistogram[score] : 0;
+    }
+
+    // Number of games that lasted the given number of moves
+    public long getLengthCount(int length) {
+        return length < lengthHistogram.length ? lengthHistogram[length] : 0;
+    }
+
+    public long getClears(RegionType type) {
+        return clears[type.ordinal()];
+    }
+
+    public double getMeanScore() {
+        return mean(scoreHistogram);
+    }
+
+    public double getMeanLength() {
+        return mean(lengthHistogram);
+    }
+
+    // Smallest value with at least the given fraction of games at or below it
+    public int getScorePercentile(double fraction) {
+        return percentile(scoreHistogram, fraction);
+    }
+
+    public int getLengthPercentile(double fraction) {
+        return percentile(lengthHistogram, fraction);
+    }
+
+    private double mean(long[] histogram) {
+        double total = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            total += (double) i * histogram[i];
+        }
+        return games == 0 ? 0 : total / games;
+    }
+
+    private int percentile(long[] histogram, double fraction) {
+        long target = (long) Math.ceil(fraction * games);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= target && seen > 0) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d games, %d moves%n"
+                        + "score:  mean %.2f, p50 %d, p90 %d, p99 %d, max %d%n"
+                        + "length: mean %.2f, p50 %d, p90 %d, p99 %d, max %d%n"
+                        + "clears: %d rows, %d columns, %d squares",
+                games, moves,
+                getMeanScore(), getScorePercentile(0.5), getScorePercentile(0.9),
+                getScorePercentile(0.99), getScorePercentile(1.0),
+                getMeanLength(), getLengthPercentile(0.5), getLengthPercentile(0.9),
+                getLengthPercentile(0.99), getLengthPercentile(1.0),
+                getClears(RegionType.ROW), getClears(RegionType.COLUMN), getClears(RegionType.SQUARE));
+    }
+}
@@ -1,17 +1,76 @@
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.List;
 
-// Shape class representing a group of cells forming a shape
-public class Shape extends ArrayList<Cell> {
-    int shapeWidth;
-    int shapeHeight;
+/* Shape class representing a group of cells forming a shape. Shapes are immutable and
+compact: each cell is packed into one int, the width, height and hash are cached, and
+get hands out the shared Cell flyweights, so reading a shape allocates nothing. A shape
+moved onto the board (translate) is a view of its base shape plus an anchor rather than
+a copy. It is still a List<Cell>, so code that iterates over the cells, such as the
+painting in GameView, works as before */
+public class Shape extends AbstractList<Cell> {
+    // Cells packed as x << 16 | (y & 0xFFFF), null for a view
+    final int[] cells;
+    // For a view, the shape it shows and where that shape's (0,0) lands
+    final Shape base;
+    final int anchorX;
+    final int anchorY;
+    final int shapeWidth;
+    final int shapeHeight;
+    // List hash code, 0 until first asked for
+    int hash;
+    // Set for shapes interned by a ShapeCatalog, id is the shape's index in that catalog
+    ShapeCatalog catalog;
+    int id = -1;
 
     public Shape(List<Cell> cells, int shapeWidth, int shapeHeight) {
-        super(cells);
+        this.cells = new int[cells.size()];
+        for (int i = 0; i < this.cells.length; i++) {
+            Cell cell = cells.get(i);
+            if (cell.x() != (short) cell.x() || cell.y() != (short) cell.y()) {
+                throw new IllegalArgumentException("Cell out of range: " + cell);
+            }
+            this.cells[i] = cell.x() << 16 | (cell.y() & 0xFFFF);
+        }
+        this.base = null;
+        this.anchorX = 0;
+        this.anchorY = 0;
         this.shapeWidth = shapeWidth;
         this.shapeHeight = shapeHeight;
     }
 
+    private Shape(Shape base, int anchorX, int anchorY) {
+        this.cells = null;
+        this.base = base;
+        this.anchorX = anchorX;
+        this.anchorY = anchorY;
+        this.shapeWidth = base.shapeWidth;
+        this.shapeHeight = base.shapeHeight;
+    }
+
+    // The shape with every cell moved by (x,y), as a view sharing this shape's cells
+    public Shape translate(int x, int y) {
+        return base == null ? new Shape(this, x, y) : new Shape(base, anchorX + x, anchorY + y);
+    }
+
+    // Coordinates of the i-th cell, without going through a Cell
+    public int x(int i) {
+        return base == null ? cells[i] >> 16 : (base.cells[i] >> 16) + anchorX;
+    }
+
+    public int y(int i) {
+        return base == null ? (short) cells[i] : (short) base.cells[i] + anchorY;
+    }
+
+    @Override
+    public Cell get(int i) {
+        return Cell.of(x(i), y(i));
+    }
+
+    @Override
+    public int size() {
+        return base == null ? cells.length : base.cells.length;
+    }
+
     public int getShapeWidth() {
         return shapeWidth;
     }
@@ -19,4 +78,37 @@ public class Shape extends ArrayList<Cell> {
     public int getShapeHeight() {
         return shapeHeight;
     }
+
+    // Same as any list of the same cells in the same order, computed once
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 1;
+            for (int i = 0; i < size(); i++) {
+                h = 31 * h + Cell.hashCode(x(i), y(i));
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Shape other)) {
+            return super.equals(o);
+        }
+        if (other.size() != size() || (hash != 0 && other.hash != 0 && hash != other.hash)) {
+            return false;
+        }
+        for (int i = 0; i < size(); i++) {
+            if (x(i) != other.x(i) || y(i) != other.y(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* ShapeCatalog class generating every polyomino up to a maximum number of cells once,
+with all of its rotations and reflections (deduplicated by canonical form). Each
+orientation is interned as a single shared Shape with an id, and for every board size
+the catalog precomputes the cells each shape covers at every anchor, so a placement
+check is a table lookup plus a mask test */
+public class ShapeCatalog {
+    // Shapes are keyed by a bitmask of their cells in an 8x8 box, which limits their size
+    static final int MAX_SIDE = 8;
+    // Board sizes with more mask words than this fall back to checking cells one by one
+    static final long MAX_MASK_WORDS = 1 << 22;
+
+    private static ShapeCatalog standard;
+
+    int maxSize;
+    // Every orientation of every polyomino, indexed by shape id
+    List<Shape> shapes = new ArrayList<>();
+    Map<Long, Shape> shapesByKey = new HashMap<>();
+    int freeCount;
+    // Placement masks for each board size, keyed by (numRows, numCols)
+    Map<Long, BoardMasks> boardMasks = new ConcurrentHashMap<>();
+
+    // The catalog of all shapes of up to 5 cells, shared by the whole game
+    public static synchronized ShapeCatalog standard() {
+        if (standard == null) {
+            standard = new ShapeCatalog(5);
+        }
+        return standard;
+    }
+
+    public ShapeCatalog(int maxSize) {
+        if (maxSize < 1 || maxSize > MAX_SIDE) {
+            throw new IllegalArgumentException("Shapes must have between 1 and " + MAX_SIDE + " cells");
+        }
+        this.maxSize = maxSize;
+        generate();
+    }
+
+    /* Grows every polyomino of n cells into those of n + 1 cells by adding a neighbouring
+    cell, keeping one canonical form per free polyomino, then interns its orientations */
+    private void generate() {
+        TreeSet<Long> current = new TreeSet<>(List.of(1L));
+        for (int size = 1; size <= maxSize; size++) {
+            // Group the fixed polyominoes of this size under their canonical (free) form
+            TreeMap<Long, TreeSet<Long>> orientations = new TreeMap<>();
+            for (long key : current) {
+                orientations.computeIfAbsent(canonical(key), k -> new TreeSet<>()).add(key);
+            }
+            for (TreeSet<Long> group : orientations.values()) {
+                for (long key : group) {
+                    intern(key);
+                }
+            }
+            freeCount += orientations.size();
+
+            if (size < maxSize) {
+                TreeSet<Long> next = new TreeSet<>();
+                for (long key : current) {
+                    grow(key, next);
+                }
+                current = next;
+            }
+        }
+    }
+
+    /* Add every polyomino made by attaching one more cell to the given one. A polyomino
+    of n cells spans at most n cells each way, so it always fits the key's 8x8 box */
+    private static void grow(long key, TreeSet<Long> next) {
+        int[][] neighbours = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+        long[] cells = cells(key);
+        for (long cell : cells) {
+            for (int[] neighbour : neighbours) {
+                List<int[]> grown = new ArrayList<>();
+                for (long other : cells) {
+                    grown.add(new int[] {(int) (other >> 8), (int) (other & 0xFF)});
+                }
+                grown.add(new int[] {(int) (cell >> 8) + neighbour[0], (int) (cell & 0xFF) + neighbour[1]});
+                long grownKey = key(grown);
+                // Skip neighbours that are already part of the polyomino
+                if (Long.bitCount(grownKey) == cells.length + 1) {
+                    next.add(grownKey);
+                }
+            }
+        }
+    }
+
+    // Smallest key over the 8 rotations and reflections of the shape
+    private static long canonical(long key) {
+        long best = Long.MAX_VALUE;
+        for (int transform = 0; transform < 8; transform++) {
+            List<int[]> transformed = new ArrayList<>();
+            for (long cell : cells(key)) {
+                int x = (int) (cell >> 8);
+                int y = (int) (cell & 0xFF);
+                int tx = (transform & 1) != 0 ? -x : x;
+                int ty = (transform & 2) != 0 ? -y : y;
+                transformed.add((transform & 4) != 0 ? new int[] {ty, tx} : new int[] {tx, ty});
+            }
+            best = Math.min(best, key(transformed));
+        }
+        return best;
+    }
+
+    // Bitmask key of cells, translated so the smallest x and y are 0
+    private static long key(List<int[]> cells) {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        for (int[] cell : cells) {
+            minX = Math.min(minX, cell[0]);
+            minY = Math.min(minY, cell[1]);
+        }
+        long key = 0;
+        for (int[] cell : cells) {
+            key |= 1L << ((cell[0] - minX) * MAX_SIDE + cell[1] - minY);
+        }
+        return key;
+    }
+
+    // Cells of a key, each packed as x << 8 | y, in x then y order
+    private static long[] cells(long key) {
+        long[] cells = new long[Long.bitCount(key)];
+        int i = 0;
+        while (key != 0) {
+            int bit = Long.numberOfTrailingZeros(key);
+            cells[i++] = ((long) (bit / MAX_SIDE) << 8) | (bit % MAX_SIDE);
+            key &= key - 1;
+        }
+        return cells;
+    }
+
+    private void intern(long key) {
+        List<Cell> cells = new ArrayList<>();
+        int width = 0;
+        int height = 0;
+        for (long packed : cells(key)) {
+            int x = (int) (packed >> 8);
+            int y = (int) (packed & 0xFF);
+            cells.add(Cell.of(x, y));
+            width = Math.max(width, x + 1);
+            height = Math.max(height, y + 1);
+        }
+        Shape shape = new Shape(cells, width, height);
+        shape.catalog = this;
+        shape.id = shapes.size();
+        shapes.add(shape);
+        shapesByKey.put(key, shape);
+    }
+
+    /* The catalog's shared instance of a shape with the same cells (in any order,
+    at the same offsets), or null if there is no such shape in the catalog */
+    public Shape intern(Shape shape) {
+        List<int[]> cells = new ArrayList<>();
+        for (Cell cell : shape) {
+            if (cell.x() < 0 || cell.y() < 0 || cell.x() >= MAX_SIDE || cell.y() >= MAX_SIDE) {
+                return null;
+            }
+            cells.add(new int[] {cell.x(), cell.y()});
+        }
+        if (cells.isEmpty()) {
+            return null;
+        }
+        Shape interned = shapesByKey.get(key(cells));
+        // The key drops the offset from (0,0), so check the shape was not translated
+        if (interned == null || interned.size() != shape.size()) {
+            return null;
+        }
+        for (Cell cell : shape) {
+            if (!interned.contains(cell)) {
+                return null;
+            }
+        }
+        return interned;
+    }
+
+    public List<Shape> getShapes() {
+        return shapes;
+    }
+
+    public Shape getShape(int id) {
+        return shapes.get(id);
+    }
+
+    // Number of shape orientations in the catalog
+    public int size() {
+        return shapes.size();
+    }
+
+    // Number of distinct polyominoes when rotations and reflections count as the same
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    /* The placement masks for the grid's size, built the first time a grid of that
+    size asks, or null if the board is too large to precompute them */
+    BoardMasks masksFor(Grid grid) {
+        long words = (long) shapes.size() * grid.numRows * grid.numCols * grid.numWords;
+        if (words > MAX_MASK_WORDS) {
+            return null;
+        }
+        long size = ((long) grid.numRows << 32) | grid.numCols;
+        return boardMasks.computeIfAbsent(size, k -> new BoardMasks(grid));
+    }
+
+    // The cells covered by each catalog shape at each anchor of one board size
+    class BoardMasks {
+        int numCols;
+        // [shape id][x * numCols + y], null where the shape would stick out of the board
+        long[][][] masks;
+
+        BoardMasks(Grid grid) {
+            this.numCols = grid.numCols;
+            masks = new long[shapes.size()][grid.numRows * grid.numCols][];
+            for (Shape shape : shapes) {
+                for (int x = 0; x < grid.numRows; x++) {
+                    for (int y = 0; y < grid.numCols; y++) {
+                        long[] mask = new long[grid.numWords];
+                        boolean inside = true;
+                        for (Cell cell : shape) {
+                            int cellX = x + cell.x();
+                            int cellY = y + cell.y();
+                            if (!grid.inBounds(cellX, cellY)) {
+                                inside = false;
+                                break;
+                            }
+                            int index = grid.bitIndex(cellX, cellY);
+                            mask[index >>> 6] |= 1L << index;
+                        }
+                        masks[shape.id][x * numCols + y] = inside ? mask : null;
+                    }
+                }
+            }
+        }
+
+        // Mask of the shape anchored at (x,y), which must be inside the board, or null if it sticks out
+        long[] mask(Shape shape, int x, int y) {
+            return masks[shape.id][x * numCols + y];
+        }
+    }
+}
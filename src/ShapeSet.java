@@ -1,25 +1,27 @@
-import java.util.ArrayList;
 import java.util.List;
 
 /* ShapeSet class that creates all the different shapes
-(made up of 4 cells) to be placed in the palette */
+(made up of 4 cells) to be placed in the palette. The shapes
+are interned from the shape catalog once and shared */
 public class ShapeSet {
+    private static final List<Shape> SHAPES = List.of(
+            // Shape 1 (I-shape, 1x4)
+            intern(new Shape(List.of(new Cell(0, 0),
+                    new Cell(1, 0), new Cell(2, 0), new Cell(3, 0)), 4, 1)),
 
-    public List<Shape> getShapes() {
-        List<Shape> shapes = new ArrayList<>();
-
-        // Shape 1 (I-shape, 1x4)
-        shapes.add(new Shape(List.of(new Cell(0, 0),
-                new Cell(1, 0), new Cell(2, 0), new Cell(3, 0)), 4, 1));
+            // Shape 2 (T-shape, 2x3)
+            intern(new Shape(List.of(new Cell(0, 0),
+                    new Cell(1, 0), new Cell(2, 0), new Cell(1, 1)), 3, 2)),
 
-        // Shape 2 (T-shape, 2x3)
-        shapes.add(new Shape(List.of(new Cell(0, 0),
-                new Cell(1, 0), new Cell(2, 0), new Cell(1, 1)), 3, 2));
+            // Shape 3 (O-shape, 2x2)
+            intern(new Shape(List.of(new Cell(0, 0),
+                    new Cell(1, 0), new Cell(0, 1), new Cell(1, 1)), 2, 2)));
 
-        // Shape 3 (O-shape, 2x2)
-        shapes.add(new Shape(List.of(new Cell(0, 0),
-                new Cell(1, 0), new Cell(0, 1), new Cell(1, 1)), 2, 2));
+    public List<Shape> getShapes() {
+        return SHAPES;
+    }
 
-        return shapes;
+    private static Shape intern(Shape shape) {
+        return ShapeCatalog.standard().intern(shape);
     }
 }
@@ -0,0 +1,387 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/* Solver class searching every placement order and anchor for the shapes in the
+palette to find the best line under an Evaluation. Clears happen between drops, so
+the order matters, but different orders often reach the same position - those are
+looked up in a transposition table shared by all threads, keyed by a Zobrist hash
+of the board plus the shapes still to place. First-level moves are searched in
+parallel and the search stops early when its time or node budget runs out */
+public class Solver {
+    // Nodes a worker searches between checks of the shared budget
+    static final int BUDGET_CHECK_INTERVAL = 1024;
+    // Bits used by one move in a packed line, moves are stored plus one so 0 means none
+    static final int LINE_MOVE_BITS = 21;
+
+    Evaluation evaluation;
+    List<Shape> mobilityShapes;
+    ForkJoinPool pool;
+
+    public Solver(Evaluation evaluation, List<Shape> mobilityShapes) {
+        this(evaluation, mobilityShapes, ForkJoinPool.commonPool());
+    }
+
+    public Solver(Evaluation evaluation, List<Shape> mobilityShapes, ForkJoinPool pool) {
+        this.evaluation = evaluation;
+        this.mobilityShapes = mobilityShapes;
+        this.pool = pool;
+    }
+
+    // Value and best continuation (a packed line) of a fully searched position
+    record TableEntry(double value, long line) {
+    }
+
+    // Searches the pieces left in the palette, slots are numbered in palette order
+    public SearchResult search(Grid grid, Palette palette, long timeBudgetNanos, long nodeBudget) {
+        List<Piece> pieces = palette.getPieces();
+        Shape[] shapes = new Shape[pieces.size()];
+        for (int i = 0; i < shapes.length; i++) {
+            shapes[i] = pieces.get(i).getShape();
+        }
+        return search(grid, shapes, timeBudgetNanos, nodeBudget);
+    }
+
+    // Searches the engine's palette, the line's moves can be passed to applyMove
+    public SearchResult search(GameEngine engine, long timeBudgetNanos, long nodeBudget) {
+        Shape[] shapes = new Shape[GameEngine.PALETTE_SIZE];
+        for (int slot = 0; slot < shapes.length; slot++) {
+            shapes[slot] = engine.getPaletteShape(slot);
+        }
+        return search(engine.getGrid(), shapes, timeBudgetNanos, nodeBudget);
+    }
+
+    /* Searches every order and anchor for the shapes (null slots are skipped) on a copy
+    of the grid. The grid itself is not changed */
+    public SearchResult search(Grid grid, Shape[] shapes, long timeBudgetNanos, long nodeBudget) {
+        return search(grid, shapes, timeBudgetNanos, nodeBudget, () -> false);
+    }
+
+    /* As above, but also stops as soon as possible once stop returns true, e.g. when
+    the board the search was started for has changed. Returns the best line so far */
+    public SearchResult search(Grid grid, Shape[] shapes, long timeBudgetNanos, long nodeBudget,
+                               BooleanSupplier stop) {
+        Search search = new Search(grid, shapes, timeBudgetNanos, nodeBudget, stop);
+        return search.run();
+    }
+
+    // State shared by every thread working on one search
+    class Search {
+        Grid root;
+        Shape[] shapes;
+        long[] cellKeys;
+        long[] shapeKeys;
+        long timeBudgetNanos;
+        long nodeBudget;
+        long start = System.nanoTime();
+        AtomicLong nodes = new AtomicLong();
+        AtomicLong tableHits = new AtomicLong();
+        ConcurrentHashMap<Long, TableEntry> table = new ConcurrentHashMap<>();
+        BooleanSupplier stop;
+        volatile boolean outOfBudget;
+
+        Search(Grid grid, Shape[] shapes, long timeBudgetNanos, long nodeBudget, BooleanSupplier stop) {
+            this.root = grid.copy();
+            this.shapes = shapes;
+            this.timeBudgetNanos = timeBudgetNanos;
+            this.nodeBudget = nodeBudget;
+            this.stop = stop;
+
+            // Zobrist keys for every cell, and for each slot's shape
+            SplittableRandom random = new SplittableRandom(0x5EEDL);
+            cellKeys = new long[grid.numWords * 64];
+            for (int i = 0; i < cellKeys.length; i++) {
+                cellKeys[i] = random.nextLong();
+            }
+            // Shape keys spread each shape's hash code over all 64 bits
+            shapeKeys = new long[shapes.length];
+            for (int slot = 0; slot < shapes.length; slot++) {
+                if (shapes[slot] != null) {
+                    shapeKeys[slot] = SplitMix.mix(shapes[slot].hashCode());
+                }
+            }
+        }
+
+        SearchResult run() {
+            List<Integer> rootMoves = new ArrayList<>();
+            int remaining = 0;
+            for (int slot = 0; slot < shapes.length; slot++) {
+                if (shapes[slot] != null) {
+                    remaining |= 1 << slot;
+                }
+            }
+            for (int slot = 0; slot < shapes.length; slot++) {
+                if (shapes[slot] != null && !isDuplicate(slot, remaining)) {
+                    long[] anchors = root.getLegalAnchors(shapes[slot]);
+                    for (int w = 0; w < anchors.length; w++) {
+                        long bits = anchors[w];
+                        while (bits != 0) {
+                            int index = w * 64 + Long.numberOfTrailingZeros(bits);
+                            rootMoves.add(GameEngine.move(slot, root.cellX(index), root.cellY(index)));
+                            bits &= bits - 1;
+                        }
+                    }
+                }
+            }
+
+            int[] line = new int[0];
+            double value = evaluation.deadEndPenalty();
+            if (!rootMoves.isEmpty()) {
+                int chunk = Math.max(1, rootMoves.size() / (pool.getParallelism() * 4));
+                TableEntry best = pool.invoke(new RootTask(this, rootMoves, remaining, 0, rootMoves.size(), chunk));
+                value = best.value();
+                line = unpackLine(best.line());
+            }
+            return new SearchResult(line, value, nodes.get(), tableHits.get(),
+                    System.nanoTime() - start, !outOfBudget);
+        }
+
+        // Key of the shapes left to place, summed so equal shapes in two slots still count twice
+        long remainingKey(int remaining) {
+            long key = 0;
+            for (int slot = 0; slot < shapes.length; slot++) {
+                if ((remaining & (1 << slot)) != 0) {
+                    key += shapeKeys[slot];
+                }
+            }
+            return key;
+        }
+
+        // Placing an equal shape from an earlier slot leads to exactly the same positions
+        boolean isDuplicate(int slot, int remaining) {
+            for (int earlier = 0; earlier < slot; earlier++) {
+                if ((remaining & (1 << earlier)) != 0 && shapes[earlier].equals(shapes[slot])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Searches a range of first-level moves, splitting it across the pool
+    class RootTask extends RecursiveTask<TableEntry> {
+        private static final long serialVersionUID = 1L;
+
+        Search search;
+        List<Integer> moves;
+        int remaining;
+        int from;
+        int to;
+        int chunk;
+
+        RootTask(Search search, List<Integer> moves, int remaining, int from, int to, int chunk) {
+            this.search = search;
+            this.moves = moves;
+            this.remaining = remaining;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected TableEntry compute() {
+            if (to - from > chunk) {
+                int middle = (from + to) >>> 1;
+                RootTask left = new RootTask(search, moves, remaining, from, middle, chunk);
+                left.fork();
+                TableEntry right = new RootTask(search, moves, remaining, middle, to, chunk).compute();
+                TableEntry leftBest = left.join();
+                // Prefer the earlier move on ties so results do not depend on scheduling
+                return right.value() > leftBest.value() ? right : leftBest;
+            }
+
+            Worker worker = new Worker(search);
+            TableEntry best = null;
+            for (int i = from; i < to; i++) {
+                int move = moves.get(i);
+                double value = worker.tryMove(move, remaining, worker.rootHash(), 0);
+                if (best == null || value > best.value()) {
+                    best = new TableEntry(value, packMove(move, worker.childLine[0]));
+                }
+            }
+            worker.flushNodes();
+            return best;
+        }
+    }
+
+    // One thread's copy of the board plus scratch space for every depth
+    class Worker {
+        Search search;
+        Grid grid;
+        // Moves on the current line, so each is taken back without copying the board
+        MoveHistory history;
+        long[][] anchors;
+        // Best continuation found below the last move tried at each depth
+        long[] childLine;
+        int localNodes;
+
+        Worker(Search search) {
+            this.search = search;
+            this.grid = search.root.copy();
+            int depth = search.shapes.length + 1;
+            history = new MoveHistory(grid, depth);
+            anchors = new long[depth][grid.numWords];
+            childLine = new long[depth];
+        }
+
+        long rootHash() {
+            long hash = 0;
+            for (int w = 0; w < grid.numWords; w++) {
+                long bits = grid.grid[w];
+                while (bits != 0) {
+                    hash ^= search.cellKeys[w * 64 + Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1;
+                }
+            }
+            return hash;
+        }
+
+        /* Plays the move, searches the position it leads to and undoes it. Returns the
+        value of the line starting with the move, its continuation is left in childLine[depth] */
+        double tryMove(int move, int remaining, long hash, int depth) {
+            countNode();
+            int slot = GameEngine.moveSlot(move);
+            int x = GameEngine.moveX(move);
+            int y = GameEngine.moveY(move);
+            Shape shape = search.shapes[slot];
+
+            int entry = history.push();
+            grid.placeShapeAt(shape, x, y);
+            for (int i = 0; i < shape.size(); i++) {
+                hash ^= search.cellKeys[grid.bitIndex(x + shape.x(i), y + shape.y(i))];
+            }
+            int cleared = grid.clearFullRegions();
+            history.record(entry, move, shape, cleared, false, 0, grid);
+            if (cleared > 0) {
+                for (int i = 0; i < grid.clearedWordCount; i++) {
+                    int w = grid.clearedWords[i];
+                    long bits = grid.clearMask[w];
+                    while (bits != 0) {
+                        hash ^= search.cellKeys[w * 64 + Long.numberOfTrailingZeros(bits)];
+                        bits &= bits - 1;
+                    }
+                }
+            }
+
+            double value = cleared * evaluation.scoreWeight()
+                    + searchPosition(remaining & ~(1 << slot), hash, depth + 1);
+            childLine[depth] = childLine[depth + 1];
+            history.undoPlacement(history.undo(), grid, shape);
+            return value;
+        }
+
+        // Value of the best line from the current position, with its moves in childLine[depth]
+        double searchPosition(int remaining, long hash, int depth) {
+            childLine[depth] = 0;
+            if (remaining == 0) {
+                return evaluation.evaluatePosition(grid, mobilityShapes);
+            }
+
+            long key = hash ^ search.remainingKey(remaining);
+            TableEntry entry = search.table.get(key);
+            if (entry != null) {
+                search.tableHits.incrementAndGet();
+                childLine[depth] = entry.line();
+                return entry.value();
+            }
+            if (search.outOfBudget) {
+                // Rate the position as it stands, without storing a guess in the table
+                return evaluation.evaluatePosition(grid, mobilityShapes);
+            }
+
+            double best = Double.NEGATIVE_INFINITY;
+            long bestLine = 0;
+            for (int slot = 0; slot < search.shapes.length; slot++) {
+                if ((remaining & (1 << slot)) == 0 || search.isDuplicate(slot, remaining)) {
+                    continue;
+                }
+                // Copy the anchors, the live bitset changes as moves are tried below
+                long[] legal = anchors[depth];
+                System.arraycopy(grid.getLegalAnchors(search.shapes[slot]), 0, legal, 0, grid.numWords);
+                for (int w = 0; w < legal.length; w++) {
+                    long bits = legal[w];
+                    while (bits != 0) {
+                        int index = w * 64 + Long.numberOfTrailingZeros(bits);
+                        int move = GameEngine.move(slot, grid.cellX(index), grid.cellY(index));
+                        double value = tryMove(move, remaining, hash, depth);
+                        if (value > best) {
+                            best = value;
+                            bestLine = packMove(move, childLine[depth]);
+                        }
+                        bits &= bits - 1;
+                    }
+                }
+            }
+
+            if (best == Double.NEGATIVE_INFINITY) {
+                // A shape that is still to be placed fits nowhere, so the game ends here
+                best = evaluation.deadEndPenalty();
+            }
+            childLine[depth] = bestLine;
+            if (!search.outOfBudget) {
+                search.table.put(key, new TableEntry(best, bestLine));
+            }
+            return best;
+        }
+
+        void countNode() {
+            if (++localNodes == BUDGET_CHECK_INTERVAL) {
+                flushNodes();
+            }
+        }
+
+        void flushNodes() {
+            long total = search.nodes.addAndGet(localNodes);
+            localNodes = 0;
+            // Compare elapsed time, since start plus a huge budget would overflow
+            if (total >= search.nodeBudget || System.nanoTime() - search.start >= search.timeBudgetNanos
+                    || search.stop.getAsBoolean()) {
+                search.outOfBudget = true;
+            }
+        }
+    }
+
+    // Puts a move in front of a packed line
+    static long packMove(int move, long line) {
+        return (move + 1L) | (line << LINE_MOVE_BITS);
+    }
+
+    static int[] unpackLine(long line) {
+        List<Integer> moves = new ArrayList<>();
+        long mask = (1L << LINE_MOVE_BITS) - 1;
+        while ((line & mask) != 0) {
+            moves.add((int) (line & mask) - 1);
+            line >>>= LINE_MOVE_BITS;
+        }
+        return moves.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /* Plays some random moves to reach a mid-game position, then searches it.
+    Run with: java Solver [randomMoves] [timeBudgetMillis] [nodeBudget] */
+    public static void main(String[] args) {
+        int randomMoves = args.length > 0 ? Integer.parseInt(args[0]) : 9;
+        long timeBudget = args.length > 1 ? Long.parseLong(args[1]) : 5000;
+        long nodeBudget = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+
+        GameEngine engine = new GameEngine(9, 9);
+        int[] moves = new int[engine.maxMoves()];
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < randomMoves; i++) {
+            int count = engine.legalMoves(moves);
+            if (count == 0) {
+                break;
+            }
+            engine.applyMove(moves[random.nextInt(count)]);
+        }
+
+        Solver solver = new Solver(Evaluation.standard(), new ShapeSet().getShapes());
+        // Warm up the JIT on a short search first
+        solver.search(engine, 200_000_000L, Long.MAX_VALUE);
+        System.out.println(solver.search(engine, timeBudget * 1_000_000L, nodeBudget));
+    }
+}
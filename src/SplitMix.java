@@ -0,0 +1,48 @@
+/* SplitMix class, a small seeded random number generator (SplitMix64) whose whole
+state is one long, so a stream can be saved and resumed exactly. split() derives an
+independent stream, letting each game or subsystem draw from its own sequence */
+public class SplitMix {
+    static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    long state;
+
+    public SplitMix(long seed) {
+        this.state = seed;
+    }
+
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    // Uniform int in [0, bound), bound must be positive
+    public int nextInt(int bound) {
+        // Multiply the top 32 bits by the bound and keep the high half, avoiding a division
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    // Uniform double in [0, 1)
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    // A new stream seeded from this one, independent of the values this one goes on to produce
+    public SplitMix split() {
+        return new SplitMix(mix(nextLong() ^ GOLDEN_GAMMA));
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public void setState(long state) {
+        this.state = state;
+    }
+
+    // SplitMix64 finaliser
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/* TrajectoryExporter class streaming every move played on its recorders into a file of
+training data. Each transition is the position before the move (board and palette
+shape ids), the move, the regions it cleared, the score it gained and whether the game
+ended, plus the game it belongs to. Transitions are fixed-width and gathered in blocks
+of BLOCK_RECORDS stored column by column, so each column compresses well, and every
+block is deflated on its own by a writer thread.
+
+Memory is bounded: the exporter owns a fixed pool of blocks, a recorder fills one at
+a time, and a recorder needing a new block waits until the writer has freed one, so a
+simulation outrunning the disk is slowed down rather than buffering without limit.
+TrajectoryReader reads the file back.
+
+  header  int magic, short version, short rows, short cols, short palette size
+  block   int records, int raw bytes, int stored bytes (equal to raw when not
+          deflated), then the columns for that many records: board (cells as longs
+          indexed by x * cols + y), game (long), palette ids (short per slot, -1 if
+          empty), move (int, as GameEngine.move), score delta (int), cleared (byte),
+          game over (byte) */
+public class TrajectoryExporter implements Closeable {
+    static final int MAGIC = 0x42505431; // "BPT1"
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 12;
+    static final int BLOCK_HEADER_BYTES = 12;
+    static final int BLOCK_RECORDS = 4096;
+    static final int PALETTE_SIZE = GameEngine.PALETTE_SIZE;
+    static final int BOARD = 0;
+    static final int GAME = 1;
+    static final int PALETTE = 2;
+    static final int MOVE = 3;
+    static final int SCORE_DELTA = 4;
+    static final int CLEARED = 5;
+    static final int GAME_OVER = 6;
+    static final int COLUMNS = 7;
+
+    // Transitions of one recorder, laid out column by column for a full block
+    static class Block {
+        ByteBuffer columns;
+        int count;
+    }
+
+    int numRows;
+    int numCols;
+    int cellWords;
+    // Bytes of each column per transition, and where each column starts in a full block
+    int[] widths;
+    int[] fullOffsets;
+    FileChannel channel;
+    Deflater deflater;
+    BlockingQueue<Block> free;
+    BlockingQueue<Block> full;
+    // Handed to the writer after the last block
+    Block end = new Block();
+    Thread writer;
+    volatile IOException failure;
+    // Written only by the writer thread
+    volatile long transitions;
+    volatile long bytesWritten;
+
+    // Exports to the path with a few blocks buffered, deflating them as fast as possible
+    public TrajectoryExporter(Path path, int numRows, int numCols) throws IOException {
+        this(path, numRows, numCols, 16, Deflater.BEST_SPEED);
+    }
+
+    /* Exports to the path, holding at most bufferedBlocks blocks in memory, deflated at
+    the level (Deflater.NO_COMPRESSION stores them raw, so readers map them without a copy) */
+    public TrajectoryExporter(Path path, int numRows, int numCols, int bufferedBlocks, int level) throws IOException {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.cellWords = (numRows * numCols + 63) / 64;
+        this.widths = columnWidths(cellWords);
+        this.fullOffsets = columnOffsets(widths, BLOCK_RECORDS);
+        if (level != Deflater.NO_COMPRESSION) {
+            deflater = new Deflater(level);
+        }
+        free = new ArrayBlockingQueue<>(bufferedBlocks);
+        full = new ArrayBlockingQueue<>(bufferedBlocks + 1);
+        for (int i = 0; i < bufferedBlocks; i++) {
+            Block block = new Block();
+            block.columns = ByteBuffer.allocateDirect(fullOffsets[COLUMNS]);
+            free.add(block);
+        }
+
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) numRows).putShort((short) numCols)
+                .putShort((short) PALETTE_SIZE).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        bytesWritten = HEADER_BYTES;
+        writer = new Thread(this::writeBlocks, "trajectory-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Bytes per transition of each column
+    static int[] columnWidths(int cellWords) {
+        return new int[] {cellWords * 8, 8, PALETTE_SIZE * 2, 4, 4, 1, 1};
+    }
+
+    // Where each column of a block of the given size starts, and (last) the block's size
+    static int[] columnOffsets(int[] widths, int records) {
+        int[] offsets = new int[COLUMNS + 1];
+        for (int column = 0; column < COLUMNS; column++) {
+            offsets[column + 1] = offsets[column] + widths[column] * records;
+        }
+        return offsets;
+    }
+
+    // A recorder for one thread's games, see GameEngine.setTrajectory
+    public Recorder recorder() {
+        return new Recorder();
+    }
+
+    /* Fills one block at a time with transitions, handing it to the writer when full.
+    Not thread-safe: each thread (or engine) uses a recorder of its own */
+    public class Recorder {
+        Block block;
+        long game;
+        int scoreBefore;
+        // Cells of the board before the move, by x * cols + y
+        long[] cells = new long[cellWords];
+
+        // Transitions from now on belong to the game
+        public void startGame(long game) {
+            this.game = game;
+        }
+
+        // Starts a transition from the position before the move is played
+        public void beforeMove(Grid grid, Shape[] palette, int move) {
+            if (block == null) {
+                block = take();
+            }
+            Arrays.fill(cells, 0);
+            long[] bits = grid.grid;
+            for (int w = 0; w < bits.length; w++) {
+                long filled = bits[w];
+                while (filled != 0) {
+                    int index = w * 64 + Long.numberOfTrailingZeros(filled);
+                    int cell = grid.cellX(index) * numCols + grid.cellY(index);
+                    cells[cell >>> 6] |= 1L << cell;
+                    filled &= filled - 1;
+                }
+            }
+            ByteBuffer columns = block.columns;
+            int i = block.count;
+            for (int w = 0; w < cellWords; w++) {
+                columns.putLong(fullOffsets[BOARD] + (i * cellWords + w) * 8, cells[w]);
+            }
+            columns.putLong(fullOffsets[GAME] + i * 8, game);
+            for (int slot = 0; slot < PALETTE_SIZE; slot++) {
+                Shape shape = palette[slot];
+                columns.putShort(fullOffsets[PALETTE] + (i * PALETTE_SIZE + slot) * 2,
+                        (short) (shape == null || shape.catalog == null ? -1 : shape.id));
+            }
+            columns.putInt(fullOffsets[MOVE] + i * 4, move);
+            scoreBefore = grid.getScore();
+        }
+
+        // Completes the transition once the move has been played
+        public void afterMove(Grid grid, int cleared, boolean gameOver) {
+            ByteBuffer columns = block.columns;
+            int i = block.count;
+            columns.putInt(fullOffsets[SCORE_DELTA] + i * 4, grid.getScore() - scoreBefore);
+            columns.put(fullOffsets[CLEARED] + i, (byte) cleared);
+            columns.put(fullOffsets[GAME_OVER] + i, (byte) (gameOver ? 1 : 0));
+            if (++block.count == BLOCK_RECORDS) {
+                flush();
+            }
+        }
+
+        // Hands the transitions recorded so far to the writer
+        public void flush() {
+            if (block != null && block.count > 0) {
+                put(full, block);
+                block = null;
+            }
+        }
+    }
+
+    // A free block, waiting for the writer to free one if every block is in use
+    private Block take() {
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the trajectory writer", e);
+        }
+    }
+
+    private static void put(BlockingQueue<Block> queue, Block block) {
+        try {
+            queue.put(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted handing a block to the trajectory writer", e);
+        }
+    }
+
+    // Writes blocks as they fill until the end is handed over, then closes the file
+    private void writeBlocks() {
+        ByteBuffer header = ByteBuffer.allocateDirect(BLOCK_HEADER_BYTES);
+        ByteBuffer compressed = ByteBuffer.allocateDirect(fullOffsets[COLUMNS] + fullOffsets[COLUMNS] / 100 + 1024);
+        ByteBuffer[] slices = new ByteBuffer[COLUMNS];
+        try {
+            Block block;
+            while ((block = full.take()) != end) {
+                if (failure == null) {
+                    try {
+                        writeBlock(block, header, compressed, slices);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                block.count = 0;
+                free.add(block);
+            }
+        } catch (InterruptedException e) {
+            failure = new IOException("Trajectory writer interrupted", e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private void writeBlock(Block block, ByteBuffer header, ByteBuffer compressed, ByteBuffer[] slices)
+            throws IOException {
+        int raw = 0;
+        for (int column = 0; column < COLUMNS; column++) {
+            int length = widths[column] * block.count;
+            slices[column] = block.columns.slice(fullOffsets[column], length);
+            raw += length;
+        }
+        int stored = raw;
+        if (deflater != null) {
+            deflater.reset();
+            compressed.clear();
+            for (ByteBuffer slice : slices) {
+                // A duplicate, so the slices can still be written raw if the block does not shrink
+                deflater.setInput(slice.duplicate());
+                while (!deflater.needsInput() && compressed.hasRemaining()) {
+                    deflater.deflate(compressed);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished() && compressed.hasRemaining()) {
+                deflater.deflate(compressed);
+            }
+            // A block that does not shrink is stored as it is
+            if (deflater.finished() && compressed.position() < raw) {
+                stored = compressed.position();
+                compressed.flip();
+                slices = new ByteBuffer[] {compressed};
+            }
+        }
+        header.clear();
+        header.putInt(block.count).putInt(raw).putInt(stored).flip();
+        long written = channel.write(header);
+        while (header.hasRemaining()) {
+            written += channel.write(header);
+        }
+        long remaining = stored;
+        while (remaining > 0) {
+            long n = channel.write(slices);
+            remaining -= n;
+            written += n;
+        }
+        bytesWritten += written;
+        transitions += block.count;
+    }
+
+    // Transitions written to the file so far
+    public long getTransitions() {
+        return transitions;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /* Writes every block handed over and closes the file. Recorders must be flushed
+    first, transitions still in a recorder's block are not written */
+    @Override
+    public void close() throws IOException {
+        put(full, end);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /* Plays random self-play games without and then with export, reports the cost and
+    file size, and reads the file back: java TrajectoryExporter [games] [level] [file] */
+    public static void main(String[] args) throws IOException {
+        long games = args.length > 0 ? Long.parseLong(args[0]) : 200_000;
+        int level = args.length > 1 ? Integer.parseInt(args[1]) : Deflater.BEST_SPEED;
+        Path path = args.length > 2 ? Path.of(args[2]) : Files.createTempFile("trajectories", ".bpt");
+        int threads = Runtime.getRuntime().availableProcessors();
+        SelfPlayRunner runner = new SelfPlayRunner(9, 9, MovePolicy.random(), 1);
+        // Warm up the JIT before measuring
+        runner.run(Math.min(games, 20_000), threads);
+
+        long start = System.nanoTime();
+        SelfPlayStats stats = runner.run(games, threads);
+        double plain = (System.nanoTime() - start) / 1e9;
+
+        try (TrajectoryExporter exporter = new TrajectoryExporter(path, 9, 9, 16, level)) {
+            runner.exporter = exporter;
+            start = System.nanoTime();
+            runner.run(games, threads);
+            runner.exporter = null;
+        }
+        double exported = (System.nanoTime() - start) / 1e9;
+        long size = Files.size(path);
+        System.out.printf("%,d moves on %d threads: %,.0f moves/s without export, %,.0f moves/s exporting%n",
+                stats.getMoves(), threads, stats.getMoves() / plain, stats.getMoves() / exported);
+        System.out.printf("%,d bytes, %.1f bytes per transition (%d raw)%n", size, (double) size / stats.getMoves(),
+                Arrays.stream(columnWidths(2)).sum());
+
+        start = System.nanoTime();
+        long transitions = 0;
+        long cleared = 0;
+        try (TrajectoryReader reader = new TrajectoryReader(path)) {
+            while (reader.next()) {
+                transitions++;
+                cleared += reader.cleared();
+            }
+        }
+        double read = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Read %,d transitions (%,d clears) at %,.0f transitions/s%n", transitions, cleared,
+                transitions / read);
+    }
+}
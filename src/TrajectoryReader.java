@@ -0,0 +1,163 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/* TrajectoryReader class iterating over the transitions in a file written by
+TrajectoryExporter. Each block is memory-mapped in turn: a stored block's columns are
+read straight from the mapping, and a deflated one is inflated into a single reused
+buffer, so iterating allocates nothing per transition. The accessors read
+the current transition's fields in place. A block cut short at the end of the file
+(an export that did not finish) ends the iteration */
+public class TrajectoryReader implements Closeable {
+    FileChannel channel;
+    long size;
+    int numRows;
+    int numCols;
+    int cellWords;
+    int[] widths;
+    // Position of the next block in the file
+    long nextBlock = TrajectoryExporter.HEADER_BYTES;
+    ByteBuffer header = ByteBuffer.allocate(TrajectoryExporter.BLOCK_HEADER_BYTES);
+    Inflater inflater = new Inflater();
+    ByteBuffer inflated;
+    // Columns of the current block, where each starts, its record count and the current record
+    ByteBuffer columns;
+    int[] offsets;
+    int count;
+    int record = -1;
+
+    public TrajectoryReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        ByteBuffer fileHeader = ByteBuffer.allocate(TrajectoryExporter.HEADER_BYTES);
+        if (channel.read(fileHeader, 0) < TrajectoryExporter.HEADER_BYTES
+                || fileHeader.getInt(0) != TrajectoryExporter.MAGIC
+                || fileHeader.getShort(4) != TrajectoryExporter.VERSION
+                || fileHeader.getShort(10) != TrajectoryExporter.PALETTE_SIZE) {
+            channel.close();
+            throw new IOException("Not a version " + TrajectoryExporter.VERSION + " trajectory file: " + path);
+        }
+        numRows = fileHeader.getShort(6);
+        numCols = fileHeader.getShort(8);
+        cellWords = (numRows * numCols + 63) / 64;
+        widths = TrajectoryExporter.columnWidths(cellWords);
+        offsets = new int[TrajectoryExporter.COLUMNS + 1];
+    }
+
+    // Moves to the next transition, returning false after the last one
+    public boolean next() throws IOException {
+        if (++record < count) {
+            return true;
+        }
+        if (!readBlock()) {
+            return false;
+        }
+        record = 0;
+        return true;
+    }
+
+    // Maps the next complete block and makes its columns current, false if there is none
+    private boolean readBlock() throws IOException {
+        while (nextBlock + TrajectoryExporter.BLOCK_HEADER_BYTES <= size) {
+            header.clear();
+            channel.read(header, nextBlock);
+            int records = header.getInt(0);
+            int raw = header.getInt(4);
+            int stored = header.getInt(8);
+            long start = nextBlock + TrajectoryExporter.BLOCK_HEADER_BYTES;
+            if (start + stored > size) {
+                return false;
+            }
+            nextBlock = start + stored;
+            if (records == 0) {
+                continue;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, stored);
+            if (stored == raw) {
+                columns = mapped;
+            } else {
+                if (inflated == null || inflated.capacity() < raw) {
+                    inflated = ByteBuffer.allocateDirect(raw);
+                }
+                inflated.clear().limit(raw);
+                inflater.reset();
+                inflater.setInput(mapped);
+                try {
+                    while (inflated.hasRemaining() && !inflater.finished()) {
+                        if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new IOException("Trajectory block at "
+                                    + (start - TrajectoryExporter.BLOCK_HEADER_BYTES) + " is truncated");
+                        }
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt trajectory block", e);
+                }
+                columns = inflated;
+            }
+            for (int column = 0; column < TrajectoryExporter.COLUMNS; column++) {
+                offsets[column + 1] = offsets[column] + widths[column] * records;
+            }
+            count = records;
+            return true;
+        }
+        return false;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumCols() {
+        return numCols;
+    }
+
+    // Word w of the board before the move, cells indexed by x * cols + y
+    public long boardWord(int w) {
+        return columns.getLong(offsets[TrajectoryExporter.BOARD] + (record * cellWords + w) * 8);
+    }
+
+    public boolean isCellFilled(int x, int y) {
+        int cell = x * numCols + y;
+        return (boardWord(cell >>> 6) & (1L << cell)) != 0;
+    }
+
+    // The game the transition belongs to: the seed its shapes were dealt from
+    public long game() {
+        return columns.getLong(offsets[TrajectoryExporter.GAME] + record * 8);
+    }
+
+    // Catalog id of the shape in the slot before the move, -1 if it was empty
+    public int paletteId(int slot) {
+        int palette = offsets[TrajectoryExporter.PALETTE];
+        return columns.getShort(palette + (record * TrajectoryExporter.PALETTE_SIZE + slot) * 2);
+    }
+
+    // The move played, packed as GameEngine.move
+    public int move() {
+        return columns.getInt(offsets[TrajectoryExporter.MOVE] + record * 4);
+    }
+
+    public int scoreDelta() {
+        return columns.getInt(offsets[TrajectoryExporter.SCORE_DELTA] + record * 4);
+    }
+
+    public int cleared() {
+        return columns.get(offsets[TrajectoryExporter.CLEARED] + record);
+    }
+
+    public boolean isGameOver() {
+        return columns.get(offsets[TrajectoryExporter.GAME_OVER] + record) != 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+}